@@ -0,0 +1,24 @@
+package uy.com.netlabs.javapeg.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Counts the chars parsed, so that throughput is also reported in chars per second, comparable across input sizes.
+ *
+ * @author fran
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class CharCounter {
+
+    public long chars;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        chars = 0;
+    }
+}
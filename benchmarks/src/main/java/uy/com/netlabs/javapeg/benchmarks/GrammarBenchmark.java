@@ -0,0 +1,105 @@
+package uy.com.netlabs.javapeg.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uy.com.netlabs.javapeg.AstArena;
+import uy.com.netlabs.javapeg.Grammar;
+import uy.com.netlabs.javapeg.ParserResult;
+import uy.com.netlabs.javapeg.ParsingMachine;
+import uy.com.netlabs.javapeg.util.Pair;
+
+/**
+ * Whole parses of every workload, from 1 KB to 100 MB of input, through each of the ways of matching.
+ *
+ * The largest inputs build ASTs of several GB, hence the heap of the forks; leave them out with
+ * {@code -p size=1024,1048576} on smaller machines.
+ *
+ * @author fran
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx8g", "-Xss256m"})
+@State(Scope.Benchmark)
+public class GrammarBenchmark {
+
+    @Param({"JSON", "ARITHMETIC", "CSV", "KEYWORDS"})
+    public Workload workload;
+    @Param({"1024", "1048576", "104857600"})
+    public int size;
+    /**
+     * Whether the grammars go through {@link Grammar#optimize()} first.
+     */
+    @Param({"false", "true"})
+    public boolean optimized;
+
+    private String input;
+    private Grammar<Object> grammar, processing;
+    private ParsingMachine machine;
+    private AstArena arena;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        input = workload.input(size);
+        grammar = workload.grammar(false);
+        processing = workload.grammar(true);
+        if (optimized) {
+            grammar = grammar.optimize();
+            processing = processing.optimize();
+        }
+        machine = ParsingMachine.compile(grammar);
+        arena = new AstArena();
+        if (!grammar.match(input).isMatched()) {
+            throw new IllegalStateException(workload + " does not match its own input");
+        }
+    }
+
+    /**
+     * AST only.
+     */
+    @Benchmark
+    public ParserResult match(CharCounter counter) {
+        counter.chars += input.length();
+        return grammar.match(input);
+    }
+
+    /**
+     * AST and the values built by the workload's reduce functions.
+     */
+    @Benchmark
+    public Pair<ParserResult, List<Object>> matchProcessing(CharCounter counter) {
+        counter.chars += input.length();
+        return processing.matchProcessing(input);
+    }
+
+    /**
+     * Whether it matches, and how far, without building anything.
+     */
+    @Benchmark
+    public ParserResult recognize(CharCounter counter) {
+        counter.chars += input.length();
+        return grammar.recognize(input);
+    }
+
+    /**
+     * AST built by the parsing machine, into a reused arena.
+     */
+    @Benchmark
+    public ParserResult.Failure machine(CharCounter counter) {
+        counter.chars += input.length();
+        return machine.match(input, 0, arena);
+    }
+}
@@ -0,0 +1,67 @@
+package uy.com.netlabs.javapeg.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uy.com.netlabs.javapeg.AstArena;
+import uy.com.netlabs.javapeg.Grammar;
+import uy.com.netlabs.javapeg.ParserResult;
+import uy.com.netlabs.javapeg.ParsingMachine;
+
+/**
+ * Deeply nested inputs, where the tree walker recurses once per level (hence the stack of the forks) while the parsing
+ * machine keeps its own stacks on the heap.
+ *
+ * @author fran
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-Xss1g"})
+@State(Scope.Benchmark)
+public class NestingBenchmark {
+
+    @Param({"JSON", "ARITHMETIC"})
+    public Workload workload;
+    @Param({"100", "10000", "100000"})
+    public int depth;
+
+    private String input;
+    private Grammar<Object> grammar;
+    private ParsingMachine machine;
+    private AstArena arena;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        input = workload.nested(depth);
+        grammar = workload.grammar(false);
+        machine = ParsingMachine.compile(grammar);
+        arena = new AstArena();
+        if (!grammar.match(input).isMatched()) {
+            throw new IllegalStateException(workload + " does not match its own input");
+        }
+    }
+
+    @Benchmark
+    public ParserResult match(CharCounter counter) {
+        counter.chars += input.length();
+        return grammar.match(input);
+    }
+
+    @Benchmark
+    public ParserResult.Failure machine(CharCounter counter) {
+        counter.chars += input.length();
+        return machine.match(input, 0, arena);
+    }
+}
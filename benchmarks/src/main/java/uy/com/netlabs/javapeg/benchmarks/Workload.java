@@ -0,0 +1,264 @@
+package uy.com.netlabs.javapeg.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import uy.com.netlabs.javapeg.Grammar;
+import uy.com.netlabs.javapeg.ParserResult;
+import uy.com.netlabs.javapeg.PegLoader;
+import uy.com.netlabs.javapeg.ReduceFunction;
+
+/**
+ * The grammars benchmarked, each with a generator of valid inputs of about any size. Inputs are generated from a fixed
+ * seed, so every run parses the same text.
+ *
+ * @author fran
+ */
+public enum Workload {
+
+    JSON(""
+            + "Json    <- S Value !.\n"
+            + "Value   <- (Object / Array / String / Number / 'true' / 'false' / 'null') S\n"
+            + "Object  <- '{' S (Member (',' S Member)*)? '}'\n"
+            + "Member  <- String S ':' S Value\n"
+            + "Array   <- '[' S (Value (',' S Value)*)? ']'\n"
+            + "String  <- '\"' (Escape / [^\"\\\\])* '\"'\n"
+            + "Escape  <- '\\\\' ([\"\\\\/bfnrt] / 'u' Hex Hex Hex Hex)\n"
+            + "Hex     <- [0-9a-fA-F]\n"
+            + "Number  <- '-'? ('0' / [1-9] [0-9]*) ('.' [0-9]+)? ([eE] [-+]? [0-9]+)?\n"
+            + "S       <- [ \\t\\r\\n]*\n", "Json") {
+
+        @Override
+        void process(Map<String, Grammar<Object>> rules) {
+            rules.get("Number").with(new ReduceFunction<Object>() {
+                @Override
+                public List<Object> reduce(CharSequence text, ParserResult.AstNode node, List<Object> tags) {
+                    return Collections.<Object>singletonList(Double.valueOf(node.view(text).toString()));
+                }
+            });
+            rules.get("String").with(SUBSTRING);
+        }
+
+        @Override
+        void record(StringBuilder sb, Random random) {
+            sb.append(sb.length() == 0 ? "[\n" : ",\n");
+            sb.append("  {\"id\": ").append(random.nextInt(100000))
+                    .append(", \"name\": \"").append(word(random)).append("\\n\\u00e9\"")
+                    .append(", \"score\": ").append(random.nextInt(2000) - 1000).append('.')
+                    .append(random.nextInt(100)).append("e-").append(random.nextInt(5))
+                    .append(", \"tags\": [").append(random.nextBoolean()).append(", null, \"")
+                    .append(word(random)).append("\"], \"nested\": {\"a\": [], \"b\": {}}}");
+        }
+
+        @Override
+        String close(StringBuilder sb) {
+            return sb.append("\n]\n").toString();
+        }
+
+        @Override
+        String nested(int depth) {
+            return repeat("[", depth) + "1" + repeat("]", depth);
+        }
+    },
+    ARITHMETIC(""
+            + "Expr    <- S Sum !.\n"
+            + "Sum     <- Product (AddOp Product)*\n"
+            + "Product <- Value (MulOp Value)*\n"
+            + "Value   <- (Number / '(' S Sum ')') S\n"
+            + "Number  <- [0-9]+\n"
+            + "AddOp   <- [-+] S\n"
+            + "MulOp   <- [*/] S\n"
+            + "S       <- [ \\n]*\n", "Expr") {
+
+        @Override
+        void process(Map<String, Grammar<Object>> rules) {
+            rules.get("Number").with(new ReduceFunction<Object>() {
+                @Override
+                public List<Object> reduce(CharSequence text, ParserResult.AstNode node, List<Object> tags) {
+                    return Collections.<Object>singletonList(Long.valueOf(node.view(text).toString()));
+                }
+            });
+            ReduceFunction<Object> operator = new ReduceFunction<Object>() {
+                @Override
+                public List<Object> reduce(CharSequence text, ParserResult.AstNode node, List<Object> tags) {
+                    return Collections.<Object>singletonList(text.charAt(node.getIdx()));
+                }
+            };
+            rules.get("AddOp").with(operator);
+            rules.get("MulOp").with(operator);
+            ReduceFunction<Object> evaluate = new ReduceFunction<Object>() {
+                @Override
+                public List<Object> reduce(CharSequence text, ParserResult.AstNode node, List<Object> tags) {
+                    long acc = (Long) tags.get(0);
+                    for (int i = 1; i < tags.size(); i += 2) {
+                        long value = (Long) tags.get(i + 1);
+                        switch ((Character) tags.get(i)) {
+                            case '+':
+                                acc += value;
+                                break;
+                            case '-':
+                                acc -= value;
+                                break;
+                            case '*':
+                                acc *= value;
+                                break;
+                            default:
+                                acc /= value;
+                                break;
+                        }
+                    }
+                    return Collections.<Object>singletonList(acc);
+                }
+            };
+            rules.get("Sum").with(evaluate);
+            rules.get("Product").with(evaluate);
+        }
+
+        @Override
+        void record(StringBuilder sb, Random random) {
+            if (sb.length() > 0) {
+                sb.append(" +\n");
+            }
+            sb.append(1 + random.nextInt(999)).append(" * (").append(random.nextInt(1000)).append(" - ")
+                    .append(random.nextInt(1000)).append(" / ").append(1 + random.nextInt(9)).append(") + ((")
+                    .append(random.nextInt(100)).append("))");
+        }
+
+        @Override
+        String nested(int depth) {
+            return repeat("(", depth) + "1 + 2" + repeat(")", depth);
+        }
+    },
+    CSV(""
+            + "File    <- Record* !.\n"
+            + "Record  <- Field (',' Field)* '\\r'? '\\n'\n"
+            + "Field   <- '\"' ('\"\"' / [^\"])* '\"' / [^,\"\\r\\n]*\n", "File") {
+
+        @Override
+        void process(Map<String, Grammar<Object>> rules) {
+            rules.get("Field").with(SUBSTRING);
+            rules.get("Record").with(new ReduceFunction<Object>() {
+                @Override
+                public List<Object> reduce(CharSequence text, ParserResult.AstNode node, List<Object> tags) {
+                    return Collections.<Object>singletonList(new ArrayList<>(tags));
+                }
+            });
+        }
+
+        @Override
+        void record(StringBuilder sb, Random random) {
+            sb.append(random.nextInt(1000000)).append(',').append(word(random)).append(",\"")
+                    .append(word(random)).append(", \"\"").append(word(random)).append("\"\"\",")
+                    .append(random.nextInt(100)).append('.').append(random.nextInt(100)).append(",,")
+                    .append(random.nextBoolean() ? "\r\n" : "\n");
+        }
+    },
+    KEYWORDS(""
+            + "Program   <- S Statement* !.\n"
+            + "Statement <- Keyword Ident (Operator Ident)* ';' S\n"
+            + "Keyword   <- ('abstract' / 'assert' / 'boolean' / 'break' / 'byte' / 'case' / 'catch' / 'char'\n"
+            + "            / 'class' / 'const' / 'continue' / 'default' / 'double' / 'do' / 'else' / 'enum'\n"
+            + "            / 'extends' / 'finally' / 'final' / 'float' / 'for' / 'goto' / 'if' / 'implements'\n"
+            + "            / 'import' / 'instanceof' / 'interface' / 'int' / 'long' / 'native' / 'new'\n"
+            + "            / 'package' / 'private' / 'protected' / 'public' / 'return' / 'short' / 'static'\n"
+            + "            / 'super' / 'switch' / 'synchronized' / 'this' / 'throws' / 'throw' / 'transient'\n"
+            + "            / 'try' / 'void' / 'volatile' / 'while') !IdChar S\n"
+            + "Ident     <- !Keyword [a-zA-Z_] IdChar* S\n"
+            + "IdChar    <- [a-zA-Z0-9_]\n"
+            + "Operator  <- ('==' / '!=' / '<=' / '>=' / '&&' / '||' / '=' / '<' / '>' / '+' / '-') S\n"
+            + "S         <- [ \\t\\r\\n]*\n", "Program") {
+
+        private final String[] keywords = {"abstract", "boolean", "class", "double", "do", "final", "finally",
+            "instanceof", "interface", "int", "return", "synchronized", "throws", "throw", "while"};
+        private final String[] operators = {"==", "!=", "<=", ">=", "&&", "||", "=", "<", ">", "+", "-"};
+
+        @Override
+        void process(Map<String, Grammar<Object>> rules) {
+            rules.get("Keyword").with(SUBSTRING);
+            rules.get("Ident").with(SUBSTRING);
+        }
+
+        @Override
+        void record(StringBuilder sb, Random random) {
+            // identifiers starting with a keyword, and ending with a digit so that they never are one:
+            sb.append(keywords[random.nextInt(keywords.length)]).append(' ')
+                    .append(keywords[random.nextInt(keywords.length)]).append(word(random)).append(random.nextInt(10));
+            for (int i = random.nextInt(4); i > 0; i--) {
+                sb.append(' ').append(operators[random.nextInt(operators.length)]).append(' ')
+                        .append(word(random)).append(random.nextInt(10));
+            }
+            sb.append(";\n");
+        }
+    };
+
+    private static final ReduceFunction<Object> SUBSTRING = new ReduceFunction<Object>() {
+        @Override
+        public List<Object> reduce(CharSequence text, ParserResult.AstNode node, List<Object> tags) {
+            return Collections.<Object>singletonList(node.substring(text));
+        }
+    };
+
+    private final String peg;
+    private final String start;
+
+    private Workload(String peg, String start) {
+        this.peg = peg;
+        this.start = start;
+    }
+
+    /**
+     * @param processing whether to attach the reduce functions that build values out of the input
+     */
+    public Grammar<Object> grammar(boolean processing) {
+        Map<String, Grammar<Object>> rules = PegLoader.parse(peg);
+        if (processing) {
+            process(rules);
+        }
+        return rules.get(start);
+    }
+
+    /**
+     * A valid input of at least size chars (and not much more).
+     */
+    public String input(int size) {
+        Random random = new Random(42);
+        StringBuilder sb = new StringBuilder(size + 256);
+        while (sb.length() < size) {
+            record(sb, random);
+        }
+        return close(sb);
+    }
+
+    /**
+     * A valid input nesting depth levels, or null if the grammar does not nest.
+     */
+    String nested(int depth) {
+        return null;
+    }
+
+    abstract void process(Map<String, Grammar<Object>> rules);
+
+    abstract void record(StringBuilder sb, Random random);
+
+    String close(StringBuilder sb) {
+        return sb.toString();
+    }
+
+    private static String word(Random random) {
+        char[] chars = new char[3 + random.nextInt(8)];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder(s.length() * times);
+        for (int i = 0; i < times; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package uy.com.netlabs.javapeg;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Records parses as {@code uy.com.netlabs.javapeg.Parse} JDK Flight Recorder events, so that slow parses show up next
+ * to the GC and CPU activity around them. Only parses taking at least the event's threshold (20 ms unless the
+ * recording settings say otherwise) are recorded, and nothing is while no recording is running.
+ *
+ * It needs the {@code jdk.jfr} API (java 11), so it comes in a module of its own, javapeg-jfr, leaving the library
+ * itself free of it.
+ *
+ * @author fran
+ */
+public class JfrParseListener extends ParseListener {
+
+    @Name("uy.com.netlabs.javapeg.Parse")
+    @Label("Parse")
+    @Category("javapeg")
+    @Description("A top level parse of a grammar")
+    @Threshold("20 ms")
+    static class ParseEvent extends Event {
+
+        @Label("Grammar")
+        String grammar;
+        @Label("Input Length (chars)")
+        @Description("Length of the input in chars (UTF-16 code units)")
+        int inputLength;
+        @Label("Matched")
+        boolean matched;
+        @Label("Failure Offset")
+        @Description("Where the parse failed, or -1 if it matched")
+        int failureOffset;
+        @Label("Farthest Failure")
+        @Description("Farthest position where a terminal failed to match, or -1")
+        int farthestFailure;
+    }
+
+    @Override
+    public Object parsing(Grammar<?> grammar, CharSequence text) {
+        ParseEvent event = new ParseEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void parsed(Object context, Grammar<?> grammar, CharSequence text, ParserResult result,
+            int farthestFailure, long nanos) {
+        ParseEvent event = (ParseEvent) context;
+        event.end();
+        if (event.shouldCommit()) {
+            event.grammar = grammar.getClass().getSimpleName() + "@"
+                    + Integer.toHexString(System.identityHashCode(grammar));
+            event.inputLength = text.length();
+            event.matched = result.isMatched();
+            event.failureOffset = result.isMatched() ? -1 : result.getIdx();
+            event.farthestFailure = farthestFailure;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package uy.com.netlabs.javapeg;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that parses are recorded as JDK Flight Recorder events.
+ */
+public class JfrParseListenerTest extends TestCase {
+
+    public JfrParseListenerTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(JfrParseListenerTest.class);
+    }
+
+    @Override
+    protected void tearDown() {
+        Grammar.setParseListener(null);
+    }
+
+    public void testJfr() throws Exception {
+        // "a"+ "b"
+        Grammar g = new Grammar.CatGrammar(
+                new Grammar.QuantGrammar(1, Integer.MAX_VALUE, new Grammar.TextGrammar("a")),
+                new Grammar.TextGrammar("b"));
+        Grammar.setParseListener(new JfrParseListener());
+        File file = File.createTempFile("parses", ".jfr");
+        try {
+            try (Recording recording = new Recording()) {
+                recording.enable(JfrParseListener.ParseEvent.class).withThreshold(Duration.ZERO);
+                recording.start();
+                g.match("aab");
+                g.match("aaac");
+                recording.stop();
+                recording.dump(file.toPath());
+            }
+            List<String> events = new ArrayList<>();
+            for (RecordedEvent event: RecordingFile.readAllEvents(file.toPath())) {
+                if (event.getEventType().getName().equals("uy.com.netlabs.javapeg.Parse")) {
+                    events.add(event.getInt("inputLength") + " " + event.getBoolean("matched") + " "
+                            + event.getInt("failureOffset"));
+                }
+            }
+            assertEquals("[3 true -1, 4 false 3]", events.toString());
+        } finally {
+            file.delete();
+        }
+    }
+}
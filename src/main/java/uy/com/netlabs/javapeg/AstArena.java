@@ -0,0 +1,290 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package uy.com.netlabs.javapeg;
+
+import java.util.Arrays;
+import uy.com.netlabs.javapeg.util.CharSequenceView;
+
+/**
+ * A whole AST stored as parallel int arrays instead of one object per node.
+ *
+ * Nodes are identified by their index in the arena. Every node has a start position, a length, its first child and
+ * its next sibling (-1 when there is none). Nodes are appended children first, so the nodes of a subtree are
+ * contiguous and end at its root: dropping everything after some size (see {@link #truncate(int)}) is all the
+ * bookkeeping backtracking needs. An arena may be {@link #clear() cleared} and reused for the next parse, so parsing
+ * into it allocates nothing once its arrays are large enough.
+ *
+ * Nodes are read through the accessors or a {@link Cursor}; {@link #toAstNode(int)} builds the usual
+ * {@link ParserResult.AstNode} tree for a subtree when needed.
+ *
+ * @author fran
+ */
+public final class AstArena {
+
+    private int[] idx, length, firstChild, nextSibling;
+    private int size = 0;
+    private int root = -1;
+
+    public AstArena() {
+        this(64);
+    }
+
+    public AstArena(int capacity) {
+        capacity = Math.max(capacity, 1);
+        idx = new int[capacity];
+        length = new int[capacity];
+        firstChild = new int[capacity];
+        nextSibling = new int[capacity];
+    }
+
+    /**
+     * Number of nodes in the arena.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the root node of the last successful parse into this arena, or -1
+     */
+    public int getRoot() {
+        return root;
+    }
+
+    public int getIdx(int node) {
+        return idx[node];
+    }
+
+    public int getLength(int node) {
+        return length[node];
+    }
+
+    /**
+     * @return the first child of node, or -1 if it is a leaf
+     */
+    public int getFirstChild(int node) {
+        return firstChild[node];
+    }
+
+    /**
+     * @return the sibling following node, or -1 if it is the last one
+     */
+    public int getNextSibling(int node) {
+        return nextSibling[node];
+    }
+
+    public int getChildCount(int node) {
+        int count = 0;
+        for (int child = firstChild[node]; child >= 0; child = nextSibling[child]) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Drops every node.
+     */
+    public void clear() {
+        size = 0;
+        root = -1;
+    }
+
+    /**
+     * Drops every node added after the arena had the given size.
+     */
+    public void truncate(int size) {
+        if (size < 0 || size > this.size) {
+            throw new IndexOutOfBoundsException("size=" + size + ", current size=" + this.size);
+        }
+        this.size = size;
+        if (root >= size) {
+            root = -1;
+        }
+    }
+
+    void setRoot(int node) {
+        nextSibling[node] = -1;
+        root = node;
+    }
+
+    /**
+     * Appends a leaf.
+     */
+    int add(int idx, int length) {
+        if (size == this.idx.length) {
+            int capacity = size * 2;
+            this.idx = Arrays.copyOf(this.idx, capacity);
+            this.length = Arrays.copyOf(this.length, capacity);
+            firstChild = Arrays.copyOf(firstChild, capacity);
+            nextSibling = Arrays.copyOf(nextSibling, capacity);
+        }
+        this.idx[size] = idx;
+        this.length[size] = length;
+        firstChild[size] = -1;
+        nextSibling[size] = -1;
+        return size++;
+    }
+
+    /**
+     * Appends a node whose children are children[from] to children[to - 1], linking them as siblings.
+     */
+    int add(int idx, int length, int[] children, int from, int to) {
+        int node = add(idx, length);
+        if (from < to) {
+            firstChild[node] = children[from];
+            for (int i = from; i < to - 1; i++) {
+                nextSibling[children[i]] = children[i + 1];
+            }
+            nextSibling[children[to - 1]] = -1;
+        }
+        return node;
+    }
+
+    /**
+     * Appends a copy of an AstNode tree, children first. This does not recurse, so it also works on very deep trees.
+     */
+    int add(ParserResult.AstNode node) {
+        // the nodes on the path being copied, how many children of each are copied, and the ids of those children
+        // (of every node on the path, one after the other):
+        ParserResult.AstNode[] path = new ParserResult.AstNode[16];
+        int[] copied = new int[16];
+        int[] ids = new int[16];
+        int depth = 1, size = 0;
+        path[0] = node;
+        while (true) {
+            ParserResult.AstNode[] children = path[depth - 1].getChildren();
+            if (copied[depth - 1] < children.length) {
+                if (depth == path.length) {
+                    path = Arrays.copyOf(path, 2 * depth);
+                    copied = Arrays.copyOf(copied, 2 * depth);
+                }
+                path[depth] = children[copied[depth - 1]++];
+                copied[depth++] = 0;
+                continue;
+            }
+            int from = size - children.length;
+            int id = add(path[depth - 1].getIdx(), path[depth - 1].getLength(), ids, from, size);
+            size = from;
+            path[--depth] = null;
+            if (depth == 0) {
+                return id;
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, 2 * size);
+            }
+            ids[size++] = id;
+        }
+    }
+
+    /**
+     * Builds the AstNode tree of a subtree. This does not recurse, so it also works on very deep trees.
+     */
+    public ParserResult.AstNode toAstNode(int node) {
+        // the subtree is the contiguous range [first, node], where first is reached following first children:
+        int first = node;
+        while (firstChild[first] >= 0) {
+            first = firstChild[first];
+        }
+        ParserResult.AstNode[] built = new ParserResult.AstNode[node - first + 1];
+        for (int n = first; n <= node; n++) {
+            ParserResult.AstNode[] children = new ParserResult.AstNode[getChildCount(n)];
+            int i = 0;
+            for (int child = firstChild[n]; child >= 0; child = nextSibling[child]) {
+                children[i++] = built[child - first];
+                built[child - first] = null;
+            }
+            built[n - first] = new ParserResult.AstNode(idx[n], length[n], children);
+        }
+        return built[node - first];
+    }
+
+    /**
+     * @return a cursor positioned at node
+     */
+    public Cursor cursor(int node) {
+        return new Cursor(node);
+    }
+
+    /**
+     * A movable view of one node at a time, walking the tree without allocating.
+     */
+    public final class Cursor {
+
+        private int node;
+        private int[] ancestors = new int[16];
+        private int depth = 0;
+
+        private Cursor(int node) {
+            this.node = node;
+        }
+
+        public int getNode() {
+            return node;
+        }
+
+        public int getIdx() {
+            return idx[node];
+        }
+
+        public int getLength() {
+            return length[node];
+        }
+
+        /**
+         * @see ParserResult.AstNode#view(CharSequence)
+         */
+        public CharSequence view(CharSequence text) {
+            return new CharSequenceView(text, idx[node], idx[node] + length[node]);
+        }
+
+        /**
+         * Moves to the first child.
+         *
+         * @return false, without moving, if the node is a leaf
+         */
+        public boolean firstChild() {
+            if (firstChild[node] < 0) {
+                return false;
+            }
+            if (depth == ancestors.length) {
+                ancestors = Arrays.copyOf(ancestors, depth * 2);
+            }
+            ancestors[depth++] = node;
+            node = firstChild[node];
+            return true;
+        }
+
+        /**
+         * Moves to the next sibling.
+         *
+         * @return false, without moving, if this is the last child (or the node the cursor started at)
+         */
+        public boolean nextSibling() {
+            if (depth == 0 || nextSibling[node] < 0) {
+                return false;
+            }
+            node = nextSibling[node];
+            return true;
+        }
+
+        /**
+         * Moves back to the parent.
+         *
+         * @return false, without moving, at the node the cursor started at
+         */
+        public boolean parent() {
+            if (depth == 0) {
+                return false;
+            }
+            node = ancestors[--depth];
+            return true;
+        }
+
+        public ParserResult.AstNode toAstNode() {
+            return AstArena.this.toAstNode(node);
+        }
+    }
+}
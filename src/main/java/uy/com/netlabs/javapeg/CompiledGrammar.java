@@ -0,0 +1,357 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package uy.com.netlabs.javapeg;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.ArrayList;
+import java.util.Collections;
+import static java.util.Collections.EMPTY_LIST;
+import java.util.IdentityHashMap;
+import java.util.List;
+import uy.com.netlabs.javapeg.util.Function1;
+import uy.com.netlabs.javapeg.util.Pair;
+import uy.com.netlabs.javapeg.util.RopeList;
+import uy.com.netlabs.javapeg.util.TextTrie;
+
+/**
+ * A grammar specialized into a tree of method handles, built by {@link Grammar#compile()}.
+ *
+ * Every node of the source grammar becomes a static matcher with its literal, range, reduce function and child
+ * handles bound as constant arguments, so the JIT can inline across whole rules instead of dispatching through the
+ * generic {@link Grammar#matchProcessing(CharSequence, int, Grammar.Options)}. Only rules (reference grammars) go through
+ * the generic path, keeping left recursion detection and memoization where cycles can actually happen.
+ *
+ * The source grammar is snapshotted: later calls to {@link Grammar#with(ReduceFunction)} or
+ * {@link Grammar.MutableReferenceGrammar#setGrammar(Grammar)} on it are not seen by the compiled grammar, which also
+ * keeps whether it may match the empty string and its first set as they were when compiled. The source is still told
+ * as its only child, so that analyses and {@link Grammar#freeze()} see the whole graph.
+ *
+ * @author fran
+ * @param <T> tag's generic type
+ */
+public class CompiledGrammar<T> extends Grammar<T> {
+
+    static final MethodType MATCHER_TYPE = MethodType.methodType(Pair.class, CharSequence.class, int.class, Options.class);
+    private static final MethodHandle MATCH_PROCESSING, TEXT, TEXTS, DOT, RANGE, CAT, ALT, QUANT, POSITIVE, NEGATIVE;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            MATCH_PROCESSING = lookup.findVirtual(Grammar.class, "matchProcessing", MATCHER_TYPE);
+            TEXT = lookup.findStatic(CompiledGrammar.class, "text", MATCHER_TYPE
+                    .insertParameterTypes(0, String.class, ReduceFunction.class));
+            TEXTS = lookup.findStatic(CompiledGrammar.class, "texts", MATCHER_TYPE
+                    .insertParameterTypes(0, String[].class, TextTrie.class, List.class, ReduceFunction.class));
+            DOT = lookup.findStatic(CompiledGrammar.class, "dot", MATCHER_TYPE
+                    .insertParameterTypes(0, ReduceFunction.class));
+            RANGE = lookup.findStatic(CompiledGrammar.class, "range", MATCHER_TYPE
+                    .insertParameterTypes(0, char.class, char.class, String.class, ReduceFunction.class));
+            CAT = lookup.findStatic(CompiledGrammar.class, "cat", MATCHER_TYPE
+                    .insertParameterTypes(0, MethodHandle[].class, ReduceFunction.class));
+            ALT = lookup.findStatic(CompiledGrammar.class, "alt", MATCHER_TYPE
+                    .insertParameterTypes(0, MethodHandle[].class, ReduceFunction.class));
+            QUANT = lookup.findStatic(CompiledGrammar.class, "quant", MATCHER_TYPE
+                    .insertParameterTypes(0, int.class, int.class, MethodHandle.class, ReduceFunction.class));
+            POSITIVE = lookup.findStatic(CompiledGrammar.class, "positive", MATCHER_TYPE
+                    .insertParameterTypes(0, MethodHandle.class, ReduceFunction.class));
+            NEGATIVE = lookup.findStatic(CompiledGrammar.class, "negative", MATCHER_TYPE
+                    .insertParameterTypes(0, MethodHandle.class, ReduceFunction.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Grammar<T> source;
+    private final MethodHandle matcher;
+    private final boolean nullable;
+    private final FirstSet firstSet;
+
+    CompiledGrammar(Grammar<T> source) {
+        this.source = source;
+        this.matcher = new Specializer().specialize(source);
+        this.nullable = source.hasEpsilon();
+        this.firstSet = source.firstSet();
+    }
+
+    @Override
+    public List<Grammar<?>> children() {
+        return Collections.<Grammar<?>>singletonList(source);
+    }
+
+    @Override
+    protected Pair<ParserResult, List<T>> matchProcessingImpl(CharSequence text, int idx, Options opts) {
+        return invoke(matcher, text, idx, opts);
+    }
+
+    @Override
+    protected boolean computeHasEpsilon() {
+        return nullable;
+    }
+
+    @Override
+    protected FirstSet firstSet(Function1<Grammar, FirstSet> proxy) {
+        return firstSet;
+    }
+
+    private static Pair invoke(MethodHandle matcher, CharSequence text, int idx, Options opts) {
+        try {
+            return (Pair) matcher.invokeExact(text, idx, opts);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * Builds the matcher handles, sharing them between uses of the same source node.
+     */
+    public static final class Specializer {
+
+        private final IdentityHashMap<Grammar, MethodHandle> handles = new IdentityHashMap<>();
+        private int rules = 0;
+
+        private Specializer() {
+        }
+
+        MethodHandle specialize(Grammar<?> grammar) {
+            MethodHandle handle = handles.get(grammar);
+            if (handle == null) {
+                handle = grammar.specialize(this);
+                handles.put(grammar, handle);
+            }
+            return handle;
+        }
+
+        MethodHandle[] specialize(Grammar<?>[] grammars) {
+            MethodHandle[] res = new MethodHandle[grammars.length];
+            for (int i = 0; i < grammars.length; i++) {
+                res[i] = specialize(grammars[i]);
+            }
+            return res;
+        }
+
+        /**
+         * Matcher running the given grammar through the generic tree walker.
+         */
+        MethodHandle generic(Grammar<?> grammar) {
+            return MATCH_PROCESSING.bindTo(grammar);
+        }
+
+        MethodHandle text(String literal, ReduceFunction<?> rf) {
+            return MethodHandles.insertArguments(TEXT, 0, literal, rf);
+        }
+
+        MethodHandle texts(String[] strings, TextTrie trie, List<String> expectedTokens, ReduceFunction<?> rf) {
+            return MethodHandles.insertArguments(TEXTS, 0, strings, trie, expectedTokens, rf);
+        }
+
+        MethodHandle dot(ReduceFunction<?> rf) {
+            return MethodHandles.insertArguments(DOT, 0, rf);
+        }
+
+        MethodHandle range(char from, char to, String expected, ReduceFunction<?> rf) {
+            return MethodHandles.insertArguments(RANGE, 0, from, to, expected, rf);
+        }
+
+        MethodHandle cat(Grammar<?>[] children, ReduceFunction<?> rf) {
+            return MethodHandles.insertArguments(CAT, 0, specialize(children), rf);
+        }
+
+        MethodHandle alt(Grammar<?>[] children, ReduceFunction<?> rf) {
+            return MethodHandles.insertArguments(ALT, 0, specialize(children), rf);
+        }
+
+        MethodHandle quant(int min, int max, Grammar<?> child, ReduceFunction<?> rf) {
+            return MethodHandles.insertArguments(QUANT, 0, min, max, specialize(child), rf);
+        }
+
+        MethodHandle positiveLookAhead(Grammar<?> child, ReduceFunction<?> rf) {
+            return MethodHandles.insertArguments(POSITIVE, 0, specialize(child), rf);
+        }
+
+        MethodHandle negativeLookAhead(Grammar<?> child, ReduceFunction<?> rf) {
+            return MethodHandles.insertArguments(NEGATIVE, 0, specialize(child), rf);
+        }
+
+        /**
+         * Matcher for a rule: a node that may take part in cycles, so it keeps going through
+         * {@link Grammar#matchProcessing(CharSequence, int, Grammar.Options)}. The body is bound through a call site, allowing
+         * it to refer back to the rule itself.
+         */
+        <T> MethodHandle rule(Grammar<T> reference, Grammar<T> body, ReduceFunction<T> rf) {
+            if (body == null) {
+                throw new IllegalStateException("undefined reference grammar");
+            }
+            MutableCallSite site = new MutableCallSite(MATCHER_TYPE);
+            Rule<T> rule = new Rule<>(site.dynamicInvoker(), reference.hasEpsilon(), reference.firstSet());
+            rule.with(rf);
+            // rules are never analyzed, number their slots here (after the one of the compiled grammar):
+            rule.slot = ++rules;
+            MethodHandle handle = generic(rule);
+            handles.put(reference, handle);
+            site.setTarget(specialize(body));
+            return handle;
+        }
+    }
+
+    private static class Rule<T> extends Grammar<T> {
+
+        private final MethodHandle body;
+        private final boolean nullable;
+        private final FirstSet firstSet;
+
+        Rule(MethodHandle body, boolean nullable, FirstSet firstSet) {
+            this.body = body;
+            this.nullable = nullable;
+            this.firstSet = firstSet;
+        }
+
+        @Override
+        protected Pair<ParserResult, List<T>> matchProcessingImpl(CharSequence text, int idx, Options opts) {
+            return invoke(body, text, idx, opts);
+        }
+
+        @Override
+        protected boolean computeHasEpsilon() {
+            return nullable;
+        }
+
+        @Override
+        protected FirstSet firstSet(Function1<Grammar, FirstSet> proxy) {
+            return firstSet;
+        }
+    }
+
+    //======================================================================
+    // SPECIALIZED MATCHERS:
+    //======================================================================
+    private static Pair matched(ReduceFunction rf, CharSequence text, ParserResult.AstNode node, List tags, Options opts) {
+        if (opts.skipProcessing) {
+            tags = EMPTY_LIST;
+        } else if (rf != null) {
+            tags = rf.reduce(text, node, tags);
+        }
+        return new Pair(node, tags);
+    }
+
+    private static Pair text(String literal, ReduceFunction rf, CharSequence text, int idx, Options opts) {
+        opts.examined(idx + literal.length());
+        if (Grammar.startsWith(text, idx, literal)) {
+            return matched(rf, text, new ParserResult.AstNode(idx, literal.length()), EMPTY_LIST, opts);
+        }
+        return opts.failure(idx, literal);
+    }
+
+    private static Pair texts(String[] strings, TextTrie trie, List expectedTokens, ReduceFunction rf, CharSequence text,
+            int idx, Options opts) {
+        opts.examined(idx + trie.maxLength());
+        int i = trie.match(text, idx);
+        if (i >= 0) {
+            return matched(rf, text, new ParserResult.AstNode(idx, strings[i].length()), EMPTY_LIST, opts);
+        }
+        return opts.failure(idx, expectedTokens);
+    }
+
+    private static Pair dot(ReduceFunction rf, CharSequence text, int idx, Options opts) {
+        opts.examined(idx + 1);
+        if (idx < text.length()) {
+            return matched(rf, text, new ParserResult.AstNode(idx, 1), EMPTY_LIST, opts);
+        }
+        return opts.failure(idx, "any char");
+    }
+
+    private static Pair range(char from, char to, String expected, ReduceFunction rf, CharSequence text, int idx,
+            Options opts) {
+        opts.examined(idx + 1);
+        if (idx < text.length()) {
+            char c = text.charAt(idx);
+            if (from <= c && c <= to) {
+                return matched(rf, text, new ParserResult.AstNode(idx, 1), EMPTY_LIST, opts);
+            }
+        }
+        return opts.failure(idx, expected);
+    }
+
+    private static Pair cat(MethodHandle[] children, ReduceFunction rf, CharSequence text, int idx, Options opts)
+            throws Throwable {
+        int length = 0;
+        List tags = EMPTY_LIST;
+        ParserResult.AstNode[] nodes = new ParserResult.AstNode[children.length];
+        for (int i = 0; i < children.length; i++) {
+            Pair res = (Pair) children[i].invokeExact(text, idx + length, opts);
+            if (!(res.getLeft() instanceof ParserResult.AstNode)) {
+                return new Pair(res.getLeft(), EMPTY_LIST);
+            }
+            nodes[i] = (ParserResult.AstNode) res.getLeft();
+            tags = RopeList.concat(tags, (List) res.getRight());
+            length += nodes[i].getLength();
+        }
+        return matched(rf, text, new ParserResult.AstNode(idx, length, nodes), tags, opts);
+    }
+
+    private static Pair alt(MethodHandle[] children, ReduceFunction rf, CharSequence text, int idx, Options opts)
+            throws Throwable {
+        ParserResult.Failure failedRes = null;
+        for (MethodHandle child: children) {
+            Pair res = (Pair) child.invokeExact(text, idx, opts);
+            if (res.getLeft() instanceof ParserResult.AstNode) {
+                return matched(rf, text, (ParserResult.AstNode) res.getLeft(), (List) res.getRight(), opts);
+            }
+            if (!opts.fastFailures) {
+                failedRes = ParserResult.Failure.merge(failedRes, (ParserResult.Failure) res.getLeft());
+            }
+        }
+        return opts.fastFailures ? Grammar.FAST_FAILURE : new Pair(failedRes, EMPTY_LIST);
+    }
+
+    private static Pair quant(int min, int max, MethodHandle child, ReduceFunction rf, CharSequence text, int idx,
+            Options opts) throws Throwable {
+        int initialIdx = idx;
+        List tags = EMPTY_LIST;
+        List<ParserResult.AstNode> nodes = new ArrayList<>(Math.min(max, 10));
+        while (nodes.size() < max) {
+            Pair res = (Pair) child.invokeExact(text, idx, opts);
+            if (!(res.getLeft() instanceof ParserResult.AstNode)) {
+                if (nodes.size() < min) {
+                    return new Pair(res.getLeft(), EMPTY_LIST);
+                }
+                break;
+            }
+            ParserResult.AstNode node = (ParserResult.AstNode) res.getLeft();
+            nodes.add(node);
+            tags = RopeList.concat(tags, (List) res.getRight());
+            idx += node.getLength();
+            if (node.getLength() == 0 && max == Integer.MAX_VALUE) {
+                throw new IllegalStateException("infinite loop after infinite epsilon match");
+            }
+        }
+        return matched(rf, text, new ParserResult.AstNode(initialIdx, idx - initialIdx,
+                nodes.toArray(new ParserResult.AstNode[nodes.size()])), tags, opts);
+    }
+
+    private static Pair positive(MethodHandle child, ReduceFunction rf, CharSequence text, int idx, Options opts)
+            throws Throwable {
+        Pair res = (Pair) child.invokeExact(text, idx, opts);
+        if (res.getLeft() instanceof ParserResult.AstNode) {
+            return matched(rf, text, new ParserResult.AstNode(idx, 0,
+                    new ParserResult.AstNode[]{(ParserResult.AstNode) res.getLeft()}), EMPTY_LIST, opts);
+        }
+        return new Pair(res.getLeft(), EMPTY_LIST);
+    }
+
+    private static Pair negative(MethodHandle child, ReduceFunction rf, CharSequence text, int idx, Options opts)
+            throws Throwable {
+        Pair res = (Pair) child.invokeExact(text, idx, opts);
+        if (res.getLeft() instanceof ParserResult.AstNode) {
+            return opts.failure(idx, "<negative lookahead>");
+        }
+        return matched(rf, text, new ParserResult.AstNode(idx, 0), EMPTY_LIST, opts);
+    }
+}
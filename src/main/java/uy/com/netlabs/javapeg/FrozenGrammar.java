@@ -0,0 +1,150 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package uy.com.netlabs.javapeg;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import uy.com.netlabs.javapeg.util.Function1;
+import uy.com.netlabs.javapeg.util.Pair;
+
+/**
+ * An immutable grammar, as returned by {@link Grammar#freeze()}, safe to share between threads.
+ *
+ * The frozen graph is reached only through a final field, so any thread that sees this object also sees the graph as
+ * it was when frozen. Parse contexts ({@link Grammar.Options}) are pooled and reused across parses, instead of being
+ * allocated for each one.
+ *
+ * @author fran
+ * @param <T> tag's generic type
+ */
+public final class FrozenGrammar<T> extends Grammar<T> {
+
+    private final Grammar<T> root;
+    private final ConcurrentLinkedQueue<Options> pool = new ConcurrentLinkedQueue<>();
+
+    FrozenGrammar(Grammar<T> root) {
+        this.root = root;
+        this.frozen = true;
+        hasEpsilon();   // caches it before publication
+    }
+
+    /**
+     * Like {@link Grammar#matchProcessing(CharSequence)}, but with a pooled parse context. Parses are reported to the
+     * {@link Grammar#setParseListener(ParseListener) parse listener} as this grammar's.
+     */
+    public Pair<ParserResult, List<T>> parse(CharSequence text) {
+        ParseListener listener = getParseListener();
+        Object context = listener == null ? null : listener.parsing(this, text);
+        long start = listener == null ? 0 : System.nanoTime();
+        Options opts = pool.poll();
+        if (opts == null) {
+            opts = new Options();
+        }
+        opts.fastFailures = true;
+        // options of a parse that threw are simply dropped, they may have dirty slots:
+        Pair<ParserResult, List<T>> res = root.matchProcessing(text, 0, opts);
+        int farthestFailure = opts.farthestFailure;
+        opts.reset();
+        pool.offer(opts);
+        if (!res.getLeft().isMatched()) {
+            res = root.diagnose(text, 0);
+        }
+        if (listener != null) {
+            listener.parsed(context, this, text, res.getLeft(), farthestFailure, System.nanoTime() - start);
+        }
+        return res;
+    }
+
+    /**
+     * Parses every text in the calling thread.
+     *
+     * @return the results, in the same order as the texts
+     */
+    public List<Pair<ParserResult, List<T>>> parseAll(Collection<? extends CharSequence> texts) {
+        List<Pair<ParserResult, List<T>>> results = new ArrayList<>(texts.size());
+        for (CharSequence text: texts) {
+            results.add(parse(text));
+        }
+        return results;
+    }
+
+    /**
+     * Parses every text as a separate task of the executor (which may well run them on virtual threads).
+     *
+     * @return the results, in the same order as the texts
+     */
+    public List<Pair<ParserResult, List<T>>> parseAll(Collection<? extends CharSequence> texts,
+            ExecutorService executor) throws InterruptedException {
+        List<Future<Pair<ParserResult, List<T>>>> futures = new ArrayList<>(texts.size());
+        for (final CharSequence text: texts) {
+            futures.add(executor.submit(new Callable<Pair<ParserResult, List<T>>>() {
+                @Override
+                public Pair<ParserResult, List<T>> call() {
+                    return parse(text);
+                }
+            }));
+        }
+        List<Pair<ParserResult, List<T>>> results = new ArrayList<>(texts.size());
+        for (Future<Pair<ParserResult, List<T>>> future: futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw (Error) e.getCause();
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public FrozenGrammar<T> freeze() {
+        return this;
+    }
+
+    @Override
+    public List<Grammar<?>> children() {
+        return Collections.<Grammar<?>>singletonList(root);
+    }
+
+    @Override
+    protected Pair<ParserResult, List<T>> matchProcessingImpl(CharSequence text, int idx, Options opts) {
+        return root.matchProcessing(text, idx, opts);
+    }
+
+    @Override
+    protected int recognizeImpl(CharSequence text, int idx, Options opts) {
+        return root.recognize(text, idx, opts);
+    }
+
+    @Override
+    protected boolean computeHasEpsilon() {
+        return root.hasEpsilon();
+    }
+
+    @Override
+    protected FirstSet firstSet(Function1<Grammar, FirstSet> proxy) {
+        return proxy.apply(root);
+    }
+
+    @Override
+    protected void assemble(ParsingMachine.Assembler asm) {
+        asm.assemble(root);
+    }
+
+    @Override
+    protected boolean isMemoizable() {
+        return false;
+    }
+}
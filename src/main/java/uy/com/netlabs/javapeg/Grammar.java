@@ -5,14 +5,21 @@
  */
 package uy.com.netlabs.javapeg;
 
+import java.lang.invoke.MethodHandle;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import static java.util.Collections.EMPTY_LIST;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
-import uy.com.netlabs.javapeg.util.FastSnocList;
+import java.util.concurrent.TimeUnit;
 import uy.com.netlabs.javapeg.util.Function1;
-import uy.com.netlabs.javapeg.util.Function2;
 import uy.com.netlabs.javapeg.util.Pair;
+import uy.com.netlabs.javapeg.util.RopeList;
+import uy.com.netlabs.javapeg.util.TextTrie;
 
 /**
  *
@@ -21,37 +28,225 @@ import uy.com.netlabs.javapeg.util.Pair;
  */
 public abstract class Grammar<T> {
 
-    public final int WARNING_UNDEFINED_THUNK = 1;
-    public final int WARNING_LEFT_RECURSION = 2;
-    public final int WARNING_EPSILON_QUANTIFICATION = 4;
+    /**
+     * Warnings found by {@link #analyze()}: a reference grammar was never set.
+     */
+    public static final int WARNING_UNDEFINED_THUNK = 1;
+    /**
+     * Some grammar may be matched again at the same position while being matched.
+     */
+    public static final int WARNING_LEFT_RECURSION = 2;
+    /**
+     * An unbounded repetition of a grammar matching the empty string, which fails at run time when it does.
+     */
+    public static final int WARNING_EPSILON_QUANTIFICATION = 4;
 
     protected ReduceFunction<T> reduceFunction = null;
     private Boolean hasEpsilon = null;
+    private static volatile ParseListener parseListener = null;
+    /**
+     * Number of this grammar in the graph {@link #analyze()} last found it in (its index in {@link #reachable()}),
+     * choosing its slot in {@link Options}, whose arrays are then as large as that graph. A grammar shared by graphs
+     * analyzed separately may share its number with another grammar of one of them, see {@link Options#slot(Grammar)}.
+     */
+    int slot = 0;
+    /**
+     * Whether this grammar may be matched again at the same position while being matched (through left recursion),
+     * as found by {@link #prepare()} for the graph {@code shape}. Until then, it is assumed that it may.
+     */
+    private boolean leftRecursive = true;
+    Shape shape = null;
+    private int shapeVersion;
+    /**
+     * Set by {@link #freeze()}, after which the grammar refuses to change.
+     */
+    boolean frozen = false;
 
     public Grammar<T> with(ReduceFunction<T> f) {
+        checkNotFrozen();
         reduceFunction = f;
         return this;
     }
 
+    /**
+     * The grammars this one is directly built from, in order.
+     *
+     * @return the children, or null for grammars that do not tell them (those not overriding this method)
+     */
+    public List<Grammar<?>> children() {
+        return null;
+    }
+
+    /**
+     * The children that may be matched at the same position this grammar is matched at.
+     */
+    List<Grammar<?>> leftChildren(Function1<Grammar, FirstSet> firstSets) {
+        return children();
+    }
+
+    /**
+     * Collects this grammar and every grammar reachable from it, in breadth first order.
+     */
+    List<Grammar<?>> reachable() {
+        List<Grammar<?>> nodes = new ArrayList<>();
+        IdentityHashMap<Grammar<?>, Boolean> seen = new IdentityHashMap<>();
+        nodes.add(this);
+        seen.put(this, true);
+        for (int i = 0; i < nodes.size(); i++) {
+            List<Grammar<?>> children = nodes.get(i).children();
+            if (children == null) {
+                continue;
+            }
+            for (Grammar<?> child: children) {
+                if (child != null && seen.put(child, true) == null) {
+                    nodes.add(child);
+                }
+            }
+        }
+        return nodes;
+    }
+
     //======================================================================
     // MATCH SECTION:
     //======================================================================
-    public final ParserResult match(String text) {
+    public final ParserResult match(CharSequence text) {
+        return match(text, new Options());
+    }
+
+    /**
+     * Like {@link #match(CharSequence)}, within the limits of opts (see {@link Options#withStepBudget(long)} and
+     * {@link Options#withTimeout(long, TimeUnit)}), and with its memo table and profiler if any.
+     *
+     * @param opts options not used by any other parse
+     * @return the AST, a failure, or a {@link ParserResult.Aborted} if the parse went beyond the limits
+     */
+    public final ParserResult match(CharSequence text, Options opts) {
+        ParseListener listener = parseListener;
+        Object context = listener == null ? null : listener.parsing(this, text);
+        long start = listener == null ? 0 : System.nanoTime();
+        opts.skipProcessing = true;
+        opts.fastFailures = true;
+        ParserResult res;
+        try {
+            res = prepare().matchProcessing(text, 0, opts).getLeft();
+            if (!res.isMatched()) {
+                res = diagnose(text, 0, opts).getLeft();
+            }
+        } catch (Options.AbortedException e) {
+            opts.clearSlots();
+            res = e.getResult();
+        }
+        if (listener != null) {
+            listener.parsed(context, this, text, res, opts.farthestFailure, System.nanoTime() - start);
+        }
+        return res;
+    }
+
+    public final Pair<ParserResult, List<T>> matchProcessing(CharSequence text) {
+        return matchProcessing(text, new Options());
+    }
+
+    /**
+     * Like {@link #matchProcessing(CharSequence)}, within the limits of opts, see
+     * {@link #match(CharSequence, Options)}.
+     */
+    public final Pair<ParserResult, List<T>> matchProcessing(CharSequence text, Options opts) {
+        ParseListener listener = parseListener;
+        Object context = listener == null ? null : listener.parsing(this, text);
+        long start = listener == null ? 0 : System.nanoTime();
+        opts.fastFailures = true;
+        Pair<ParserResult, List<T>> res;
+        try {
+            res = prepare().matchProcessing(text, 0, opts);
+            if (!res.getLeft().isMatched()) {
+                res = diagnose(text, 0, opts);
+            }
+        } catch (Options.AbortedException e) {
+            opts.clearSlots();
+            res = new Pair<ParserResult, List<T>>(e.getResult(), EMPTY_LIST);
+        }
+        if (listener != null) {
+            listener.parsed(context, this, text, res.getLeft(), opts.farthestFailure, System.nanoTime() - start);
+        }
+        return res;
+    }
+
+    /**
+     * Sets the listener told about every parse started with {@link #match(CharSequence)},
+     * {@link #matchProcessing(CharSequence)} or {@link #recognize(CharSequence)}, of any grammar.
+     *
+     * @param listener the listener, or null (the default) to stop listening
+     */
+    public static void setParseListener(ParseListener listener) {
+        parseListener = listener;
+    }
+
+    public static ParseListener getParseListener() {
+        return parseListener;
+    }
+
+    /**
+     * Matches again, with detailed failures and without processing, a text that failed to match with
+     * {@link Options#fastFailures}, to find out where and why it failed.
+     */
+    final Pair<ParserResult, List<T>> diagnose(CharSequence text, int idx) {
+        Options opts = new Options();
+        opts.skipProcessing = true;
+        return matchProcessing(text, idx, opts);
+    }
+
+    /**
+     * Like {@link #diagnose(CharSequence, int)}, within what is left of the limits of the options that failed, and
+     * with a memo table like theirs: without one, a grammar that needed it backtracks exponentially on the second pass.
+     */
+    final Pair<ParserResult, List<T>> diagnose(CharSequence text, int idx, Options failed) {
         Options opts = new Options();
         opts.skipProcessing = true;
-        return matchProcessing(text, 0, opts).getLeft();
+        opts.memo = failed.memo == null ? null : failed.memo.fresh();
+        opts.deadline = failed.deadline;
+        opts.steps = failed.steps;
+        opts.withStepBudget(failed.stepBudget);
+        return matchProcessing(text, idx, opts);
     }
 
-    public final Pair<ParserResult, List<T>> matchProcessing(String text) {
-        return matchProcessing(text, 0, new Options());
+    public final Pair<ParserResult, List<T>> matchProcessing(CharSequence text, int idx, Options opts) {
+        if (opts.profiler != null) {
+            return opts.profiler.matchProcessing(this, text, idx, opts);
+        }
+        return matchProcessingUnprofiled(text, idx, opts);
     }
 
-    public final Pair<ParserResult, List<T>> matchProcessing(String text, int idx, Options opts) {
-        Integer prevIdx = opts.positionsForLeftRecursionDetection.get(this);
-        if (prevIdx != null && prevIdx == idx) {
-            throw new IllegalStateException("Left recursion detected.");
+    final Pair<ParserResult, List<T>> matchProcessingUnprofiled(CharSequence text, int idx, Options opts) {
+        if (--opts.countdown < 0) {
+            opts.checkLimits(idx);
+        }
+        boolean checked = mayRecurseInPlace();
+        int slot = 0, prevIdx = 0;
+        if (checked) {
+            slot = opts.slot(this);
+            prevIdx = opts.positions[slot];
+            if (prevIdx == idx + 1 && !(this instanceof MutableReferenceGrammar)) {
+                // reference grammars grow left recursion themselves, any other cycle must go through one of them
+                throw new IllegalStateException("Left recursion detected.");
+            }
+            opts.positions[slot] = idx + 1;
+        }
+        MemoTable memo = isMemoizable() ? opts.memo : null;
+        int outerExaminedEnd = 0;
+        int seedUses = opts.seedUses;
+        if (memo != null) {
+            MemoTable.Entry cached = memo.get(this, idx);
+            if (cached != null) {
+                if (checked) {
+                    opts.leave(this, slot, prevIdx);
+                }
+                opts.examined(cached.getExaminedEnd());
+                return cached.getResult();
+            }
+            // measure what this match alone examines:
+            outerExaminedEnd = opts.examinedEnd;
+            opts.examinedEnd = idx;
         }
-        opts.positionsForLeftRecursionDetection.put(this, idx);
         Pair<ParserResult, List<T>> res = matchProcessingImpl(text, idx, opts);
 //        System.out.println(":text=" + text + ", idx=" + idx + ", res=" + res + ", rf=" + reduceFunction + ", tags=" + res.getRight());
         List<T> newTags;
@@ -62,42 +257,1043 @@ public abstract class Grammar<T> {
         } else {
             newTags = reduceFunction.reduce(text, (ParserResult.AstNode) res.getLeft(), res.getRight());
         }
-        opts.positionsForLeftRecursionDetection.put(this, prevIdx);
-        return new Pair<>(res.getLeft(), newTags);
+        if (checked) {
+            opts.leave(this, slot, prevIdx);
+        }
+        Pair<ParserResult, List<T>> result = new Pair<>(res.getLeft(), newTags);
+        if (memo != null) {
+            if (opts.seedUses == seedUses) {
+                // results depending on a left recursion seed still growing are provisional, never stored
+                memo.put(this, idx, new MemoTable.Entry(result, opts.examinedEnd));
+            }
+            opts.examined(outerExaminedEnd);
+        }
+        return result;
+    }
+
+    protected abstract Pair<ParserResult, List<T>> matchProcessingImpl(CharSequence text, int idx, Options opts);
+
+    //======================================================================
+    // RECOGNITION SECTION:
+    //======================================================================
+    /**
+     * Checks whether this grammar matches at the start of text, as {@link #match(CharSequence)} does, but building no
+     * AST: only the end of every match and the position of every failure are tracked. Packrat memo tables are not
+     * used.
+     *
+     * @return on success, a single node spanning the match (without children); otherwise a failure at the position
+     * {@link #match(CharSequence)} would report, whose expected tokens are found (by matching again) only if asked for
+     */
+    public final ParserResult recognize(CharSequence text) {
+        return recognize(text, new Options());
+    }
+
+    /**
+     * Like {@link #recognize(CharSequence)}, within the limits of opts, see {@link #match(CharSequence, Options)}.
+     */
+    public final ParserResult recognize(CharSequence text, Options opts) {
+        ParseListener listener = parseListener;
+        Object context = listener == null ? null : listener.parsing(this, text);
+        long start = listener == null ? 0 : System.nanoTime();
+        opts.skipProcessing = true;
+        ParserResult res;
+        try {
+            int end = prepare().recognize(text, 0, opts);
+            res = end >= 0 ? new ParserResult.AstNode(0, end)
+                    : new ParserResult.Failure(~end, new RecognizedExpectedTokens(text));
+        } catch (Options.AbortedException e) {
+            opts.clearSlots();
+            res = e.getResult();
+        }
+        if (listener != null) {
+            listener.parsed(context, this, text, res, opts.farthestFailure, System.nanoTime() - start);
+        }
+        return res;
+    }
+
+    /**
+     * Recognition counterpart of {@link #matchProcessing(CharSequence, int, Options)}.
+     *
+     * @return the end of the match, or the bitwise complement ({@code ~}) of the failure position
+     */
+    public final int recognize(CharSequence text, int idx, Options opts) {
+        if (opts.profiler != null) {
+            return opts.profiler.recognize(this, text, idx, opts);
+        }
+        return recognizeUnprofiled(text, idx, opts);
+    }
+
+    final int recognizeUnprofiled(CharSequence text, int idx, Options opts) {
+        if (--opts.countdown < 0) {
+            opts.checkLimits(idx);
+        }
+        boolean checked = mayRecurseInPlace();
+        int slot = 0, prevIdx = 0;
+        if (checked) {
+            slot = opts.slot(this);
+            prevIdx = opts.positions[slot];
+            if (prevIdx == idx + 1 && !(this instanceof MutableReferenceGrammar)) {
+                throw new IllegalStateException("Left recursion detected.");
+            }
+            opts.positions[slot] = idx + 1;
+        }
+        int res = recognizeImpl(text, idx, opts);
+        if (checked) {
+            opts.leave(this, slot, prevIdx);
+        }
+        return res;
+    }
+
+    /**
+     * Matches this grammar at idx without building its result. Grammars without a specialized recognizer are matched
+     * with {@link #matchProcessingImpl(CharSequence, int, Options)}, so opts must skip processing.
+     *
+     * @return the end of the match, or the bitwise complement ({@code ~}) of the failure position
+     */
+    protected int recognizeImpl(CharSequence text, int idx, Options opts) {
+        ParserResult res = matchProcessingImpl(text, idx, opts).getLeft();
+        if (res instanceof ParserResult.AstNode) {
+            return idx + ((ParserResult.AstNode) res).getLength();
+        }
+        return ~res.getIdx();
     }
 
-    protected abstract Pair<ParserResult, List<T>> matchProcessingImpl(String text, int idx, Options opts);
+    /**
+     * Expected tokens of a failed recognition, found by matching the text again the first time they are needed.
+     */
+    private class RecognizedExpectedTokens extends AbstractList<String> {
+
+        private final CharSequence text;
+        private List<String> tokens = null;
+
+        RecognizedExpectedTokens(CharSequence text) {
+            this.text = text;
+        }
+
+        private List<String> tokens() {
+            if (tokens == null) {
+                tokens = ((ParserResult.Failure) match(text)).getExpectedTokens();
+            }
+            return tokens;
+        }
+
+        @Override
+        public String get(int index) {
+            return tokens().get(index);
+        }
+
+        @Override
+        public int size() {
+            return tokens().size();
+        }
+    }
+
+    /**
+     * Whether the literal appears in text at idx, comparing in place instead of copying a substring.
+     */
+    static boolean startsWith(CharSequence text, int idx, String literal) {
+        int length = literal.length();
+        if (idx + length > text.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (text.charAt(idx + i) != literal.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether results of this grammar are worth storing in the packrat {@link MemoTable}. Terminals are cheaper to
+     * re-match than to look up, so they opt out.
+     */
+    protected boolean isMemoizable() {
+        return true;
+    }
 
     //======================================================================
     // HAS_EPSILON SECTION:
     //======================================================================
+    /**
+     * Whether this grammar may match the empty string, as found by {@link #analyze()} (run on first use and whenever
+     * a reference grammar changed).
+     */
     public boolean hasEpsilon() {
-        if (hasEpsilon != null) {
-            return hasEpsilon;
+        if (hasEpsilon == null || (!frozen && isStale())) {
+            if (frozen) {
+                // only the wrapper made by freeze() was not analyzed along with the rest
+                hasEpsilon = computeHasEpsilon();
+            } else {
+                analyze();
+            }
         }
-        final HashMap<Grammar, Integer> processing = new HashMap<>();
-        final Function2<Grammar, Integer, Boolean> proxy = new Function2<Grammar, Integer, Boolean>() {
+        return hasEpsilon;
+    }
+
+    /**
+     * Tells whether this grammar may match the empty string, given what {@link #hasEpsilon()} currently answers for
+     * its children. {@link #analyze()} calls it until nothing changes, starting with every answer false.
+     */
+    protected abstract boolean computeHasEpsilon();
+
+    //======================================================================
+    // FIRST SET SECTION:
+    //======================================================================
+    /**
+     * Computes the chars that may start a match of this grammar. Cycles are cut by answering {@link FirstSet#UNKNOWN}
+     * for grammars still being computed, which is always a safe over-approximation.
+     */
+    public FirstSet firstSet() {
+        return firstSets().apply(this);
+    }
+
+    /**
+     * A function computing first sets, remembering them across calls.
+     */
+    static Function1<Grammar, FirstSet> firstSets() {
+        final IdentityHashMap<Grammar, FirstSet> computed = new IdentityHashMap<>();
+        return new Function1<Grammar, FirstSet>() {
             @Override
-            public Boolean apply(Grammar g, Integer nonEmptyCount) {
-                Integer previousNonEmptyCount = processing.get(g);
-                if (previousNonEmptyCount != null) {
-                    return nonEmptyCount != previousNonEmptyCount;
+            public FirstSet apply(Grammar g) {
+                if (g == null) {
+                    return FirstSet.UNKNOWN;
+                }
+                FirstSet fs = computed.get(g);
+                if (fs == null) {
+                    computed.put(g, FirstSet.UNKNOWN);
+                    fs = g.firstSet(this);
+                    computed.put(g, fs);
                 }
-                processing.put(g, nonEmptyCount);
-                hasEpsilon = hasEpsilon(this, nonEmptyCount);
-                processing.remove(g);
-                return hasEpsilon;
+                return fs;
             }
         };
-        return hasEpsilon(proxy, 0);
     }
 
-    protected abstract boolean hasEpsilon(Function2<Grammar, Integer, Boolean> proxy, Integer nonEmptyCount);
+    /**
+     * Computes the first set of this grammar, obtaining the ones of its children through the proxy. Grammars not
+     * overriding it may start with anything, including the empty string.
+     */
+    protected FirstSet firstSet(Function1<Grammar, FirstSet> proxy) {
+        return FirstSet.UNKNOWN;
+    }
+
+    public static final class FirstSet {
+
+        public static final FirstSet UNKNOWN = new FirstSet(new BitSet(0), true, true);
+        public static final FirstSet EMPTY = new FirstSet(new BitSet(0), false, true);
+
+        private final BitSet chars;
+        private final boolean anyChar, nullable;
+
+        public FirstSet(BitSet chars, boolean anyChar, boolean nullable) {
+            this.chars = chars;
+            this.anyChar = anyChar;
+            this.nullable = nullable;
+        }
+
+        /**
+         * Whether a match may start with the given char.
+         */
+        public boolean mayStartWith(char c) {
+            return anyChar || nullable || chars.get(c);
+        }
+
+        /**
+         * Whether a match may happen at the end of the input.
+         */
+        public boolean isNullable() {
+            return nullable;
+        }
+
+        /**
+         * Whether a match may start with any char, so it tells nothing about the input.
+         */
+        public boolean isAnyChar() {
+            return anyChar || nullable;
+        }
+
+        public BitSet getChars() {
+            return chars;
+        }
+
+        /**
+         * The first set of the sequence of this grammar followed by the one of next.
+         */
+        public FirstSet then(FirstSet next) {
+            if (!nullable) {
+                return this;
+            }
+            return union(next).withNullable(next.nullable);
+        }
+
+        public FirstSet union(FirstSet other) {
+            BitSet union = (BitSet) chars.clone();
+            union.or(other.chars);
+            return new FirstSet(union, anyChar || other.anyChar, nullable || other.nullable);
+        }
+
+        public FirstSet withNullable(boolean nullable) {
+            return nullable == this.nullable ? this : new FirstSet(chars, anyChar, nullable);
+        }
+    }
+
+    //======================================================================
+    // SPECIALIZATION SECTION:
+    //======================================================================
+    /**
+     * Specializes this grammar into method handles with literals, ranges and children bound as constants, letting the
+     * JIT inline whole rules. The result is a drop-in grammar honouring every reduce function of this one.
+     *
+     * @return a snapshot of this grammar, unaffected by further changes to it
+     */
+    public Grammar<T> compile() {
+        return new CompiledGrammar<>(this);
+    }
+
+    /**
+     * Builds the method handle matching this grammar, of type {@code (String, int, Options)Pair}. Grammars without a
+     * specialized form are matched through the generic tree walker.
+     */
+    protected MethodHandle specialize(CompiledGrammar.Specializer s) {
+        return s.generic(this);
+    }
+
+    //======================================================================
+    // PARSING MACHINE SECTION:
+    //======================================================================
+    /**
+     * Emits the instructions matching this grammar, leaving exactly one node on the machine's node stack on success.
+     * Grammars unknown to the machine are matched by calling back into the tree walker.
+     */
+    protected void assemble(ParsingMachine.Assembler asm) {
+        asm.emit(ParsingMachine.EXTERN, asm.constant(this));
+    }
+
+    //======================================================================
+    // FREEZE SECTION:
+    //======================================================================
+    /**
+     * Makes this grammar, and every grammar reachable from it, immutable: reduce functions and references can no
+     * longer be changed, and all the state otherwise computed lazily while matching is computed now. The returned
+     * grammar publishes the whole graph safely, so it can be shared between threads without further synchronization
+     * (as long as the reduce functions themselves are thread safe).
+     *
+     * @throws IllegalStateException if some reference grammar was never set
+     */
+    public FrozenGrammar<T> freeze() {
+        List<Grammar<?>> nodes = reachable();
+        for (Grammar<?> g: nodes) {
+            if (g.children() != null && g.children().contains(null)) {
+                throw new IllegalStateException("Cannot freeze a grammar with undefined references.");
+            }
+        }
+        prepare();
+        for (Grammar<?> g: nodes) {
+            g.precompute();
+            g.frozen = true;
+        }
+        return new FrozenGrammar<>(this);
+    }
+
+    /**
+     * Computes ahead of time whatever this grammar would otherwise compute lazily while matching.
+     */
+    void precompute() {
+    }
+
+    //======================================================================
+    // OPTIMIZATION SECTION:
+    //======================================================================
+    /**
+     * Rewrites this grammar into one giving the same results (ASTs, tags and failures) with less work:
+     * <ul>
+     * <li>reference grammars without reduce functions that are not part of a cycle are replaced by what they refer
+     * to;</li>
+     * <li>alternations are merged into the alternations they are nested in, and those with a single child dropped;</li>
+     * <li>alternations among single code points become a {@link CharClassGrammar}, and those among literals an
+     * {@link AltTextsGrammar};</li>
+     * <li>runs of adjacent literals in a sequence are compared against the input at once;</li>
+     * <li>repetitions of a single code point scan the input in a tight loop.</li>
+     * </ul>
+     * Nested sequences are kept as they are, since every one of them gives a node of its own. Grammars with reduce
+     * functions are never removed, but their children are still rewritten. This grammar is left untouched, and shares
+     * with the result the parts that need no rewriting (such as terminals, or grammar subclasses unknown here).
+     *
+     * @throws IllegalStateException if some reference grammar was never set
+     */
+    public Grammar<T> optimize() {
+        return new Optimizer(this).rewrite(this);
+    }
+
+    private static final class Optimizer {
+
+        private final IdentityHashMap<Grammar<?>, Grammar<?>> rewritten = new IdentityHashMap<>();
+        private final IdentityHashMap<Grammar<?>, Boolean> onCycle = new IdentityHashMap<>();
+
+        Optimizer(Grammar<?> root) {
+            List<Grammar<?>> nodes = root.reachable();
+            IdentityHashMap<Grammar<?>, Integer> index = new IdentityHashMap<>();
+            for (int i = 0; i < nodes.size(); i++) {
+                index.put(nodes.get(i), i);
+            }
+            int[][] edges = new int[nodes.size()][];
+            for (int i = 0; i < nodes.size(); i++) {
+                List<Grammar<?>> children = nodes.get(i).children();
+                if (children == null) {
+                    children = Collections.emptyList();
+                } else if (children.contains(null)) {
+                    throw new IllegalStateException("Cannot optimize a grammar with undefined references.");
+                }
+                edges[i] = new int[children.size()];
+                for (int j = 0; j < children.size(); j++) {
+                    edges[i][j] = index.get(children.get(j));
+                }
+            }
+            boolean[] cyclic = new boolean[nodes.size()];
+            markCycles(edges, cyclic);
+            for (int i = 0; i < nodes.size(); i++) {
+                if (cyclic[i]) {
+                    onCycle.put(nodes.get(i), true);
+                }
+            }
+        }
+
+        <T> Grammar<T> rewrite(Grammar<T> g) {
+            Grammar<T> res = (Grammar<T>) rewritten.get(g);
+            if (res == null) {
+                res = rewriteNode(g);
+                rewritten.put(g, res);
+            }
+            return res;
+        }
+
+        private <T> Grammar<T> rewriteNode(Grammar<T> g) {
+            Class<?> c = g.getClass();
+            if (c == MutableReferenceGrammar.class) {
+                MutableReferenceGrammar<T> ref = (MutableReferenceGrammar<T>) g;
+                if (ref.reduceFunction == null && !onCycle.containsKey(ref)) {
+                    return rewrite(ref.child);
+                }
+                MutableReferenceGrammar<T> copy = new MutableReferenceGrammar<>();
+                copy.reduceFunction = ref.reduceFunction;
+                rewritten.put(ref, copy);   // before its child, which may lead back to it
+                copy.setGrammar(rewrite(ref.child));
+                return copy;
+            } else if (c == CatGrammar.class) {
+                return rewriteCat((CatGrammar<T>) g);
+            } else if (c == AltGrammar.class) {
+                return rewriteAlt((AltGrammar<T>) g);
+            } else if (c == QuantGrammar.class) {
+                QuantGrammar<T> quant = (QuantGrammar<T>) g;
+                Grammar<T> child = rewrite(quant.child);
+                CharClassGrammar<T> charClass = CharClassGrammar.fromAlternatives(child);
+                return withReduce(charClass != null ? new SpanGrammar<>(quant.min, quant.max, charClass)
+                        : new QuantGrammar<>(quant.min, quant.max, child), g);
+            } else if (c == PositiveLookAhead.class) {
+                return withReduce(new PositiveLookAhead<>(rewrite(((PositiveLookAhead<T>) g).child)), g);
+            } else if (c == NegativeLookAhead.class) {
+                return withReduce(new NegativeLookAhead<>(rewrite(((NegativeLookAhead<T>) g).child)), g);
+            } else if (c == AdapterGrammar.class) {
+                AdapterGrammar adapter = (AdapterGrammar) g;
+                return withReduce(new AdapterGrammar(rewrite(adapter.gram), adapter.adapterFunction), g);
+            }
+            return g;
+        }
+
+        private <T> Grammar<T> rewriteCat(CatGrammar<T> cat) {
+            Grammar<T>[] children = new Grammar[cat.children.length];
+            boolean adjacentLiterals = false;
+            for (int i = 0; i < children.length; i++) {
+                children[i] = rewrite(cat.children[i]);
+                adjacentLiterals |= i > 0 && isLiteral(children[i - 1]) && isLiteral(children[i]);
+            }
+            return withReduce(adjacentLiterals ? new FusedCatGrammar<>(children) : new CatGrammar<>(children), cat);
+        }
+
+        private <T> Grammar<T> rewriteAlt(AltGrammar<T> alt) {
+            List<Grammar<T>> alternatives = new ArrayList<>();
+            for (Grammar<T> child: alt.children) {
+                Grammar<T> g = rewrite(child);
+                if (g.getClass() == AltGrammar.class && g.reduceFunction == null) {
+                    alternatives.addAll(Arrays.asList(((AltGrammar<T>) g).children));
+                } else if (g.getClass() == AltTextsGrammar.class && g.reduceFunction == null) {
+                    alternatives.addAll(Arrays.asList(((AltTextsGrammar<T>) g).children));
+                } else {
+                    alternatives.add(g);
+                }
+            }
+            Grammar<T>[] children = alternatives.toArray(new Grammar[alternatives.size()]);
+            if (children.length == 1 && alt.reduceFunction == null) {
+                return children[0];
+            }
+            CharClassGrammar<T> charClass = CharClassGrammar.fromAlternatives(children);
+            if (charClass != null) {
+                return withReduce(charClass, alt);
+            }
+            String[] strings = new String[children.length];
+            for (int i = 0; i < children.length && strings != null; i++) {
+                strings = isLiteral(children[i]) && ((TextGrammar) children[i]).text.length() > 0 ? strings : null;
+                if (strings != null) {
+                    strings[i] = ((TextGrammar) children[i]).text;
+                }
+            }
+            return withReduce(strings != null ? new AltTextsGrammar<T>(strings) : new AltGrammar<>(children), alt);
+        }
+
+        private static <T> Grammar<T> withReduce(Grammar<T> g, Grammar<T> original) {
+            g.reduceFunction = original.reduceFunction;
+            return g;
+        }
+    }
+
+    /**
+     * Whether g is a plain literal, matched exactly as any other {@link TextGrammar} would.
+     */
+    static boolean isLiteral(Grammar<?> g) {
+        return g.getClass() == TextGrammar.class && g.reduceFunction == null;
+    }
+
+    //======================================================================
+    // PREPARATION SECTION:
+    //======================================================================
+    /**
+     * Finds which of the grammars reachable from this one may be left recursive, that is, matched again at the same
+     * position while being matched. Only those need to be checked for it at run time, so this saves some work on every
+     * match of all the others. It is done automatically by {@link #match(CharSequence)} and
+     * {@link #matchProcessing(CharSequence)} whenever a reference grammar changed, and must be called explicitly to get
+     * the same benefit when calling {@link #matchProcessing(CharSequence, int, Options)} directly.
+     *
+     * Grammars that do not tell their {@link #children()} hide part of the graph, so if there is any, every grammar
+     * keeps being checked.
+     *
+     * @return this
+     * @see #analyze()
+     */
+    public Grammar<T> prepare() {
+        if (frozen || !isStale()) {
+            return this;
+        }
+        analyze();
+        return this;
+    }
+
+    /**
+     * Analyzes the grammars reachable from this one in a single pass: which ones may match the empty string (a least
+     * fixed point, so cycles are fine), which ones may be left recursive (see {@link #prepare()}), which references
+     * were never set and which unbounded repetitions may loop without consuming anything. What it finds is kept on
+     * the grammars (those not frozen) for {@link #hasEpsilon()} and matching to use, until some reference changes.
+     *
+     * @return the warnings found
+     */
+    public Analysis analyze() {
+        List<Grammar<?>> nodes = reachable();
+        List<Grammar<?>> undefined = new ArrayList<>();
+        boolean[] isUndefined = new boolean[nodes.size()];
+        boolean opaque = false;
+        Shape shape = new Shape();
+        for (int i = 0; i < nodes.size(); i++) {
+            Grammar<?> g = nodes.get(i);
+            List<Grammar<?>> children = g.children();
+            opaque |= children == null;
+            if (children != null && children.contains(null)) {
+                undefined.add(g);
+                isUndefined[i] = true;
+            }
+            if (!g.frozen) {
+                g.hasEpsilon = false;
+                g.adopt(shape);
+                g.slot = i;
+            }
+        }
+        // nullability, children first as reachable() lists them breadth first:
+        for (boolean changed = true; changed;) {
+            changed = false;
+            for (int i = nodes.size() - 1; i >= 0; i--) {
+                Grammar<?> g = nodes.get(i);
+                if (!g.frozen && !g.hasEpsilon && !isUndefined[i] && g.computeHasEpsilon()) {
+                    g.hasEpsilon = true;
+                    changed = true;
+                }
+            }
+        }
+        // left recursion:
+        boolean[] recursive = new boolean[nodes.size()];
+        if (opaque) {
+            Arrays.fill(recursive, true);
+        } else {
+            IdentityHashMap<Grammar<?>, Integer> index = new IdentityHashMap<>();
+            for (int i = 0; i < nodes.size(); i++) {
+                index.put(nodes.get(i), i);
+            }
+            Function1<Grammar, FirstSet> firstSets = firstSets();
+            int[][] edges = new int[nodes.size()][];
+            for (int i = 0; i < nodes.size(); i++) {
+                List<Grammar<?>> left = nodes.get(i).leftChildren(firstSets);
+                edges[i] = new int[left.size()];
+                for (int j = 0; j < left.size(); j++) {
+                    Integer target = index.get(left.get(j));
+                    edges[i][j] = target == null ? i : target; // an undefined reference will fail, say it recurses
+                }
+            }
+            markCycles(edges, recursive);
+        }
+        List<Grammar<?>> leftRecursive = new ArrayList<>(), epsilonLoops = new ArrayList<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            Grammar<?> g = nodes.get(i);
+            if (!g.frozen) {
+                g.leftRecursive = recursive[i];
+            }
+            if (!opaque && recursive[i] && g instanceof MutableReferenceGrammar && g.children().get(0) != null) {
+                leftRecursive.add(g);
+            }
+            if (g instanceof QuantGrammar && ((QuantGrammar<?>) g).max == Integer.MAX_VALUE
+                    && ((QuantGrammar<?>) g).child.hasEpsilon()) {
+                epsilonLoops.add(g);
+            }
+        }
+        return new Analysis(undefined, leftRecursive, epsilonLoops);
+    }
+
+    /**
+     * What {@link #analyze()} found wrong, or worth knowing, about a grammar.
+     */
+    public static final class Analysis {
+
+        private final List<Grammar<?>> undefinedReferences, leftRecursive, epsilonQuantifications;
+
+        Analysis(List<Grammar<?>> undefinedReferences, List<Grammar<?>> leftRecursive,
+                List<Grammar<?>> epsilonQuantifications) {
+            this.undefinedReferences = Collections.unmodifiableList(undefinedReferences);
+            this.leftRecursive = Collections.unmodifiableList(leftRecursive);
+            this.epsilonQuantifications = Collections.unmodifiableList(epsilonQuantifications);
+        }
+
+        /**
+         * @return the WARNING_* flags of the warnings found, or 0
+         */
+        public int getWarnings() {
+            return (undefinedReferences.isEmpty() ? 0 : WARNING_UNDEFINED_THUNK)
+                    | (leftRecursive.isEmpty() ? 0 : WARNING_LEFT_RECURSION)
+                    | (epsilonQuantifications.isEmpty() ? 0 : WARNING_EPSILON_QUANTIFICATION);
+        }
+
+        /**
+         * @return the grammars with an undefined child, i.e. reference grammars never set
+         */
+        public List<Grammar<?>> getUndefinedReferences() {
+            return undefinedReferences;
+        }
+
+        /**
+         * @return the reference grammars lying on left recursive cycles
+         */
+        public List<Grammar<?>> getLeftRecursive() {
+            return leftRecursive;
+        }
+
+        /**
+         * @return the unbounded repetitions of grammars that may match the empty string
+         */
+        public List<Grammar<?>> getEpsilonQuantifications() {
+            return epsilonQuantifications;
+        }
+
+        @Override
+        public String toString() {
+            return "Analysis{" + "undefinedReferences=" + undefinedReferences.size() + ", leftRecursive="
+                    + leftRecursive.size() + ", epsilonQuantifications=" + epsilonQuantifications.size() + '}';
+        }
+    }
+
+    /**
+     * Restores what {@link #prepare()} found for this grammar, as saved by {@link PegLoader}, for the graph shape.
+     */
+    void prepared(boolean leftRecursive, boolean hasEpsilon, int slot, Shape shape) {
+        this.leftRecursive = leftRecursive;
+        this.hasEpsilon = hasEpsilon;
+        this.slot = slot;
+        adopt(shape);
+    }
+
+    /**
+     * Keeps what was found for this grammar as part of shape, until a reference grammar of shape is rebound.
+     */
+    void adopt(Shape shape) {
+        if (this.shape != null) {
+            this.shape.grammars--;
+        }
+        this.shape = shape;
+        shapeVersion = shape.version;
+        shape.grammars++;
+    }
+
+    /**
+     * Whether what {@link #analyze()} found for this grammar is missing or outdated.
+     */
+    final boolean isStale() {
+        Shape s = shape;
+        return s == null || s.version != shapeVersion;
+    }
+
+    /**
+     * A shape for the graph below this grammar that is not analyzed, only bumped when one of its references is
+     * rebound. It counts as kept by one grammar until the caller drops it.
+     */
+    Shape watch() {
+        Shape shape = new Shape();
+        shape.grammars = 1;
+        for (Grammar<?> g: reachable()) {
+            if (g instanceof MutableReferenceGrammar && !g.frozen) {
+                ((MutableReferenceGrammar<?>) g).watchedBy(shape);
+            }
+        }
+        return shape;
+    }
+
+    /**
+     * Whether this grammar has to check for left recursion when matched.
+     */
+    final boolean mayRecurseInPlace() {
+        return leftRecursive || (!frozen && isStale());
+    }
+
+    /**
+     * A graph of grammars analyzed together, see {@link #analyze()}. Rebinding a reference grammar bumps the version
+     * of every shape the reference was found in, so only the grammars of those graphs are analyzed again, while the
+     * grammars of unrelated graphs keep what was found for them.
+     */
+    static final class Shape {
+
+        volatile int version = 0;
+        /**
+         * How many grammars still keep what was found for this shape: once none does, references forget it.
+         */
+        int grammars = 0;
+
+        synchronized void changed() {
+            version++;
+        }
+    }
+
+    /**
+     * Marks the nodes lying on some cycle of the graph, using Tarjan's strongly connected components algorithm
+     * (iteratively, as grammars can be deep).
+     */
+    private static void markCycles(int[][] edges, boolean[] onCycle) {
+        int n = edges.length;
+        int[] order = new int[n], low = new int[n], stack = new int[n], callNode = new int[n], callEdge = new int[n];
+        boolean[] onStack = new boolean[n];
+        int counter = 0, sp = 0;
+        for (int root = 0; root < n; root++) {
+            if (order[root] != 0) {
+                continue;
+            }
+            int depth = 0;
+            callNode[0] = root;
+            callEdge[0] = 0;
+            order[root] = low[root] = ++counter;
+            stack[sp++] = root;
+            onStack[root] = true;
+            while (depth >= 0) {
+                int v = callNode[depth];
+                if (callEdge[depth] < edges[v].length) {
+                    int w = edges[v][callEdge[depth]++];
+                    if (w == v) {
+                        onCycle[v] = true;
+                    } else if (order[w] == 0) {
+                        order[w] = low[w] = ++counter;
+                        stack[sp++] = w;
+                        onStack[w] = true;
+                        callNode[++depth] = w;
+                        callEdge[depth] = 0;
+                    } else if (onStack[w]) {
+                        low[v] = Math.min(low[v], order[w]);
+                    }
+                    continue;
+                }
+                if (low[v] == order[v]) {
+                    int size = 0, w;
+                    do {
+                        w = stack[--sp];
+                        onStack[w] = false;
+                        size++;
+                    } while (w != v);
+                    if (size > 1) {
+                        for (int i = sp; i < sp + size; i++) {
+                            onCycle[stack[i]] = true;
+                        }
+                    }
+                }
+                if (--depth >= 0) {
+                    int parent = callNode[depth];
+                    low[parent] = Math.min(low[parent], low[v]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Result of every failure while {@link Options#fastFailures} is set.
+     */
+    static final Pair FAST_FAILURE = new Pair(new ParserResult.Failure(-1, Collections.<String>emptyList()),
+            EMPTY_LIST);
+
+    void checkNotFrozen() {
+        if (frozen) {
+            throw new IllegalStateException("Grammar is frozen.");
+        }
+    }
 
-    protected static class Options {
+    public static class Options {
 
-        public HashMap<Grammar, Integer> positionsForLeftRecursionDetection = new HashMap<>();
+        /**
+         * For every slot, the grammar whose matches in progress use it (or null), and one plus the position of the
+         * innermost of them (or 0).
+         */
+        Grammar<?>[] owners = new Grammar<?>[16];
+        int[] positions = new int[16];
         public boolean skipProcessing = false;
+        public MemoTable memo = null;
+        /**
+         * High-water mark of the input examined by terminals: one past the last position any of them needed to look
+         * at, which may exceed the input length when a terminal ran out of input. A result whose examinedEnd is within
+         * the input would not change if more input were appended (used by {@link StreamParser}).
+         */
+        public int examinedEnd = 0;
+        /**
+         * Whether failures are reported without details, as a shared result that tells neither where nor why the match
+         * failed, saving their allocation and the merging of expected tokens. The top level
+         * {@link Grammar#match(CharSequence)} and {@link Grammar#matchProcessing(CharSequence)} set it, and match again
+         * with detailed failures only when the whole parse fails. Grammar subclasses must not look at the failures of
+         * their children beyond {@link ParserResult#isMatched()} while it is set.
+         */
+        public boolean fastFailures = false;
+        /**
+         * Farthest position where a terminal failed to match (or -1), tracked whether failures are detailed or not.
+         */
+        public int farthestFailure = -1;
+        /**
+         * When set, every match of every grammar is measured into it (see {@link Profiler}). Left null, profiling
+         * costs a single check per match.
+         */
+        public Profiler profiler = null;
+        /**
+         * Matches to run before looking at the limits again, see {@link #checkLimits(int)}.
+         */
+        static final int CHECK_INTERVAL = 1024;
+        long stepBudget = Long.MAX_VALUE;
+        /**
+         * {@link System#nanoTime()} after which the parse is aborted, or Long.MAX_VALUE for none.
+         */
+        long deadline = Long.MAX_VALUE;
+        /**
+         * Matches run, as counted at the last check.
+         */
+        long steps = 0;
+        int interval = CHECK_INTERVAL, countdown = CHECK_INTERVAL;
+        /**
+         * For every slot of a reference grammar being matched, the left recursion seed of its innermost match.
+         */
+        MutableReferenceGrammar.Seed[] seeds = new MutableReferenceGrammar.Seed[16];
+        /**
+         * Slots lent to the grammars in progress whose own was taken, see {@link #slot(Grammar)}.
+         */
+        IdentityHashMap<Grammar<?>, Integer> lent = null;
+        /**
+         * How many times a seed was used as the result of a recursive call, minus the uses of the grammars whose
+         * growth is already finished.
+         */
+        int seedUses = 0;
+
+        /**
+         * Returns the slot tracking the matches of g in progress, claiming it for g until the outermost of them is
+         * {@link #leave(Grammar, int, int) left}. That is the slot numbered by g, unless a grammar numbered the same
+         * in another graph is in progress there (both graphs being combined afterwards), in which case a free slot is
+         * lent to g.
+         */
+        int slot(Grammar<?> g) {
+            if (lent != null) {
+                Integer slot = lent.get(g);
+                if (slot != null) {
+                    return slot;
+                }
+            }
+            int slot = g.slot;
+            if (slot >= owners.length) {
+                grow(slot + 1);
+            }
+            Grammar<?> owner = owners[slot];
+            if (owner == g) {
+                return slot;
+            }
+            if (owner != null) {
+                slot = 0;
+                while (slot < owners.length && owners[slot] != null) {
+                    slot++;
+                }
+                if (slot == owners.length) {
+                    grow(slot + 1);
+                }
+                if (lent == null) {
+                    lent = new IdentityHashMap<>();
+                }
+                lent.put(g, slot);
+            }
+            owners[slot] = g;
+            return slot;
+        }
+
+        /**
+         * Ends a match of g, restoring the position of the enclosing one, and releasing the slot after the outermost.
+         */
+        void leave(Grammar<?> g, int slot, int prevIdx) {
+            positions[slot] = prevIdx;
+            if (prevIdx == 0) {
+                owners[slot] = null;
+                if (lent != null && lent.remove(g) != null && lent.isEmpty()) {
+                    lent = null;
+                }
+            }
+        }
+
+        private void grow(int size) {
+            size = Math.max(size, 2 * owners.length);
+            owners = Arrays.copyOf(owners, size);
+            positions = Arrays.copyOf(positions, size);
+            seeds = Arrays.copyOf(seeds, size);
+        }
+
+        void examined(int end) {
+            if (end > examinedEnd) {
+                examinedEnd = end;
+            }
+        }
+
+        void failed(int idx) {
+            if (idx > farthestFailure) {
+                farthestFailure = idx;
+            }
+        }
+
+        /**
+         * The result of a terminal failing at idx.
+         */
+        Pair failure(int idx, String expectedToken) {
+            failed(idx);
+            return fastFailures ? FAST_FAILURE : new Pair(new ParserResult.Failure(idx, expectedToken), EMPTY_LIST);
+        }
+
+        Pair failure(int idx, List<String> expectedTokens) {
+            failed(idx);
+            return fastFailures ? FAST_FAILURE : new Pair(new ParserResult.Failure(idx, expectedTokens), EMPTY_LIST);
+        }
+
+        /**
+         * Brings the options of a parse that completed normally back to their initial state, so that they can be
+         * reused for another parse. Per grammar slots are already clean by then.
+         */
+        void reset() {
+            skipProcessing = false;
+            memo = null;
+            examinedEnd = 0;
+            fastFailures = false;
+            farthestFailure = -1;
+            seedUses = 0;
+            stepBudget = Long.MAX_VALUE;
+            deadline = Long.MAX_VALUE;
+            steps = 0;
+            interval = countdown = CHECK_INTERVAL;
+        }
+
+        /**
+         * Cleans the per grammar slots left behind by a parse that was aborted halfway.
+         */
+        void clearSlots() {
+            Arrays.fill(owners, null);
+            Arrays.fill(positions, 0);
+            Arrays.fill(seeds, null);
+            lent = null;
+            seedUses = 0;
+        }
+
+        /**
+         * Counts the matches run since the last check, and aborts the parse if it went beyond its limits.
+         */
+        void checkLimits(int idx) {
+            steps += interval + 1;
+            if (steps > stepBudget) {
+                throw new AbortedException(new ParserResult.Aborted(Math.max(idx, farthestFailure),
+                        ParserResult.Aborted.Reason.STEP_BUDGET, steps));
+            }
+            if (deadline != Long.MAX_VALUE && System.nanoTime() - deadline > 0) {
+                throw new AbortedException(new ParserResult.Aborted(Math.max(idx, farthestFailure),
+                        ParserResult.Aborted.Reason.DEADLINE, steps));
+            }
+            interval = countdown = (int) Math.min(CHECK_INTERVAL, stepBudget - steps);
+        }
+
+        /**
+         * Limits the number of grammar matches (including the ones failing) a parse may run. A parse going beyond it
+         * is aborted: the top level entry points taking options return a {@link ParserResult.Aborted}, while
+         * {@link Grammar#matchProcessing(CharSequence, int, Options)} and
+         * {@link Grammar#recognize(CharSequence, int, Options)} throw an {@link AbortedException}.
+         *
+         * @return this
+         */
+        public Options withStepBudget(long steps) {
+            if (steps < 0) {
+                throw new IllegalArgumentException("Negative step budget: " + steps);
+            }
+            stepBudget = steps;
+            interval = countdown = (int) Math.max(0, Math.min(CHECK_INTERVAL, stepBudget - this.steps));
+            return this;
+        }
+
+        /**
+         * Aborts, like {@link #withStepBudget(long)} does, a parse still running after the timeout (counted from
+         * now). The clock is looked at every {@value #CHECK_INTERVAL} matches, so the parse may last a bit longer.
+         *
+         * @return this
+         */
+        public Options withTimeout(long timeout, TimeUnit unit) {
+            deadline = System.nanoTime() + unit.toNanos(timeout);
+            if (deadline == Long.MAX_VALUE) {
+                deadline--;
+            }
+            return this;
+        }
+
+        /**
+         * Thrown through the grammars being matched when a parse goes beyond the limits of its options.
+         */
+        public static final class AbortedException extends RuntimeException {
+
+            private static final long serialVersionUID = 1L;
+            // results are not serializable, a deserialized exception only keeps its message:
+            private final transient ParserResult.Aborted result;
+
+            AbortedException(ParserResult.Aborted result) {
+                super("Parse aborted at " + result.getIdx() + ": " + result.getReason(), null, false, false);
+                this.result = result;
+            }
+
+            public ParserResult.Aborted getResult() {
+                return result;
+            }
+        }
+
+        /**
+         * Enables packrat memoization, keeping the results of every (grammar, position) pair that lies within the
+         * last {@code window} positions behind the farthest one memoized.
+         *
+         * @param window how many input positions to remember
+         * @return this
+         */
+        public Options withPackrat(int window) {
+            memo = MemoTable.window(window);
+            return this;
+        }
     }
 
     //======================================================================
@@ -105,118 +1301,670 @@ public abstract class Grammar<T> {
     //======================================================================
     public static class TextGrammar<T> extends Grammar<T> {
 
-        private final String text;
+        final String text;
 
         public TextGrammar(String text) {
             this.text = text;
         }
 
         @Override
-        public Pair<ParserResult, List<T>> matchProcessingImpl(String text, int idx, Options opts) {
-            int endIdx = idx + this.text.length();
-            ParserResult res;
-            if (endIdx <= text.length() && text.substring(idx, endIdx).equals(this.text)) {
+        public List<Grammar<?>> children() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public Pair<ParserResult, List<T>> matchProcessingImpl(CharSequence text, int idx, Options opts) {
+            opts.examined(idx + this.text.length());
+            if (startsWith(text, idx, this.text)) {
                 return new Pair(new ParserResult.AstNode(idx, this.text.length()), EMPTY_LIST);
             } else {
-                return new Pair(new ParserResult.Failure(idx, this.text), EMPTY_LIST);
+                return opts.failure(idx, this.text);
             }
         }
 
         @Override
-        protected boolean hasEpsilon(Function2<Grammar, Integer, Boolean> proxy, Integer nonEmptyCount) {
+        protected int recognizeImpl(CharSequence text, int idx, Options opts) {
+            opts.examined(idx + this.text.length());
+            return startsWith(text, idx, this.text) ? idx + this.text.length() : ~idx;
+        }
+
+        @Override
+        protected boolean computeHasEpsilon() {
             return text.length() == 0;
         }
+
+        @Override
+        protected void assemble(ParsingMachine.Assembler asm) {
+            asm.emit(ParsingMachine.TEXT, asm.constant(text));
+        }
+
+        @Override
+        protected MethodHandle specialize(CompiledGrammar.Specializer s) {
+            return s.text(text, reduceFunction);
+        }
+
+        @Override
+        protected FirstSet firstSet(Function1<Grammar, FirstSet> proxy) {
+            if (text.isEmpty()) {
+                return FirstSet.EMPTY;
+            }
+            BitSet chars = new BitSet();
+            chars.set(text.charAt(0));
+            return new FirstSet(chars, false, false);
+        }
+
+        @Override
+        protected boolean isMemoizable() {
+            return false;
+        }
     }
 
     public static class DotGrammar<T> extends Grammar<T> {
 
         @Override
-        protected Pair<ParserResult, List<T>> matchProcessingImpl(String text, int idx, Options opts) {
+        public List<Grammar<?>> children() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        protected Pair<ParserResult, List<T>> matchProcessingImpl(CharSequence text, int idx, Options opts) {
+            opts.examined(idx + 1);
             if (idx < text.length()) {
                 return new Pair(new ParserResult.AstNode(idx, 1), EMPTY_LIST);
             } else {
-                return new Pair(new ParserResult.Failure(idx, "any char"), EMPTY_LIST);
+                return opts.failure(idx, "any char");
             }
         }
 
         @Override
-        protected boolean hasEpsilon(Function2<Grammar, Integer, Boolean> proxy, Integer nonEmptyCount) {
+        protected int recognizeImpl(CharSequence text, int idx, Options opts) {
+            opts.examined(idx + 1);
+            return idx < text.length() ? idx + 1 : ~idx;
+        }
+
+        @Override
+        protected boolean computeHasEpsilon() {
+            return false;
+        }
+
+        @Override
+        protected void assemble(ParsingMachine.Assembler asm) {
+            asm.emit(ParsingMachine.DOT);
+        }
+
+        @Override
+        protected MethodHandle specialize(CompiledGrammar.Specializer s) {
+            return s.dot(reduceFunction);
+        }
+
+        @Override
+        protected FirstSet firstSet(Function1<Grammar, FirstSet> proxy) {
+            return new FirstSet(new BitSet(0), true, false);
+        }
+
+        @Override
+        protected boolean isMemoizable() {
             return false;
         }
     }
 
     public static class RangeGrammar<T> extends Grammar<T> {
 
-        private final char from, to;
+        final char from, to;
+        private final String expected;
 
         public RangeGrammar(char from, char to) {
             this.from = from;
             this.to = to;
+            this.expected = "char from '" + from + "' to '" + to + "'";
             assert from <= to;
         }
 
         @Override
-        protected Pair<ParserResult, List<T>> matchProcessingImpl(String text, int idx, Options opts) {
-            if (idx >= text.length()) {
-                return new Pair(new ParserResult.Failure(idx, "char from '" + from + "' to '" + to + "'"), EMPTY_LIST);
-            }
-            char c = text.charAt(idx);
-            if (from <= c && c <= to) {
-                return new Pair(new ParserResult.AstNode(idx, 1), EMPTY_LIST);
-            } else {
-                return new Pair(new ParserResult.Failure(idx, "char from '" + from + "' to '" + to + "'"), EMPTY_LIST);
+        public List<Grammar<?>> children() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        protected Pair<ParserResult, List<T>> matchProcessingImpl(CharSequence text, int idx, Options opts) {
+            opts.examined(idx + 1);
+            if (idx < text.length()) {
+                char c = text.charAt(idx);
+                if (from <= c && c <= to) {
+                    return new Pair(new ParserResult.AstNode(idx, 1), EMPTY_LIST);
+                }
+            }
+            return opts.failure(idx, expected);
+        }
+
+        @Override
+        protected int recognizeImpl(CharSequence text, int idx, Options opts) {
+            opts.examined(idx + 1);
+            if (idx < text.length()) {
+                char c = text.charAt(idx);
+                if (from <= c && c <= to) {
+                    return idx + 1;
+                }
+            }
+            return ~idx;
+        }
+
+        @Override
+        protected boolean computeHasEpsilon() {
+            return false;
+        }
+
+        @Override
+        protected void assemble(ParsingMachine.Assembler asm) {
+            asm.emit(ParsingMachine.RANGE, from, to);
+        }
+
+        @Override
+        protected MethodHandle specialize(CompiledGrammar.Specializer s) {
+            return s.range(from, to, expected, reduceFunction);
+        }
+
+        @Override
+        protected FirstSet firstSet(Function1<Grammar, FirstSet> proxy) {
+            BitSet chars = new BitSet();
+            chars.set(from, to + 1);
+            return new FirstSet(chars, false, false);
+        }
+
+        @Override
+        protected boolean isMemoizable() {
+            return false;
+        }
+    }
+
+    /**
+     * Matches a single code point out of a set, built from ranges with {@link #union(CharClassGrammar)},
+     * {@link #intersection(CharClassGrammar)} and {@link #negation()}.
+     *
+     * ASCII chars are looked up in a 128 bit set, any other code point by binary search over a sorted table of ranges.
+     * A surrogate pair counts as the single code point it encodes, and is matched as a whole (with length 2) when that
+     * code point belongs to the set; otherwise its first char is matched on its own, like any other char.
+     */
+    public static class CharClassGrammar<T> extends Grammar<T> {
+
+        /**
+         * Sorted, disjoint and non adjacent code point ranges, as consecutive (from, to) pairs.
+         */
+        final int[] ranges;
+        private final long ascii0, ascii1;
+        /**
+         * The ranges (or parts of them) above ASCII.
+         */
+        private final int[] others;
+        private final List<String> expectedTokens;
+
+        public CharClassGrammar(int from, int to) {
+            this(new int[]{from, to}, null);
+            if (from < 0 || to < from || to > Character.MAX_CODE_POINT) {
+                throw new IllegalArgumentException("invalid code point range " + from + ".." + to);
+            }
+        }
+
+        CharClassGrammar(int[] ranges, List<String> expectedTokens) {
+            this.ranges = ranges;
+            long bits0 = 0, bits1 = 0;
+            int n = 0;
+            for (int i = 0; i < ranges.length; i += 2) {
+                for (int c = ranges[i]; c <= ranges[i + 1] && c < 128; c++) {
+                    if (c < 64) {
+                        bits0 |= 1L << c;
+                    } else {
+                        bits1 |= 1L << c;
+                    }
+                }
+                n += ranges[i + 1] >= 128 ? 2 : 0;
+            }
+            ascii0 = bits0;
+            ascii1 = bits1;
+            others = new int[n];
+            for (int i = 0, j = 0; i < ranges.length; i += 2) {
+                if (ranges[i + 1] >= 128) {
+                    others[j++] = Math.max(ranges[i], 128);
+                    others[j++] = ranges[i + 1];
+                }
+            }
+            this.expectedTokens = expectedTokens != null ? expectedTokens
+                    : Collections.singletonList("char in " + describe(ranges));
+        }
+
+        public CharClassGrammar<T> union(CharClassGrammar<?> other) {
+            int[] all = Arrays.copyOf(ranges, ranges.length + other.ranges.length);
+            System.arraycopy(other.ranges, 0, all, ranges.length, other.ranges.length);
+            return new CharClassGrammar<>(normalize(all), null);
+        }
+
+        public CharClassGrammar<T> intersection(CharClassGrammar<?> other) {
+            return negation().union(other.negation()).negation();
+        }
+
+        public CharClassGrammar<T> negation() {
+            return new CharClassGrammar<>(complement(ranges), null);
+        }
+
+        public boolean contains(int codePoint) {
+            if (codePoint < 128) {
+                return ((codePoint < 64 ? ascii0 : ascii1) >>> codePoint & 1) != 0;
+            }
+            // the last range starting at or before codePoint:
+            int lo = 0, hi = others.length / 2 - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (others[2 * mid] <= codePoint) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return hi >= 0 && codePoint <= others[2 * hi + 1];
+        }
+
+        /**
+         * Folds ordered choices among single code points, into a char class with the same behaviour: the given
+         * grammars must be plain {@link RangeGrammar}s, {@link TextGrammar}s of one code point or char classes, without
+         * reduce functions of their own.
+         *
+         * Char classes match a surrogate pair as a whole, while ranges and texts of a single char match its high
+         * surrogate alone, so alternatives that may do so are never folded.
+         *
+         * @return the char class, or null if some alternative can not be folded
+         */
+        public static <T> CharClassGrammar<T> fromAlternatives(Grammar<T>... alternatives) {
+            int[] all = new int[2 * alternatives.length];
+            int n = 0;
+            List<String> expectedTokens = new ArrayList<>(alternatives.length);
+            for (Grammar<T> g: alternatives) {
+                if (g == null || g.reduceFunction != null) {
+                    return null;
+                }
+                if (g.getClass() == RangeGrammar.class) {
+                    if (((RangeGrammar) g).from <= Character.MAX_HIGH_SURROGATE
+                            && ((RangeGrammar) g).to >= Character.MIN_HIGH_SURROGATE) {
+                        return null;
+                    }
+                    all = ensure(all, n + 2);
+                    all[n++] = ((RangeGrammar) g).from;
+                    all[n++] = ((RangeGrammar) g).to;
+                    expectedTokens.add(((RangeGrammar) g).expected);
+                } else if (g.getClass() == TextGrammar.class && ((TextGrammar) g).text.length() > 0
+                        && ((TextGrammar) g).text.codePointCount(0, ((TextGrammar) g).text.length()) == 1) {
+                    int c = ((TextGrammar) g).text.codePointAt(0);
+                    if (c >= Character.MIN_HIGH_SURROGATE && c <= Character.MAX_HIGH_SURROGATE) {
+                        return null;
+                    }
+                    all = ensure(all, n + 2);
+                    all[n++] = c;
+                    all[n++] = c;
+                    expectedTokens.add(((TextGrammar) g).text);
+                } else if (g.getClass() == CharClassGrammar.class) {
+                    int[] ranges = ((CharClassGrammar) g).ranges;
+                    all = ensure(all, n + ranges.length);
+                    System.arraycopy(ranges, 0, all, n, ranges.length);
+                    n += ranges.length;
+                    expectedTokens.addAll(((CharClassGrammar<T>) g).expectedTokens);
+                } else {
+                    return null;
+                }
+            }
+            return new CharClassGrammar<>(normalize(Arrays.copyOf(all, n)),
+                    Collections.unmodifiableList(expectedTokens));
+        }
+
+        private static int[] ensure(int[] array, int size) {
+            return size <= array.length ? array : Arrays.copyOf(array, Math.max(size, 2 * array.length));
+        }
+
+        /**
+         * Sorts and merges a list of (from, to) pairs.
+         */
+        private static int[] normalize(int[] pairs) {
+            long[] sorted = new long[pairs.length / 2];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = (long) pairs[2 * i] << 32 | pairs[2 * i + 1];
+            }
+            Arrays.sort(sorted);
+            int[] res = new int[pairs.length];
+            int n = 0;
+            for (long pair: sorted) {
+                int from = (int) (pair >>> 32), to = (int) pair;
+                if (n > 0 && from <= res[n - 1] + 1) {
+                    res[n - 1] = Math.max(res[n - 1], to);
+                } else {
+                    res[n++] = from;
+                    res[n++] = to;
+                }
+            }
+            return Arrays.copyOf(res, n);
+        }
+
+        private static int[] complement(int[] ranges) {
+            int[] res = new int[ranges.length + 2];
+            int n = 0, next = 0;
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (ranges[i] > next) {
+                    res[n++] = next;
+                    res[n++] = ranges[i] - 1;
+                }
+                next = ranges[i + 1] + 1;
+            }
+            if (next <= Character.MAX_CODE_POINT) {
+                res[n++] = next;
+                res[n++] = Character.MAX_CODE_POINT;
+            }
+            return Arrays.copyOf(res, n);
+        }
+
+        /**
+         * Renders the ranges in regular expression syntax, negated if that is shorter.
+         */
+        private static String describe(int[] ranges) {
+            int[] complement = complement(ranges);
+            boolean negated = complement.length < ranges.length;
+            int[] shown = negated ? complement : ranges;
+            StringBuilder sb = new StringBuilder(negated ? "[^" : "[");
+            for (int i = 0; i < shown.length; i += 2) {
+                appendChar(sb, shown[i]);
+                if (shown[i + 1] != shown[i]) {
+                    appendChar(sb.append(shown[i + 1] > shown[i] + 1 ? "-" : ""), shown[i + 1]);
+                }
+            }
+            return sb.append(']').toString();
+        }
+
+        private static void appendChar(StringBuilder sb, int c) {
+            if (c == '\\' || c == ']' || c == '-' || c == '^') {
+                sb.append('\\').append((char) c);
+            } else if (c < ' ' || c > '~') {
+                sb.append(c > 0xffff ? String.format("\\U%08x", c) : String.format("\\u%04x", c));
+            } else {
+                sb.append((char) c);
+            }
+        }
+
+        /**
+         * Length of the match at idx (1, or 2 for a surrogate pair), or -1 if there is none.
+         *
+         * @param opts where to report the examined input, may be null
+         */
+        int matchLength(CharSequence text, int idx, Options opts) {
+            if (idx >= text.length()) {
+                if (opts != null) {
+                    opts.examined(idx + 1);
+                }
+                return -1;
+            }
+            char c = text.charAt(idx);
+            if (c < 128) {
+                if (opts != null) {
+                    opts.examined(idx + 1);
+                }
+                return ((c < 64 ? ascii0 : ascii1) >>> c & 1) != 0 ? 1 : -1;
+            }
+            if (Character.isHighSurrogate(c)) {
+                if (opts != null) {
+                    opts.examined(idx + 2);
+                }
+                if (idx + 1 < text.length() && Character.isLowSurrogate(text.charAt(idx + 1))) {
+                    // a pair is a single code point, its halves are never matched alone:
+                    return contains(Character.toCodePoint(c, text.charAt(idx + 1))) ? 2 : -1;
+                }
+            } else if (opts != null) {
+                opts.examined(idx + 1);
+            }
+            return contains(c) ? 1 : -1;
+        }
+
+        List<String> getExpectedTokens() {
+            return expectedTokens;
+        }
+
+        @Override
+        public List<Grammar<?>> children() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        protected Pair<ParserResult, List<T>> matchProcessingImpl(CharSequence text, int idx, Options opts) {
+            int length = matchLength(text, idx, opts);
+            if (length > 0) {
+                return new Pair(new ParserResult.AstNode(idx, length), EMPTY_LIST);
+            }
+            return opts.failure(idx, expectedTokens);
+        }
+
+        @Override
+        protected int recognizeImpl(CharSequence text, int idx, Options opts) {
+            int length = matchLength(text, idx, opts);
+            return length > 0 ? idx + length : ~idx;
+        }
+
+        @Override
+        protected boolean computeHasEpsilon() {
+            return false;
+        }
+
+        @Override
+        protected void assemble(ParsingMachine.Assembler asm) {
+            asm.emit(ParsingMachine.CLASS, asm.constant(this));
+        }
+
+        @Override
+        protected FirstSet firstSet(Function1<Grammar, FirstSet> proxy) {
+            BitSet chars = new BitSet();
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (ranges[i] <= 0xffff) {
+                    chars.set(ranges[i], Math.min(ranges[i + 1], 0xffff) + 1);
+                }
+                if (ranges[i + 1] > 0xffff) {
+                    chars.set(Character.highSurrogate(Math.max(ranges[i], 0x10000)),
+                            Character.highSurrogate(ranges[i + 1]) + 1);
+                }
+            }
+            return new FirstSet(chars, false, false);
+        }
+
+        @Override
+        protected boolean isMemoizable() {
+            return false;
+        }
+    }
+
+    public static class CatGrammar<T> extends Grammar<T> {
+
+        final Grammar<T>[] children;
+
+        public CatGrammar(Grammar<T>... children) {
+            this.children = children;
+            assert children.length > 0;
+        }
+
+        @Override
+        public List<Grammar<?>> children() {
+            return Collections.<Grammar<?>>unmodifiableList(Arrays.asList(children));
+        }
+
+        @Override
+        List<Grammar<?>> leftChildren(Function1<Grammar, FirstSet> firstSets) {
+            // the nullability found by analyze(), exact where first sets are not, as they cut cycles:
+            int n = 0;
+            while (n < children.length) {
+                Grammar<T> child = children[n++];
+                if (child == null || !child.hasEpsilon()) {
+                    break;
+                }
+            }
+            return Collections.<Grammar<?>>unmodifiableList(Arrays.asList(children).subList(0, n));
+        }
+
+        @Override
+        protected Pair<ParserResult, List<T>> matchProcessingImpl(CharSequence text, int idx, Options opts) {
+            int length = 0;
+            List<T> tags = EMPTY_LIST;
+            ParserResult.AstNode[] nodes = new ParserResult.AstNode[children.length];
+            for (int i = 0; i < children.length; i++) {
+                Pair<ParserResult, List<T>> res = children[i].matchProcessing(text, idx + length, opts);
+                if (!(res.getLeft() instanceof ParserResult.AstNode)) {
+                    return res;
+                } else if (res.getLeft() instanceof ParserResult.AstNode) {
+                    nodes[i] = (ParserResult.AstNode) res.getLeft();
+                    tags = RopeList.concat(tags, res.getRight());
+                    length += nodes[i].getLength();
+                } else {
+                    throw new IllegalStateException("invalid match response type");
+                }
+            }
+            return new Pair(new ParserResult.AstNode(idx, length, nodes), tags);
+        }
+
+        @Override
+        protected int recognizeImpl(CharSequence text, int idx, Options opts) {
+            for (Grammar<T> child: children) {
+                idx = child.recognize(text, idx, opts);
+                if (idx < 0) {
+                    break;
+                }
+            }
+            return idx;
+        }
+
+        @Override
+        protected boolean computeHasEpsilon() {
+            for (Grammar<T> child: children) {
+                if (!child.hasEpsilon()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        protected FirstSet firstSet(Function1<Grammar, FirstSet> proxy) {
+            FirstSet fs = FirstSet.EMPTY;
+            for (Grammar<T> child: children) {
+                fs = fs.then(proxy.apply(child));
+                if (!fs.isNullable()) {
+                    break;
+                }
+            }
+            return fs;
+        }
+
+        @Override
+        protected void assemble(ParsingMachine.Assembler asm) {
+            asm.emit(ParsingMachine.OPEN);
+            for (Grammar<T> child: children) {
+                asm.assemble(child);
             }
+            asm.emit(ParsingMachine.CLOSE);
         }
 
         @Override
-        protected boolean hasEpsilon(Function2<Grammar, Integer, Boolean> proxy, Integer nonEmptyCount) {
-            return false;
+        protected MethodHandle specialize(CompiledGrammar.Specializer s) {
+            return s.cat(children, reduceFunction);
         }
     }
 
-    public static class CatGrammar<T> extends Grammar<T> {
-
-        private final Grammar<T>[] children;
+    /**
+     * A sequence with runs of adjacent literals, as made by {@link #optimize()}: every run is compared against the
+     * input at once and its leaves are built right away, going through its literals one by one only to find out which
+     * one failed.
+     */
+    static class FusedCatGrammar<T> extends CatGrammar<T> {
+
+        /**
+         * For the first child of every run of literals, the whole run and the index of the child following it (null
+         * and 0 for any other child).
+         */
+        private final String[] runs;
+        private final int[] runEnds;
+
+        FusedCatGrammar(Grammar<T>... children) {
+            super(children);
+            runs = new String[children.length];
+            runEnds = new int[children.length];
+            for (int i = 0; i < children.length; i++) {
+                int end = i;
+                StringBuilder run = new StringBuilder();
+                while (end < children.length && isLiteral(children[end])) {
+                    run.append(literal(end++));
+                }
+                if (end > i) {
+                    runs[i] = run.toString();
+                    runEnds[i] = end;
+                    i = end - 1;
+                }
+            }
+        }
 
-        public CatGrammar(Grammar<T>... children) {
-            this.children = children;
-            assert children.length > 0;
+        private String literal(int i) {
+            return ((TextGrammar) children[i]).text;
         }
 
         @Override
-        protected Pair<ParserResult, List<T>> matchProcessingImpl(String text, int idx, Options opts) {
-            int length = 0;
+        protected Pair<ParserResult, List<T>> matchProcessingImpl(CharSequence text, int idx, Options opts) {
+            int pos = idx;
             List<T> tags = EMPTY_LIST;
             ParserResult.AstNode[] nodes = new ParserResult.AstNode[children.length];
-            for (int i = 0; i < children.length; i++) {
-                Pair<ParserResult, List<T>> res = children[i].matchProcessing(text, idx + length, opts);
-                if (!(res.getLeft() instanceof ParserResult.AstNode)) {
-                    return res;
-                } else if (res.getLeft() instanceof ParserResult.AstNode) {
+            for (int i = 0; i < children.length;) {
+                if (runs[i] == null) {
+                    Pair<ParserResult, List<T>> res = children[i].matchProcessing(text, pos, opts);
+                    if (!(res.getLeft() instanceof ParserResult.AstNode)) {
+                        return res;
+                    }
                     nodes[i] = (ParserResult.AstNode) res.getLeft();
-                    tags = FastSnocList.snocAll(tags, res.getRight());
-                    length += nodes[i].getLength();
+                    tags = RopeList.concat(tags, res.getRight());
+                    pos += nodes[i++].getLength();
+                } else if (startsWith(text, pos, runs[i])) {
+                    opts.examined(pos + runs[i].length());
+                    for (int end = runEnds[i]; i < end; i++) {
+                        nodes[i] = new ParserResult.AstNode(pos, literal(i).length());
+                        pos += literal(i).length();
+                    }
                 } else {
-                    throw new IllegalStateException("invalid match response type");
+                    while (startsWith(text, pos, literal(i))) {
+                        opts.examined(pos + literal(i).length());
+                        pos += literal(i++).length();
+                    }
+                    opts.examined(pos + literal(i).length());
+                    return opts.failure(pos, literal(i));
                 }
             }
-            return new Pair(new ParserResult.AstNode(idx, length, nodes), tags);
+            return new Pair(new ParserResult.AstNode(idx, pos - idx, nodes), tags);
         }
 
         @Override
-        protected boolean hasEpsilon(Function2<Grammar, Integer, Boolean> proxy, Integer nonEmptyCount) {
-            for (Grammar<T> child: children) {
-                if (!child.hasEpsilon()) {
-                    return false;
+        protected int recognizeImpl(CharSequence text, int idx, Options opts) {
+            for (int i = 0; i < children.length;) {
+                if (runs[i] == null) {
+                    idx = children[i++].recognize(text, idx, opts);
+                    if (idx < 0) {
+                        return idx;
+                    }
+                } else if (startsWith(text, idx, runs[i])) {
+                    opts.examined(idx + runs[i].length());
+                    idx += runs[i].length();
+                    i = runEnds[i];
+                } else {
+                    while (startsWith(text, idx, literal(i))) {
+                        opts.examined(idx + literal(i).length());
+                        idx += literal(i++).length();
+                    }
+                    opts.examined(idx + literal(i).length());
+                    return ~idx;
                 }
             }
-            return true;
+            return idx;
         }
     }
 
     public static class AltGrammar<T> extends Grammar<T> {
 
-        private final Grammar<T>[] children;
+        final Grammar<T>[] children;
+        private Dispatch dispatch = null;
 
         public AltGrammar(Grammar<T>... children) {
             this.children = children;
@@ -224,12 +1972,62 @@ public abstract class Grammar<T> {
         }
 
         @Override
-        protected Pair<ParserResult, List<T>> matchProcessingImpl(String text, int idx, Options opts) {
+        public List<Grammar<?>> children() {
+            return Collections.<Grammar<?>>unmodifiableList(Arrays.asList(children));
+        }
+
+        @Override
+        void precompute() {
+            dispatch = new Dispatch(children, shape, false);
+        }
+
+        private Dispatch dispatch() {
+            Dispatch d = dispatch;
+            if (d == null || (!frozen && (d.version != d.shape.version || (shape != null && d.shape != shape)))) {
+                if (d != null && d.watching) {
+                    d.shape.grammars--;
+                }
+                // not analyzed yet (not prepared before matching): rather than analyzing in the middle of a match,
+                // only learn when a reference below changes
+                dispatch = d = shape == null
+                        ? new Dispatch(children, watch(), true) : new Dispatch(children, shape, false);
+            }
+            return d;
+        }
+
+        /**
+         * The children worth trying at idx, in order. Those in {@code d.others} must still be checked against their
+         * first sets.
+         */
+        private static int[] candidates(Dispatch d, CharSequence text, int idx, Options opts) {
+            if (!d.enabled) {
+                return d.all;
+            }
+            opts.examined(idx + 1);
+            if (idx >= text.length()) {
+                return d.atEnd;
+            }
+            char c = text.charAt(idx);
+            return c < d.ascii.length ? d.ascii[c] : d.others;
+        }
+
+        @Override
+        protected Pair<ParserResult, List<T>> matchProcessingImpl(CharSequence text, int idx, Options opts) {
+            Dispatch d = dispatch();
+            if (d.charClass != null) {
+                return (Pair) d.charClass.matchProcessingImpl(text, idx, opts);
+            }
+            int[] candidates = candidates(d, text, idx, opts);
             ParserResult.Failure failedRes = null;
-            for (Grammar<T> child: children) {
-                Pair<ParserResult, List<T>> res = child.matchProcessing(text, idx, opts);
+            for (int i: candidates) {
+                if (candidates == d.others && !d.firstSets[i].mayStartWith(text.charAt(idx))) {
+                    continue;
+                }
+                Pair<ParserResult, List<T>> res = children[i].matchProcessing(text, idx, opts);
                 if (res.getLeft().isMatched()) {
                     return res;
+                } else if (opts.fastFailures) {
+                    continue;
                 } else if (res.getLeft() instanceof ParserResult.Failure) {
                     ParserResult.Failure failure = (ParserResult.Failure) res.getLeft();
                     failedRes = ParserResult.Failure.merge(failedRes, failure);
@@ -237,11 +2035,154 @@ public abstract class Grammar<T> {
                     throw new IllegalStateException("invalid match response type");
                 }
             }
+            if (opts.fastFailures) {
+                if (candidates != d.all) {
+                    opts.failed(idx);
+                }
+                return FAST_FAILURE;
+            }
+            if (candidates != d.all && (failedRes == null || failedRes.getIdx() == idx)) {
+                // skipped children would have failed right here, so they take part in the expected tokens. Inside a
+                // left recursion they can only be tried again while its seeds are still around, so right now:
+                failedRes = new ParserResult.Failure(idx, mayRecurseInPlace()
+                        ? expectedTokens(text, idx, opts) : new SkippedExpectedTokens(text, idx));
+            }
             return new Pair(failedRes, EMPTY_LIST);
         }
 
         @Override
-        protected boolean hasEpsilon(Function2<Grammar, Integer, Boolean> proxy, Integer nonEmptyCount) {
+        protected int recognizeImpl(CharSequence text, int idx, Options opts) {
+            Dispatch d = dispatch();
+            if (d.charClass != null) {
+                return d.charClass.recognizeImpl(text, idx, opts);
+            }
+            int[] candidates = candidates(d, text, idx, opts);
+            // skipped children would have failed right here:
+            int failedIdx = candidates != d.all ? idx : -1;
+            for (int i: candidates) {
+                if (candidates == d.others && !d.firstSets[i].mayStartWith(text.charAt(idx))) {
+                    continue;
+                }
+                int res = children[i].recognize(text, idx, opts);
+                if (res >= 0) {
+                    return res;
+                }
+                failedIdx = Math.max(failedIdx, ~res);
+            }
+            return ~failedIdx;
+        }
+
+        /**
+         * Expected tokens of a failure at idx, found by trying every child again, in order, without processing.
+         */
+        private List<String> expectedTokens(CharSequence text, int idx, Options opts) {
+            boolean skipProcessing = opts.skipProcessing;
+            MemoTable memo = opts.memo;
+            opts.skipProcessing = true;
+            opts.memo = null;
+            try {
+                ParserResult.Failure failedRes = null;
+                for (Grammar<T> child: children) {
+                    failedRes = ParserResult.Failure.merge(failedRes,
+                            (ParserResult.Failure) child.matchProcessing(text, idx, opts).getLeft());
+                }
+                return failedRes.getExpectedTokens();
+            } finally {
+                opts.skipProcessing = skipProcessing;
+                opts.memo = memo;
+            }
+        }
+
+        /**
+         * Expected tokens of a failure at the alternation's own position, computed only if someone asks for them.
+         */
+        private class SkippedExpectedTokens extends AbstractList<String> {
+
+            private final CharSequence text;
+            private final int idx;
+            private List<String> tokens = null;
+
+            SkippedExpectedTokens(CharSequence text, int idx) {
+                this.text = text;
+                this.idx = idx;
+            }
+
+            private List<String> tokens() {
+                if (tokens == null) {
+                    tokens = expectedTokens(text, idx, new Options());
+                }
+                return tokens;
+            }
+
+            @Override
+            public String get(int index) {
+                return tokens().get(index);
+            }
+
+            @Override
+            public int size() {
+                return tokens().size();
+            }
+        }
+
+        /**
+         * Char-indexed jump table listing, in order, the children worth trying for each ASCII char; the remaining
+         * ones can not start with it, so they would fail right away. When all the children match single chars, they
+         * are folded into a char class instead.
+         */
+        private static class Dispatch {
+
+            final Shape shape;
+            final int version;
+            final boolean watching;
+            final CharClassGrammar<?> charClass;
+            final boolean enabled;
+            final int[] all, atEnd, others;
+            final int[][] ascii = new int[128][];
+            final FirstSet[] firstSets;
+
+            Dispatch(Grammar<?>[] children, Shape shape, boolean watching) {
+                this.shape = shape;
+                this.version = shape.version;
+                this.watching = watching;
+                charClass = CharClassGrammar.fromAlternatives((Grammar[]) children);
+                firstSets = new FirstSet[children.length];
+                boolean prunes = false;
+                for (int i = 0; i < children.length; i++) {
+                    firstSets[i] = children[i].firstSet();
+                    prunes |= !firstSets[i].isAnyChar();
+                }
+                enabled = prunes;
+                all = new int[children.length];
+                int[] buffer = new int[children.length];
+                int nAtEnd = 0, nOthers = 0;
+                for (int i = 0; i < children.length; i++) {
+                    all[i] = i;
+                    if (firstSets[i].isNullable()) {
+                        buffer[nAtEnd++] = i;
+                    }
+                }
+                atEnd = Arrays.copyOf(buffer, nAtEnd);
+                for (int i = 0; i < children.length; i++) {
+                    if (firstSets[i].isAnyChar() || firstSets[i].getChars().nextSetBit(ascii.length) >= 0) {
+                        buffer[nOthers++] = i;
+                    }
+                }
+                others = Arrays.copyOf(buffer, nOthers);
+                for (char c = 0; c < ascii.length; c++) {
+                    int n = 0;
+                    for (int i = 0; i < children.length; i++) {
+                        if (firstSets[i].mayStartWith(c)) {
+                            buffer[n++] = i;
+                        }
+                    }
+                    ascii[c] = n == children.length ? all : Arrays.copyOf(buffer, n);
+                }
+            }
+        }
+
+        @Override
+        protected boolean computeHasEpsilon() {
             for (Grammar<T> child: children) {
                 if (child.hasEpsilon()) {
                     return true;
@@ -249,12 +2190,49 @@ public abstract class Grammar<T> {
             }
             return false;
         }
+
+        @Override
+        protected FirstSet firstSet(Function1<Grammar, FirstSet> proxy) {
+            FirstSet fs = new FirstSet(new BitSet(0), false, false);
+            for (Grammar<T> child: children) {
+                fs = fs.union(proxy.apply(child));
+            }
+            return fs;
+        }
+
+        @Override
+        protected void assemble(ParsingMachine.Assembler asm) {
+            CharClassGrammar<T> charClass = CharClassGrammar.fromAlternatives(children);
+            if (charClass != null) {
+                asm.assemble(charClass);
+                return;
+            }
+            // OPEN; { CHOICE next; child; COMMIT ok; next: ALT_MERGE; }* ALT_FAIL; ok: POP
+            asm.emit(ParsingMachine.OPEN);
+            int[] commits = new int[children.length];
+            for (int i = 0; i < children.length; i++) {
+                int choice = asm.emit(ParsingMachine.CHOICE, 0);
+                asm.assemble(children[i]);
+                commits[i] = asm.emit(ParsingMachine.COMMIT, 0);
+                asm.patch(choice, 0, asm.emit(ParsingMachine.ALT_MERGE));
+            }
+            asm.emit(ParsingMachine.ALT_FAIL);
+            int ok = asm.emit(ParsingMachine.POP);
+            for (int commit: commits) {
+                asm.patch(commit, 0, ok);
+            }
+        }
+
+        @Override
+        protected MethodHandle specialize(CompiledGrammar.Specializer s) {
+            return s.alt(children, reduceFunction);
+        }
     }
 
     public static class QuantGrammar<T> extends Grammar<T> {
 
-        private final int min, max;
-        private final Grammar<T> child;
+        final int min, max;
+        final Grammar<T> child;
 
         public QuantGrammar(int min, int max, Grammar<T> child) {
             this.min = min;
@@ -265,7 +2243,12 @@ public abstract class Grammar<T> {
         }
 
         @Override
-        protected Pair<ParserResult, List<T>> matchProcessingImpl(String text, int idx, Options opts) {
+        public List<Grammar<?>> children() {
+            return Collections.<Grammar<?>>singletonList(child);
+        }
+
+        @Override
+        protected Pair<ParserResult, List<T>> matchProcessingImpl(CharSequence text, int idx, Options opts) {
             int initialIdx = idx;
             List<T> tags = EMPTY_LIST;
             List<ParserResult.AstNode> nodes = new ArrayList<>(Math.min(max, 10));
@@ -274,7 +2257,7 @@ public abstract class Grammar<T> {
                 if (res.getLeft() instanceof ParserResult.AstNode) {
                     ParserResult.AstNode node = (ParserResult.AstNode) res.getLeft();
                     nodes.add(node);
-                    tags = FastSnocList.snocAll(tags, res.getRight());
+                    tags = RopeList.concat(tags, res.getRight());
                     idx += node.getLength();
                     if (node.getLength() == 0 && max == Integer.MAX_VALUE) {
                         throw new IllegalStateException("infinite loop after infinite epsilon match");
@@ -293,21 +2276,113 @@ public abstract class Grammar<T> {
         }
 
         @Override
-        protected boolean hasEpsilon(Function2<Grammar, Integer, Boolean> proxy, Integer nonEmptyCount) {
+        protected int recognizeImpl(CharSequence text, int idx, Options opts) {
+            for (int count = 0; count < max; count++) {
+                int res = child.recognize(text, idx, opts);
+                if (res < 0) {
+                    return count < min ? res : idx;
+                }
+                if (res == idx && max == Integer.MAX_VALUE) {
+                    throw new IllegalStateException("infinite loop after infinite epsilon match");
+                }
+                idx = res;
+            }
+            return idx;
+        }
+
+        @Override
+        protected boolean computeHasEpsilon() {
             return min == 0 || child.hasEpsilon();
         }
+
+        @Override
+        protected FirstSet firstSet(Function1<Grammar, FirstSet> proxy) {
+            FirstSet fs = proxy.apply(child);
+            return min == 0 ? fs.withNullable(true) : fs;
+        }
+
+        @Override
+        protected void assemble(ParsingMachine.Assembler asm) {
+            // OPEN; loop: QLOOP max end; CHOICE failed; child; QCOMMIT loop; failed: QFAIL min; end: CLOSE
+            asm.emit(ParsingMachine.OPEN);
+            int loop = asm.emit(ParsingMachine.QLOOP, max, 0);
+            int choice = asm.emit(ParsingMachine.CHOICE, 0);
+            asm.assemble(child);
+            asm.emit(ParsingMachine.QCOMMIT, loop, max == Integer.MAX_VALUE ? 1 : 0);
+            asm.patch(choice, 0, asm.emit(ParsingMachine.QFAIL, min));
+            asm.patch(loop, 1, asm.emit(ParsingMachine.CLOSE));
+        }
+
+        @Override
+        protected MethodHandle specialize(CompiledGrammar.Specializer s) {
+            return s.quant(min, max, child, reduceFunction);
+        }
+    }
+
+    /**
+     * A repetition of a char class, as made by {@link #optimize()}: the input is scanned in a single loop, building the
+     * leaf of every repetition right away.
+     */
+    static class SpanGrammar<T> extends QuantGrammar<T> {
+
+        private final CharClassGrammar<T> charClass;
+
+        SpanGrammar(int min, int max, CharClassGrammar<T> charClass) {
+            super(min, max, charClass);
+            this.charClass = charClass;
+        }
+
+        @Override
+        protected Pair<ParserResult, List<T>> matchProcessingImpl(CharSequence text, int idx, Options opts) {
+            ParserResult.AstNode[] nodes = new ParserResult.AstNode[Math.min(max, 16)];
+            int count = 0, pos = idx;
+            while (count < max) {
+                int length = charClass.matchLength(text, pos, opts);
+                if (length < 0) {
+                    if (count < min) {
+                        return opts.failure(pos, charClass.getExpectedTokens());
+                    }
+                    opts.failed(pos);
+                    break;
+                }
+                if (count == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, 2 * count);
+                }
+                nodes[count++] = new ParserResult.AstNode(pos, length);
+                pos += length;
+            }
+            return new Pair(new ParserResult.AstNode(idx, pos - idx,
+                    count == nodes.length ? nodes : Arrays.copyOf(nodes, count)), EMPTY_LIST);
+        }
+
+        @Override
+        protected int recognizeImpl(CharSequence text, int idx, Options opts) {
+            for (int count = 0; count < max; count++) {
+                int length = charClass.matchLength(text, idx, opts);
+                if (length < 0) {
+                    return count < min ? ~idx : idx;
+                }
+                idx += length;
+            }
+            return idx;
+        }
     }
 
     public static class PositiveLookAhead<T> extends Grammar<T> {
 
-        private final Grammar<T> child;
+        final Grammar<T> child;
 
         public PositiveLookAhead(Grammar<T> child) {
             this.child = child;
         }
 
         @Override
-        protected Pair<ParserResult, List<T>> matchProcessingImpl(String text, int idx, Options opts) {
+        public List<Grammar<?>> children() {
+            return Collections.<Grammar<?>>singletonList(child);
+        }
+
+        @Override
+        protected Pair<ParserResult, List<T>> matchProcessingImpl(CharSequence text, int idx, Options opts) {
             Pair<ParserResult, List<T>> res = child.matchProcessing(text, idx, opts);
             if (res.getLeft() instanceof ParserResult.AstNode) {
                 return new Pair(new ParserResult.AstNode(idx, 0,
@@ -318,61 +2393,248 @@ public abstract class Grammar<T> {
         }
 
         @Override
-        protected boolean hasEpsilon(Function2<Grammar, Integer, Boolean> proxy, Integer nonEmptyCount) {
+        protected int recognizeImpl(CharSequence text, int idx, Options opts) {
+            int res = child.recognize(text, idx, opts);
+            return res >= 0 ? idx : res;
+        }
+
+        @Override
+        protected boolean computeHasEpsilon() {
             return true;
         }
+
+        @Override
+        protected FirstSet firstSet(Function1<Grammar, FirstSet> proxy) {
+            return FirstSet.EMPTY;
+        }
+
+        @Override
+        protected void assemble(ParsingMachine.Assembler asm) {
+            asm.emit(ParsingMachine.OPEN_LOOKAHEAD);
+            asm.assemble(child);
+            asm.emit(ParsingMachine.CLOSE_LOOKAHEAD);
+        }
+
+        @Override
+        protected MethodHandle specialize(CompiledGrammar.Specializer s) {
+            return s.positiveLookAhead(child, reduceFunction);
+        }
     }
 
     public static class NegativeLookAhead<T> extends Grammar<T> {
 
-        private final Grammar<T> child;
+        final Grammar<T> child;
 
         public NegativeLookAhead(Grammar<T> child) {
             this.child = child;
         }
 
         @Override
-        protected Pair<ParserResult, List<T>> matchProcessingImpl(String text, int idx, Options opts) {
+        public List<Grammar<?>> children() {
+            return Collections.<Grammar<?>>singletonList(child);
+        }
+
+        @Override
+        protected Pair<ParserResult, List<T>> matchProcessingImpl(CharSequence text, int idx, Options opts) {
             Pair<ParserResult, List<T>> res = child.matchProcessing(text, idx, opts);
             if (res.getLeft() instanceof ParserResult.AstNode) {
-                return new Pair(new ParserResult.Failure(idx, "<negative lookahead>"), EMPTY_LIST);
+                return opts.failure(idx, "<negative lookahead>");
             } else {
                 return new Pair(new ParserResult.AstNode(idx, 0), EMPTY_LIST);
             }
         }
 
         @Override
-        protected boolean hasEpsilon(Function2<Grammar, Integer, Boolean> proxy, Integer nonEmptyCount) {
+        protected int recognizeImpl(CharSequence text, int idx, Options opts) {
+            return child.recognize(text, idx, opts) >= 0 ? ~idx : idx;
+        }
+
+        @Override
+        protected boolean computeHasEpsilon() {
             return true;
         }
+
+        @Override
+        protected FirstSet firstSet(Function1<Grammar, FirstSet> proxy) {
+            return FirstSet.EMPTY;
+        }
+
+        @Override
+        protected void assemble(ParsingMachine.Assembler asm) {
+            // CHOICE ok; child; NEG_FAIL; ok: EMPTY
+            int choice = asm.emit(ParsingMachine.CHOICE, 0);
+            asm.assemble(child);
+            asm.emit(ParsingMachine.NEG_FAIL);
+            asm.patch(choice, 0, asm.emit(ParsingMachine.EMPTY));
+        }
+
+        @Override
+        protected MethodHandle specialize(CompiledGrammar.Specializer s) {
+            return s.negativeLookAhead(child, reduceFunction);
+        }
     }
 
     public static class MutableReferenceGrammar<T> extends Grammar<T> {
 
-        private Grammar<T> child;
+        Grammar<T> child;
+        /**
+         * The shapes this reference was analyzed in, which rebinding it makes stale.
+         */
+        private final List<Shape> shapes = new ArrayList<>(1);
 
         public MutableReferenceGrammar() {
         }
 
         public void setGrammar(Grammar<T> child) {
+            checkNotFrozen();
             this.child = child;
+            for (Shape s: shapes) {
+                s.changed();
+            }
+        }
+
+        @Override
+        void adopt(Shape shape) {
+            super.adopt(shape);
+            watchedBy(shape);
+        }
+
+        void watchedBy(Shape shape) {
+            for (Iterator<Shape> it = shapes.iterator(); it.hasNext();) {
+                if (it.next().grammars == 0) {
+                    it.remove();
+                }
+            }
+            shapes.add(shape);
+        }
+
+        @Override
+        public List<Grammar<?>> children() {
+            return Collections.<Grammar<?>>singletonList(child);
+        }
+
+        /**
+         * Matches the referenced grammar, growing a seed when it turns out to be left recursive: a recursive call at
+         * the same position gets the last result (initially a failure) instead of recursing, and the grammar is
+         * matched again on top of it for as long as that makes the match longer. The result is a left associative
+         * tree, built in time linear in the number of repetitions.
+         */
+        @Override
+        protected Pair<ParserResult, List<T>> matchProcessingImpl(CharSequence text, int idx, Options opts) {
+            if (!mayRecurseInPlace()) {
+                return child.matchProcessing(text, idx, opts);
+            }
+            int slot = opts.slot(this);
+            Seed outer = opts.seeds[slot];
+            if (outer != null && outer.idx == idx) {
+                outer.uses++;
+                opts.seedUses++;
+                return (Pair) outer.result;
+            }
+            Seed seed = new Seed(idx);
+            opts.seeds[slot] = seed;
+            try {
+                Pair<ParserResult, List<T>> res = child.matchProcessing(text, idx, opts);
+                if (seed.uses == 0) {
+                    return res;
+                }
+                while (res.getLeft().isMatched() && (!seed.result.getLeft().isMatched()
+                        || ((ParserResult.AstNode) res.getLeft()).getLength()
+                        > ((ParserResult.AstNode) seed.result.getLeft()).getLength())) {
+                    seed.result = (Pair) res;
+                    res = child.matchProcessing(text, idx, opts);
+                }
+                return seed.result.getLeft().isMatched() ? (Pair) seed.result : res;
+            } finally {
+                // the grown result no longer depends on the seed:
+                opts.seedUses -= seed.uses;
+                opts.seeds[slot] = outer;
+            }
         }
 
         @Override
-        protected Pair<ParserResult, List<T>> matchProcessingImpl(String text, int idx, Options opts) {
-            return child.matchProcessing(text, idx, opts);
+        protected int recognizeImpl(CharSequence text, int idx, Options opts) {
+            if (!mayRecurseInPlace()) {
+                return child.recognize(text, idx, opts);
+            }
+            int slot = opts.slot(this);
+            Seed outer = opts.seeds[slot];
+            if (outer != null && outer.idx == idx) {
+                outer.uses++;
+                opts.seedUses++;
+                return outer.recognized;
+            }
+            Seed seed = new Seed(idx);
+            opts.seeds[slot] = seed;
+            try {
+                int res = child.recognize(text, idx, opts);
+                if (seed.uses == 0) {
+                    return res;
+                }
+                while (res > seed.recognized) {
+                    seed.recognized = res;
+                    res = child.recognize(text, idx, opts);
+                }
+                return seed.recognized >= 0 ? seed.recognized : res;
+            } finally {
+                opts.seedUses -= seed.uses;
+                opts.seeds[slot] = outer;
+            }
+        }
+
+        static final class Seed {
+
+            final int idx;
+            Pair<ParserResult, List> result;
+            /**
+             * The result while recognizing, as returned by {@link Grammar#recognize(CharSequence, int, Options)}.
+             */
+            int recognized;
+            int uses = 0;
+
+            Seed(int idx) {
+                this.idx = idx;
+                this.recognized = ~idx;
+                this.result = new Pair(new ParserResult.Failure(idx, Collections.<String>emptyList()), EMPTY_LIST);
+            }
         }
 
         @Override
-        protected boolean hasEpsilon(Function2<Grammar, Integer, Boolean> proxy, Integer nonEmptyCount) {
+        protected boolean computeHasEpsilon() {
             return child.hasEpsilon();
         }
+
+        @Override
+        protected FirstSet firstSet(Function1<Grammar, FirstSet> proxy) {
+            return proxy.apply(child);
+        }
+
+        @Override
+        protected void assemble(ParsingMachine.Assembler asm) {
+            asm.call(this, child);
+        }
+
+        @Override
+        protected MethodHandle specialize(CompiledGrammar.Specializer s) {
+            return s.rule(this, child, reduceFunction);
+        }
     }
 
+    /**
+     * Ordered choice among literal strings, matched with a trie in a single pass over the input instead of trying each
+     * string in turn.
+     */
     public static class AltTextsGrammar<T> extends AltGrammar<T> {
 
+        final String[] strings;
+        private final TextTrie trie;
+        private final List<String> expectedTokens;
+
         public AltTextsGrammar(String... strings) {
             super(AltTextsGrammar.<T>mapStrings(strings));
+            this.strings = strings.clone();
+            this.trie = new TextTrie(this.strings);
+            this.expectedTokens = Collections.unmodifiableList(Arrays.asList(this.strings));
         }
 
         private static <T> Grammar<T>[] mapStrings(String... strings) {
@@ -382,12 +2644,57 @@ public abstract class Grammar<T> {
             }
             return children;
         }
+
+        @Override
+        protected Pair<ParserResult, List<T>> matchProcessingImpl(CharSequence text, int idx, Options opts) {
+            opts.examined(idx + trie.maxLength());
+            int i = trie.match(text, idx);
+            if (i >= 0) {
+                return new Pair(new ParserResult.AstNode(idx, strings[i].length()), EMPTY_LIST);
+            } else {
+                return opts.failure(idx, expectedTokens);
+            }
+        }
+
+        @Override
+        protected int recognizeImpl(CharSequence text, int idx, Options opts) {
+            opts.examined(idx + trie.maxLength());
+            int i = trie.match(text, idx);
+            return i >= 0 ? idx + strings[i].length() : ~idx;
+        }
+
+        @Override
+        protected boolean isMemoizable() {
+            return false;
+        }
+
+        @Override
+        protected void assemble(ParsingMachine.Assembler asm) {
+            asm.emit(ParsingMachine.TEXTS, asm.constant(this));
+        }
+
+        @Override
+        protected MethodHandle specialize(CompiledGrammar.Specializer s) {
+            return s.texts(strings, trie, expectedTokens, reduceFunction);
+        }
+
+        /**
+         * Length of the first string matching at idx, or -1 if none does.
+         */
+        int matchLength(CharSequence text, int idx) {
+            int i = trie.match(text, idx);
+            return i < 0 ? -1 : strings[i].length();
+        }
+
+        List<String> getExpectedTokens() {
+            return expectedTokens;
+        }
     }
 
     public static class AdapterGrammar<T, S> extends Grammar<S> {
 
-        private final Grammar<T> gram;
-        private final Function1<T, S> adapterFunction;
+        final Grammar<T> gram;
+        final Function1<T, S> adapterFunction;
 
         public AdapterGrammar(Grammar<T> gram, Function1<T, S> adapterFunction) {
             this.gram = gram;
@@ -395,7 +2702,12 @@ public abstract class Grammar<T> {
         }
 
         @Override
-        protected Pair<ParserResult, List<S>> matchProcessingImpl(String text, int idx, Options opts) {
+        public List<Grammar<?>> children() {
+            return Collections.<Grammar<?>>singletonList(gram);
+        }
+
+        @Override
+        protected Pair<ParserResult, List<S>> matchProcessingImpl(CharSequence text, int idx, Options opts) {
             Pair<ParserResult, List<T>> res = gram.matchProcessing(text, idx, opts);
             ArrayList<S> newTags = new ArrayList(res.getRight());
             for (T tag: res.getRight()) {
@@ -405,8 +2717,23 @@ public abstract class Grammar<T> {
         }
 
         @Override
-        protected boolean hasEpsilon(Function2<Grammar, Integer, Boolean> proxy, Integer nonEmptyCount) {
-            return gram.hasEpsilon(proxy, nonEmptyCount);
+        protected int recognizeImpl(CharSequence text, int idx, Options opts) {
+            return gram.recognize(text, idx, opts);
+        }
+
+        @Override
+        protected boolean computeHasEpsilon() {
+            return gram.hasEpsilon();
+        }
+
+        @Override
+        protected FirstSet firstSet(Function1<Grammar, FirstSet> proxy) {
+            return proxy.apply(gram);
+        }
+
+        @Override
+        protected void assemble(ParsingMachine.Assembler asm) {
+            asm.assemble(gram);
         }
     }
 }
@@ -0,0 +1,141 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package uy.com.netlabs.javapeg;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Aggregates parses into histograms of their latency, of the size of their inputs, and of how far failed parses got,
+ * counting matches and failures. Recording a parse takes a few atomic increments and allocates nothing, and the
+ * memory used does not grow with the number of parses.
+ *
+ * @author fran
+ */
+public class HistogramParseListener extends ParseListener {
+
+    private final Histogram nanos = new Histogram(), chars = new Histogram(), failureOffsets = new Histogram();
+
+    @Override
+    public void parsed(Object context, Grammar<?> grammar, CharSequence text, ParserResult result,
+            int farthestFailure, long nanos) {
+        this.nanos.record(nanos);
+        chars.record(text.length());
+        if (!result.isMatched()) {
+            failureOffsets.record(Math.max(farthestFailure, result.getIdx()));
+        }
+    }
+
+    /**
+     * @return the latency of every parse, in nanoseconds
+     */
+    public Histogram getNanos() {
+        return nanos;
+    }
+
+    /**
+     * @return the length of the input of every parse
+     */
+    public Histogram getChars() {
+        return chars;
+    }
+
+    /**
+     * @return for every parse that did not match, the farthest position where it failed
+     */
+    public Histogram getFailureOffsets() {
+        return failureOffsets;
+    }
+
+    public long getParses() {
+        return nanos.getCount();
+    }
+
+    public long getFailures() {
+        return failureOffsets.getCount();
+    }
+
+    public long getMatches() {
+        return getParses() - getFailures();
+    }
+
+    /**
+     * Counts non negative values into logarithmic buckets: values under 8 get a bucket each, and every power of two
+     * range above is split into 8 buckets, so a value is known within 12.5%.
+     */
+    public static final class Histogram {
+
+        private static final int SUB_BUCKETS = 8;
+        private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS * 62);
+        private final AtomicLongArray totals = new AtomicLongArray(2); // count, sum
+
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exp = 63 - Long.numberOfLeadingZeros(value);
+            return (exp - 2) * SUB_BUCKETS + (int) ((value >>> (exp - 3)) & (SUB_BUCKETS - 1));
+        }
+
+        /**
+         * @return the smallest value counted in bucket
+         */
+        static long lowerBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exp = bucket / SUB_BUCKETS + 2;
+            return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exp - 3);
+        }
+
+        public void record(long value) {
+            value = Math.max(value, 0);
+            counts.incrementAndGet(bucket(value));
+            totals.incrementAndGet(0);
+            totals.addAndGet(1, value);
+        }
+
+        public long getCount() {
+            return totals.get(0);
+        }
+
+        public long getSum() {
+            return totals.get(1);
+        }
+
+        public double getMean() {
+            long count = getCount();
+            return count == 0 ? 0 : (double) getSum() / count;
+        }
+
+        /**
+         * @param quantile between 0 and 1, e.g. 0.99 for the 99th percentile
+         * @return a value at least as large as that fraction of the values recorded (and within 12.5% of the exact
+         * quantile), or 0 if there are none
+         */
+        public long getQuantile(double quantile) {
+            if (quantile < 0 || quantile > 1) {
+                throw new IllegalArgumentException("Quantile out of [0, 1]: " + quantile);
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * getCount()));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return i + 1 < counts.length() ? lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+                }
+            }
+            return 0;
+        }
+
+        public void clear() {
+            for (int i = 0; i < counts.length(); i++) {
+                counts.set(i, 0);
+            }
+            totals.set(0, 0);
+            totals.set(1, 0);
+        }
+    }
+}
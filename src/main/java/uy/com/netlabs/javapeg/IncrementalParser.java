@@ -0,0 +1,232 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package uy.com.netlabs.javapeg;
+
+import java.util.HashMap;
+import java.util.List;
+import uy.com.netlabs.javapeg.util.Pair;
+
+/**
+ * Keeps a document and its parse up to date across edits, reparsing only what an edit may have changed.
+ *
+ * Parsing is packrat, with an unbounded memo table that also records how far every memoized match examined the input.
+ * After an edit, a memoized match is reused as is if everything it examined lies before the edit, and moved (see
+ * {@link ParserResult.AstNode#shift(int)}) if it starts after the removed text; every other match is parsed again. So
+ * reparsing walks from the root down to the edit, looking up the unaffected siblings found on the way.
+ *
+ * The document is kept in a gap buffer, so an edit costs the size of the inserted text plus the distance from the
+ * previous edit, instead of a copy of the whole document. Reparsing is not yet that local: a repetition whose match
+ * spans the edit is matched again item by item, and although every item away from the edit is a memo hit, each one
+ * is still looked up (and moved, if after the edit). So the cost of an edit also grows with the number of siblings
+ * along the path from the root (e.g. with the records of a top level repetition), linearly but with a small constant.
+ *
+ * Memoized tags are reused as they are, so reduce functions must not capture absolute positions in their tags, nor
+ * keep the text they are given without copying it, as the buffer changes in place. Only the matches looked up by the
+ * last parse are kept for the next one.
+ *
+ * @author fran
+ * @param <T> tag's generic type
+ */
+public class IncrementalParser<T> {
+
+    private final Grammar<T> grammar;
+    private final GapBuffer text;
+    private String snapshot;
+    private Memo memo;
+    private Pair<ParserResult, List<T>> result;
+
+    public IncrementalParser(Grammar<T> grammar, String text) {
+        this.grammar = grammar.prepare();
+        this.text = new GapBuffer(text);
+        this.snapshot = text;
+        this.memo = new Memo(null, 0, 0, 0);
+        this.result = parse();
+    }
+
+    /**
+     * Replaces removed chars at offset with inserted, and reparses.
+     *
+     * @return the new result, as {@link Grammar#matchProcessing(CharSequence)} would give for the new text
+     */
+    public Pair<ParserResult, List<T>> edit(int offset, int removed, String inserted) {
+        if (offset < 0 || removed < 0 || offset + removed > text.length()) {
+            throw new IndexOutOfBoundsException("offset=" + offset + ", removed=" + removed
+                    + ", length=" + text.length());
+        }
+        text.replace(offset, removed, inserted);
+        snapshot = null;
+        memo = new Memo(memo.entries, offset, removed, inserted.length());
+        result = parse();
+        return result;
+    }
+
+    /**
+     * @return a copy of the current text, made on the first call after every edit
+     */
+    public String getText() {
+        if (snapshot == null) {
+            snapshot = text.toString();
+        }
+        return snapshot;
+    }
+
+    public Pair<ParserResult, List<T>> getResult() {
+        return result;
+    }
+
+    private Pair<ParserResult, List<T>> parse() {
+        Grammar.Options opts = new Grammar.Options();
+        opts.memo = memo;
+        Pair<ParserResult, List<T>> res = grammar.matchProcessing(text, 0, opts);
+        memo.previous = null;
+        return res;
+    }
+
+    /**
+     * Entries of the current parse, falling back to the ones of the previous parse that survive the edit between
+     * both, moved to their new positions.
+     */
+    private static class Memo extends MemoTable {
+
+        private final HashMap<Integer, HashMap<Grammar, Entry>> entries = new HashMap<>();
+        private HashMap<Integer, HashMap<Grammar, Entry>> previous;
+        private final int offset, removed, inserted;
+
+        Memo(HashMap<Integer, HashMap<Grammar, Entry>> previous, int offset, int removed, int inserted) {
+            this.previous = previous;
+            this.offset = offset;
+            this.removed = removed;
+            this.inserted = inserted;
+        }
+
+        @Override
+        public Entry get(Grammar<?> grammar, int idx) {
+            HashMap<Grammar, Entry> atIdx = entries.get(idx);
+            Entry entry = atIdx == null ? null : atIdx.get(grammar);
+            if (entry != null || previous == null) {
+                return entry;
+            }
+            int delta = inserted - removed;
+            if (idx < offset) {
+                entry = lookup(previous, grammar, idx);
+                if (entry == null || entry.getExaminedEnd() > offset) {
+                    return null;
+                }
+            } else if (idx >= offset + inserted) {
+                entry = lookup(previous, grammar, idx - delta);
+                if (entry == null) {
+                    return null;
+                }
+                if (delta != 0) {
+                    entry = new Entry(shift(entry.<Object>getResult(), delta), entry.getExaminedEnd() + delta);
+                }
+            } else {
+                return null;
+            }
+            put(grammar, idx, entry);
+            return entry;
+        }
+
+        @Override
+        public void put(Grammar<?> grammar, int idx, Entry entry) {
+            HashMap<Grammar, Entry> atIdx = entries.get(idx);
+            if (atIdx == null) {
+                entries.put(idx, atIdx = new HashMap<>());
+            }
+            atIdx.put(grammar, entry);
+        }
+
+        private static Entry lookup(HashMap<Integer, HashMap<Grammar, Entry>> entries, Grammar<?> grammar, int idx) {
+            HashMap<Grammar, Entry> atIdx = entries.get(idx);
+            return atIdx == null ? null : atIdx.get(grammar);
+        }
+
+        private static <T> Pair<ParserResult, List<T>> shift(Pair<ParserResult, List<T>> result, int delta) {
+            ParserResult res = result.getLeft();
+            if (res instanceof ParserResult.AstNode) {
+                res = ((ParserResult.AstNode) res).shift(delta);
+            } else {
+                ParserResult.Failure failure = (ParserResult.Failure) res;
+                res = new ParserResult.Failure(failure.getIdx() + delta, failure.getExpectedTokens());
+            }
+            return new Pair<>(res, result.getRight());
+        }
+    }
+
+    /**
+     * The document, with a gap at the position of the last edit: moving the gap copies only the chars between the
+     * old and the new position, and inserting fills the gap, which doubles when full.
+     */
+    private static final class GapBuffer implements CharSequence {
+
+        private char[] chars;
+        private int gapStart, gapEnd;
+
+        GapBuffer(String text) {
+            chars = new char[Math.max(16, 2 * text.length())];
+            text.getChars(0, text.length(), chars, 0);
+            gapStart = text.length();
+            gapEnd = chars.length;
+        }
+
+        void replace(int offset, int removed, String inserted) {
+            if (offset < gapStart) {
+                System.arraycopy(chars, offset, chars, gapEnd - (gapStart - offset), gapStart - offset);
+                gapEnd -= gapStart - offset;
+            } else if (offset > gapStart) {
+                System.arraycopy(chars, gapEnd, chars, gapStart, offset - gapStart);
+                gapEnd += offset - gapStart;
+            }
+            gapStart = offset;
+            gapEnd += removed;
+            if (inserted.length() > gapEnd - gapStart) {
+                int length = length();
+                char[] grown = new char[Math.max(2 * chars.length, 2 * (length + inserted.length()))];
+                System.arraycopy(chars, 0, grown, 0, gapStart);
+                int tail = chars.length - gapEnd;
+                System.arraycopy(chars, gapEnd, grown, grown.length - tail, tail);
+                chars = grown;
+                gapEnd = grown.length - tail;
+            }
+            inserted.getChars(0, inserted.length(), chars, gapStart);
+            gapStart += inserted.length();
+        }
+
+        @Override
+        public int length() {
+            return chars.length - (gapEnd - gapStart);
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length()) {
+                throw new IndexOutOfBoundsException("index=" + index + ", length=" + length());
+            }
+            return index < gapStart ? chars[index] : chars[index + gapEnd - gapStart];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || end < start || end > length()) {
+                throw new IndexOutOfBoundsException("start=" + start + ", end=" + end + ", length=" + length());
+            }
+            StringBuilder sb = new StringBuilder(end - start);
+            if (start < gapStart) {
+                sb.append(chars, start, Math.min(end, gapStart) - start);
+            }
+            if (end > gapStart) {
+                int from = Math.max(start, gapStart);
+                sb.append(chars, from + gapEnd - gapStart, end - from);
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, length()).toString();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package uy.com.netlabs.javapeg;
+
+import java.util.HashMap;
+import java.util.List;
+import uy.com.netlabs.javapeg.util.Pair;
+
+/**
+ * Packrat memo table mapping (grammar, position) pairs to their match results.
+ *
+ * Every entry also remembers how far its match examined the input (see {@link Grammar.Options#examinedEnd}), which is
+ * what allows {@link IncrementalParser} to tell which entries survive an edit.
+ *
+ * @author fran
+ */
+public abstract class MemoTable {
+
+    public static final class Entry {
+
+        private final Pair result;
+        private final int examinedEnd;
+
+        public <T> Entry(Pair<ParserResult, List<T>> result, int examinedEnd) {
+            this.result = result;
+            this.examinedEnd = examinedEnd;
+        }
+
+        public <T> Pair<ParserResult, List<T>> getResult() {
+            return result;
+        }
+
+        public int getExaminedEnd() {
+            return examinedEnd;
+        }
+    }
+
+    /**
+     * @return the entry stored for the pair, or null
+     */
+    public abstract Entry get(Grammar<?> grammar, int idx);
+
+    public abstract void put(Grammar<?> grammar, int idx, Entry entry);
+
+    /**
+     * An empty table of the same kind and size as this one, for another parse of the same text (e.g. the one finding
+     * out why a parse failed, see {@link Grammar.Options#fastFailures}).
+     *
+     * @return the new table, or null if this kind of table cannot be created again (the default)
+     */
+    public MemoTable fresh() {
+        return null;
+    }
+
+    /**
+     * A table whose memory is bounded by a sliding window of at most {@code window} distinct positions: each position
+     * owns the slot {@code position % window} of a ring buffer, so storing a result for a position evicts everything
+     * remembered for the position that previously held that slot. Since parsing moves mostly forward and backtracks
+     * only locally, this keeps the positions around the farthest point reached while dropping the ones left behind.
+     */
+    public static MemoTable window(int window) {
+        return new Window(window);
+    }
+
+    private static class Window extends MemoTable {
+
+        private final int window;
+        private final int[] slotPositions;
+        private final HashMap<Grammar, Entry>[] slots;
+
+        Window(int window) {
+            if (window <= 0) {
+                throw new IllegalArgumentException("window must be positive");
+            }
+            this.window = window;
+            this.slotPositions = new int[window];
+            this.slots = new HashMap[window];
+        }
+
+        @Override
+        public MemoTable fresh() {
+            return new Window(window);
+        }
+
+        @Override
+        public Entry get(Grammar<?> grammar, int idx) {
+            int slot = idx % window;
+            if (slotPositions[slot] != idx || slots[slot] == null) {
+                return null;
+            }
+            return slots[slot].get(grammar);
+        }
+
+        @Override
+        public void put(Grammar<?> grammar, int idx, Entry entry) {
+            int slot = idx % window;
+            HashMap<Grammar, Entry> entries = slots[slot];
+            if (entries == null) {
+                entries = slots[slot] = new HashMap<>();
+            } else if (slotPositions[slot] != idx) {
+                entries.clear();
+            }
+            slotPositions[slot] = idx;
+            entries.put(grammar, entry);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package uy.com.netlabs.javapeg;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import uy.com.netlabs.javapeg.util.Function2;
+import uy.com.netlabs.javapeg.util.Pair;
+
+/**
+ * Matches a top level repetition of independent records using several threads, giving the same result as
+ * {@link Grammar#matchProcessing(CharSequence)} on the repetition.
+ *
+ * The input is split into chunks at sync points, positions guessed to start a record (by default, line starts), and
+ * every chunk is parsed as a sequence of records in its own task. Chunks are then stitched in order: a chunk is used
+ * only if the records before it ended exactly where it starts. When a guess was wrong, for instance because a record
+ * spans several lines, the records that follow are parsed sequentially until they again end at the start of some
+ * chunk, and that chunk's work is used from there on.
+ *
+ * Records must not depend on what precedes them, which holds as long as the record grammar does not refer back to the
+ * repetition itself.
+ *
+ * @author fran
+ * @param <T> tag's generic type
+ */
+public class ParallelParser<T> {
+
+    /**
+     * Sync points at line starts: the first position at or after the given one that follows a '\n'.
+     */
+    public static final Function2<CharSequence, Integer, Integer> LINES = new Function2<CharSequence, Integer, Integer>() {
+        @Override
+        public Integer apply(CharSequence text, Integer idx) {
+            for (int i = Math.max(idx, 1); i < text.length(); i++) {
+                if (text.charAt(i - 1) == '\n') {
+                    return i;
+                }
+            }
+            return text.length();
+        }
+    };
+
+    private final Grammar.QuantGrammar<T> repetition;
+    private final ForkJoinPool pool;
+    private Function2<CharSequence, Integer, Integer> syncPoints = LINES;
+    private int chunkSize = 1 << 16;
+
+    public ParallelParser(Grammar.QuantGrammar<T> repetition, ForkJoinPool pool) {
+        this.repetition = repetition;
+        repetition.prepare();
+        this.pool = pool;
+    }
+
+    /**
+     * @param syncPoints given the input and a position, returns the first position at or after it where a record is
+     * likely to start (or the input length if there is none)
+     * @return this
+     */
+    public ParallelParser<T> withSyncPoints(Function2<CharSequence, Integer, Integer> syncPoints) {
+        this.syncPoints = syncPoints;
+        return this;
+    }
+
+    /**
+     * @param chunkSize approximate number of chars parsed by every task
+     * @return this
+     */
+    public ParallelParser<T> withChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    public Pair<ParserResult, List<T>> matchProcessing(final CharSequence text) {
+        List<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        for (int next = syncPoints.apply(text, chunkSize); next < text.length();
+                next = syncPoints.apply(text, next + chunkSize)) {
+            if (next > starts.get(starts.size() - 1)) {
+                starts.add(next);
+            }
+        }
+        List<ForkJoinTask<Chunk<T>>> tasks = new ArrayList<>(starts.size());
+        for (int i = 0; i < starts.size(); i++) {
+            final int from = starts.get(i);
+            final int until = i + 1 < starts.size() ? starts.get(i + 1) : Integer.MAX_VALUE;
+            tasks.add(pool.submit(new Callable<Chunk<T>>() {
+                @Override
+                public Chunk<T> call() {
+                    return parse(text, from, until);
+                }
+            }));
+        }
+        // stitch:
+        int max = repetition.max;
+        List<ParserResult.AstNode> nodes = new ArrayList<>();
+        List<T> tags = new ArrayList<>();
+        Pair<ParserResult, List<T>> failure = null;
+        int idx = 0;
+        int next = 0;
+        while (nodes.size() < max && failure == null) {
+            while (next < starts.size() && starts.get(next) < idx) {
+                tasks.get(next++).cancel(false);
+            }
+            Chunk<T> chunk;
+            if (next < starts.size() && starts.get(next) == idx) {
+                chunk = tasks.get(next++).join();
+            } else {
+                // a misguessed sync point, go on sequentially until reaching the start of a chunk:
+                chunk = parse(text, idx, next < starts.size() ? starts.get(next) : Integer.MAX_VALUE);
+            }
+            int count = Math.min(chunk.nodes.size(), max - nodes.size());
+            for (int i = 0; i < count; i++) {
+                ParserResult.AstNode node = chunk.nodes.get(i);
+                nodes.add(node);
+                tags.addAll(chunk.tags.get(i));
+                idx = node.getIdx() + node.getLength();
+            }
+            if (count == chunk.nodes.size()) {
+                failure = chunk.failure;
+            }
+        }
+        for (int i = next; i < tasks.size(); i++) {
+            tasks.get(i).cancel(false);
+        }
+        if (nodes.size() < repetition.min) {
+            return failure;
+        }
+        ParserResult.AstNode node = new ParserResult.AstNode(0, idx,
+                nodes.toArray(new ParserResult.AstNode[nodes.size()]));
+        if (repetition.reduceFunction != null) {
+            tags = repetition.reduceFunction.reduce(text, node, tags);
+        }
+        return new Pair<ParserResult, List<T>>(node, tags);
+    }
+
+    private static class Chunk<T> {
+
+        final List<ParserResult.AstNode> nodes = new ArrayList<>();
+        final List<List<T>> tags = new ArrayList<>();
+        Pair<ParserResult, List<T>> failure;
+    }
+
+    /**
+     * Parses records from {@code from} on, until one fails or one ends at or after {@code until}.
+     */
+    private Chunk<T> parse(CharSequence text, int from, int until) {
+        Chunk<T> chunk = new Chunk<>();
+        Grammar.Options opts = new Grammar.Options();
+        int idx = from;
+        while (idx < until && chunk.nodes.size() < repetition.max) {
+            Pair<ParserResult, List<T>> res = repetition.child.matchProcessing(text, idx, opts);
+            if (!res.getLeft().isMatched()) {
+                chunk.failure = res;
+                break;
+            }
+            ParserResult.AstNode node = (ParserResult.AstNode) res.getLeft();
+            if (node.getLength() == 0 && repetition.max == Integer.MAX_VALUE) {
+                throw new IllegalStateException("infinite loop after infinite epsilon match");
+            }
+            chunk.nodes.add(node);
+            chunk.tags.add(res.getRight());
+            idx += node.getLength();
+        }
+        return chunk;
+    }
+}
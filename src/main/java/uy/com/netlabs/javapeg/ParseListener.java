@@ -0,0 +1,41 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package uy.com.netlabs.javapeg;
+
+/**
+ * Told about every top level parse, once set with {@link Grammar#setParseListener(ParseListener)}: how long it took,
+ * how large its input was, whether it matched and how far it got. {@link HistogramParseListener} aggregates them in
+ * memory; JfrParseListener, in the javapeg-jfr module (java 11), records slow parses as JDK Flight Recorder events.
+ *
+ * Parses may run on several threads at the same time, so implementations must be thread safe. They run on the
+ * parsing thread, inside the parse's time, and anything they throw is thrown by the parse.
+ *
+ * @author fran
+ */
+public abstract class ParseListener {
+
+    /**
+     * Called before a parse starts. The default implementation does nothing.
+     *
+     * @return anything to be handed back to {@link #parsed(Object, Grammar, CharSequence, ParserResult, int, long)}
+     * for the same parse, or null
+     */
+    public Object parsing(Grammar<?> grammar, CharSequence text) {
+        return null;
+    }
+
+    /**
+     * Called once a parse finished.
+     *
+     * @param context what {@link #parsing(Grammar, CharSequence)} returned for this parse
+     * @param result the AST, or the failure
+     * @param farthestFailure the farthest position where a terminal failed to match, or -1 (see
+     * {@link Grammar.Options#farthestFailure})
+     * @param nanos time the parse took, including reporting failures in detail
+     */
+    public abstract void parsed(Object context, Grammar<?> grammar, CharSequence text, ParserResult result,
+            int farthestFailure, long nanos);
+}
@@ -7,6 +7,7 @@ package uy.com.netlabs.javapeg;
 
 import java.util.ArrayList;
 import java.util.List;
+import uy.com.netlabs.javapeg.util.CharSequenceView;
 
 /**
  *
@@ -22,6 +23,9 @@ public abstract class ParserResult {
 
         private int idx, length;
         private AstNode[] children;
+        // a shifted node copies its children only when asked for them:
+        private AstNode[] unshiftedChildren;
+        private int childrenDelta;
 
         public AstNode(int idx, int length) {
             this.idx = idx;
@@ -45,9 +49,32 @@ public abstract class ParserResult {
         }
 
         public AstNode[] getChildren() {
+            if (children == null) {
+                AstNode[] shifted = new AstNode[unshiftedChildren.length];
+                for (int i = 0; i < shifted.length; i++) {
+                    shifted[i] = unshiftedChildren[i].shift(childrenDelta);
+                }
+                children = shifted;
+            }
             return children;
         }
 
+        /**
+         * Returns this same tree moved delta positions, as needed after inserting or removing text before it. The
+         * subtree is shared: descendants are only moved when first visited, so this is constant time.
+         */
+        public AstNode shift(int delta) {
+            AstNode res = new AstNode(idx + delta, length, null);
+            if (children != null) {
+                res.unshiftedChildren = children;
+                res.childrenDelta = delta;
+            } else {
+                res.unshiftedChildren = unshiftedChildren;
+                res.childrenDelta = childrenDelta + delta;
+            }
+            return res;
+        }
+
         @Override
         public boolean isMatched() {
             return true;
@@ -57,12 +84,23 @@ public abstract class ParserResult {
             return text.substring(idx, idx + length);
         }
 
+        public String substring(CharSequence text) {
+            return text.subSequence(idx, idx + length).toString();
+        }
+
+        /**
+         * Like {@link #substring(CharSequence)}, but returns a view over the matched region instead of a copy.
+         */
+        public CharSequence view(CharSequence text) {
+            return new CharSequenceView(text, idx, idx + length);
+        }
+
         @Override
         public String toString() {
             StringBuilder sb = new StringBuilder("AstNode{idx=").append(idx)
                     .append(", length=").append(length).append(", children=[");
             int i = 0;
-            for (AstNode child: children) {
+            for (AstNode child: getChildren()) {
                 if (i++ > 0) {
                     sb.append(", ");
                 }
@@ -130,4 +168,41 @@ public abstract class ParserResult {
             return "Failure{" + "idx=" + idx + ", expectedTokens=" + expectedTokens + '}';
         }
     }
+
+    /**
+     * A parse given up for going beyond the step budget or the deadline of its options (see
+     * {@link Grammar.Options#withStepBudget(long)}). It is a failure expecting nothing, at the farthest position the
+     * parse reached.
+     */
+    public static class Aborted extends Failure {
+
+        public enum Reason {
+            STEP_BUDGET, DEADLINE
+        }
+
+        private final Reason reason;
+        private final long steps;
+
+        public Aborted(int idx, Reason reason, long steps) {
+            super(idx, new ArrayList<String>(0));
+            this.reason = reason;
+            this.steps = steps;
+        }
+
+        public Reason getReason() {
+            return reason;
+        }
+
+        /**
+         * @return how many grammar matches the parse had run
+         */
+        public long getSteps() {
+            return steps;
+        }
+
+        @Override
+        public String toString() {
+            return "Aborted{" + "idx=" + idx + ", reason=" + reason + ", steps=" + steps + '}';
+        }
+    }
 }
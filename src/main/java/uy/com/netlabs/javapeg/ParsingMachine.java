@@ -0,0 +1,551 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package uy.com.netlabs.javapeg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A grammar lowered to a flat instruction array, run by a single loop with explicit backtrack, frame and call stacks.
+ *
+ * Unlike the tree walker, the machine does not use one Java stack frame per grammar level, so deeply nested inputs
+ * can not overflow the stack. It produces the same {@link ParserResult} as {@link Grammar#match(CharSequence)}; reduce
+ * functions are not run. Grammars the machine knows nothing about are run through the tree walker.
+ *
+ * The tree is built into an {@link AstArena}, which callers may also keep (and reuse) instead of asking for AstNodes.
+ *
+ * @author fran
+ */
+public final class ParsingMachine {
+
+    static final int TEXT = 0;          // TEXT k: match the string constant k
+    static final int DOT = 1;           // DOT: match any char
+    static final int RANGE = 2;         // RANGE from to: match a char in [from, to]
+    static final int EXTERN = 3;        // EXTERN k: match the grammar constant k with the tree walker
+    static final int OPEN = 4;          // OPEN: push a frame remembering the current position and node stack height
+    static final int CLOSE = 5;         // CLOSE: pop a frame, replacing its nodes by a single parent node
+    static final int CLOSE_LOOKAHEAD = 6; // CLOSE_LOOKAHEAD: as CLOSE, but with length 0 and rewinding the position
+    static final int POP = 7;           // POP: pop a frame leaving the node stack as is
+    static final int CHOICE = 8;        // CHOICE l: push a backtrack entry resuming at l
+    static final int COMMIT = 9;        // COMMIT l: drop the top backtrack entry and jump to l
+    static final int QLOOP = 10;        // QLOOP max l: jump to l if the frame already counted max repetitions
+    static final int QCOMMIT = 11;      // QCOMMIT l unbounded: drop the top backtrack entry, count and jump to l
+    static final int QFAIL = 12;        // QFAIL min: keep failing unless the frame counted min repetitions
+    static final int ALT_MERGE = 13;    // ALT_MERGE: merge the current failure into the frame's one
+    static final int ALT_FAIL = 14;     // ALT_FAIL: fail with the frame's merged failure
+    static final int NEG_FAIL = 15;     // NEG_FAIL: undo up to the top backtrack entry and fail at its position
+    static final int EMPTY = 16;        // EMPTY: push an empty node
+    static final int CALL = 17;         // CALL r: call rule r
+    static final int RET = 18;          // RET: return from the current rule
+    static final int END = 19;          // END: successful end of the program
+    static final int TEXTS = 20;        // TEXTS k: match the first string of the alt texts grammar constant k
+    static final int CLASS = 21;        // CLASS k: match a code point of the char class grammar constant k
+    static final int OPEN_LOOKAHEAD = 22; // OPEN_LOOKAHEAD: as OPEN, for a frame closed by CLOSE_LOOKAHEAD
+
+    private final int[] code;
+    private final Object[] constants;
+    private final int[] ruleEntries;
+    private final Grammar<?>[] rules;
+
+    private ParsingMachine(int[] code, Object[] constants, int[] ruleEntries, Grammar<?>[] rules) {
+        this.code = code;
+        this.constants = constants;
+        this.ruleEntries = ruleEntries;
+        this.rules = rules;
+    }
+
+    public static ParsingMachine compile(Grammar<?> grammar) {
+        Assembler asm = new Assembler();
+        asm.assemble(grammar);
+        asm.emit(END);
+        // rule bodies may call further rules, so pending is walked while it grows:
+        for (int r = 0; r < asm.pendingRules.size(); r++) {
+            asm.ruleEntries.add(asm.size);
+            asm.assemble(asm.pendingRules.get(r));
+            asm.emit(RET);
+        }
+        int[] ruleEntries = new int[asm.ruleEntries.size()];
+        for (int r = 0; r < ruleEntries.length; r++) {
+            ruleEntries[r] = asm.ruleEntries.get(r);
+        }
+        Grammar<?>[] rules = new Grammar<?>[ruleEntries.length];
+        for (Map.Entry<Grammar, Integer> rule: asm.rules.entrySet()) {
+            rules[rule.getValue()] = rule.getKey();
+        }
+        return new ParsingMachine(Arrays.copyOf(asm.code, asm.size), asm.constants.toArray(), ruleEntries, rules);
+    }
+
+    public ParserResult match(CharSequence text) {
+        return match(text, 0);
+    }
+
+    public ParserResult match(CharSequence text, int idx) {
+        AstArena arena = new AstArena();
+        ParserResult.Failure failure = match(text, idx, arena);
+        return failure != null ? failure : arena.toAstNode(arena.getRoot());
+    }
+
+    /**
+     * Matches building the AST into an arena instead of AstNode objects. The arena is cleared first, and can be reused
+     * across calls.
+     *
+     * @return null on success, with the tree's root at {@link AstArena#getRoot()}, or the failure
+     */
+    public ParserResult.Failure match(CharSequence text, int idx, AstArena arena) {
+        arena.clear();
+        return (ParserResult.Failure) run(text, idx, arena, null);
+    }
+
+    /**
+     * Matches without building any tree, telling the listener about matched rules and terminals instead.
+     *
+     * Events are delivered only once committed, that is, once no backtracking can undo them: until then they are kept
+     * in a log that backtracking truncates. So memory is bounded by the largest region of input the grammar may still
+     * backtrack over, not by the size of the input, and everything matched inside lookaheads goes unreported. A parse
+     * that fails may have reported the events of the part of the input before the failure.
+     *
+     * @return a node spanning the match (without children), or the failure
+     */
+    public ParserResult match(CharSequence text, int idx, Listener listener) {
+        return run(text, idx, null, listener);
+    }
+
+    /**
+     * Receives the committed matches of {@link #match(CharSequence, int, Listener)}, in input order.
+     */
+    public interface Listener {
+
+        /**
+         * A reference grammar starts matching at idx.
+         */
+        void enterRule(Grammar<?> rule, int idx);
+
+        /**
+         * The reference grammar that last entered and did not exit yet matched length chars at idx.
+         */
+        void exitRule(Grammar<?> rule, int idx, int length);
+
+        /**
+         * A terminal matched length chars at idx.
+         */
+        void token(int idx, int length);
+    }
+
+    private static final int EVENT_TOKEN = 0, EVENT_ENTER = 1, EVENT_EXIT = 2;
+
+    /**
+     * Runs the program, building the tree into arena or, if it is null, reporting events to listener.
+     *
+     * @return the failure, or on success null when building into arena and the match's node otherwise
+     */
+    private ParserResult run(CharSequence text, int idx, AstArena arena, Listener listener) {
+        final int[] code = this.code;
+        final int start = idx;
+        int pc = 0;
+        ParserResult.Failure failure = null;
+        Grammar.Options externOpts = null;
+        int[] positions = new int[ruleEntries.length];
+        Arrays.fill(positions, -1);
+
+        int[] nodes = new int[16];
+        int nodeTop = 0;
+        int[] frStart = new int[16], frNodes = new int[16], frCount = new int[16], frLog = new int[16],
+                frLookaheads = new int[16];
+        ParserResult.Failure[] frFailure = new ParserResult.Failure[16];
+        int frameTop = 0;
+        int[] btPc = new int[16], btIdx = new int[16], btNodes = new int[16], btFrames = new int[16],
+                btCalls = new int[16], btArena = new int[16], btLog = new int[16];
+        int btTop = 0;
+        int[] clReturn = new int[16], clRule = new int[16], clSaved = new int[16];
+        int callTop = 0;
+        // events not committed yet, as (kind, rule, idx, length) quadruples:
+        int[] log = listener == null ? null : new int[64];
+        int logSize = 0;
+
+        while (true) {
+            boolean fail = false;
+            int leaf = -1;          // length of a terminal just matched at idx
+            int event = -1, eventRule = 0, eventIdx = 0, eventLength = 0;
+            switch (code[pc]) {
+                case TEXT: {
+                    String lit = (String) constants[code[pc + 1]];
+                    if (Grammar.startsWith(text, idx, lit)) {
+                        leaf = lit.length();
+                        pc += 2;
+                    } else {
+                        failure = new ParserResult.Failure(idx, lit);
+                        fail = true;
+                    }
+                    break;
+                }
+                case DOT:
+                    if (idx < text.length()) {
+                        leaf = 1;
+                        pc += 1;
+                    } else {
+                        failure = new ParserResult.Failure(idx, "any char");
+                        fail = true;
+                    }
+                    break;
+                case RANGE: {
+                    char from = (char) code[pc + 1], to = (char) code[pc + 2];
+                    if (idx < text.length() && from <= text.charAt(idx) && text.charAt(idx) <= to) {
+                        leaf = 1;
+                        pc += 3;
+                    } else {
+                        failure = new ParserResult.Failure(idx, "char from '" + from + "' to '" + to + "'");
+                        fail = true;
+                    }
+                    break;
+                }
+                case TEXTS: {
+                    Grammar.AltTextsGrammar<?> texts = (Grammar.AltTextsGrammar<?>) constants[code[pc + 1]];
+                    int length = texts.matchLength(text, idx);
+                    if (length >= 0) {
+                        leaf = length;
+                        pc += 2;
+                    } else {
+                        failure = new ParserResult.Failure(idx, texts.getExpectedTokens());
+                        fail = true;
+                    }
+                    break;
+                }
+                case CLASS: {
+                    Grammar.CharClassGrammar<?> charClass = (Grammar.CharClassGrammar<?>) constants[code[pc + 1]];
+                    int length = charClass.matchLength(text, idx, null);
+                    if (length > 0) {
+                        leaf = length;
+                        pc += 2;
+                    } else {
+                        failure = new ParserResult.Failure(idx, charClass.getExpectedTokens());
+                        fail = true;
+                    }
+                    break;
+                }
+                case EXTERN: {
+                    if (externOpts == null) {
+                        externOpts = new Grammar.Options();
+                        externOpts.skipProcessing = true;
+                    }
+                    ParserResult res = ((Grammar<?>) constants[code[pc + 1]]).matchProcessing(text, idx, externOpts)
+                            .getLeft();
+                    if (res instanceof ParserResult.AstNode) {
+                        int length = ((ParserResult.AstNode) res).getLength();
+                        if (arena != null) {
+                            nodes = ensure(nodes, nodeTop);
+                            nodes[nodeTop++] = arena.add((ParserResult.AstNode) res);
+                        } else {
+                            event = EVENT_TOKEN;
+                            eventIdx = idx;
+                            eventLength = length;
+                        }
+                        idx += length;
+                        pc += 2;
+                    } else {
+                        failure = (ParserResult.Failure) res;
+                        fail = true;
+                    }
+                    break;
+                }
+                case OPEN:
+                case OPEN_LOOKAHEAD:
+                    if (frameTop == frStart.length) {
+                        frStart = Arrays.copyOf(frStart, frameTop * 2);
+                        frNodes = Arrays.copyOf(frNodes, frameTop * 2);
+                        frCount = Arrays.copyOf(frCount, frameTop * 2);
+                        frFailure = Arrays.copyOf(frFailure, frameTop * 2);
+                        frLog = Arrays.copyOf(frLog, frameTop * 2);
+                        frLookaheads = Arrays.copyOf(frLookaheads, frameTop * 2);
+                    }
+                    frStart[frameTop] = idx;
+                    frNodes[frameTop] = nodeTop;
+                    frCount[frameTop] = 0;
+                    frFailure[frameTop] = null;
+                    frLog[frameTop] = logSize;
+                    // lookahead frames open up to this one:
+                    frLookaheads[frameTop] = (frameTop == 0 ? 0 : frLookaheads[frameTop - 1])
+                            + (code[pc] == OPEN_LOOKAHEAD ? 1 : 0);
+                    frameTop++;
+                    pc += 1;
+                    break;
+                case CLOSE:
+                case CLOSE_LOOKAHEAD: {
+                    frameTop--;
+                    int frameStart = frStart[frameTop], height = frNodes[frameTop];
+                    if (code[pc] == CLOSE_LOOKAHEAD) {
+                        idx = frameStart;
+                        logSize = frLog[frameTop];
+                    }
+                    if (arena != null) {
+                        int node = arena.add(frameStart, idx - frameStart, nodes, height, nodeTop);
+                        nodeTop = height;
+                        // an empty frame leaves one node more than it found:
+                        nodes = ensure(nodes, nodeTop);
+                        nodes[nodeTop++] = node;
+                    }
+                    pc += 1;
+                    break;
+                }
+                case POP:
+                    frFailure[--frameTop] = null;
+                    pc += 1;
+                    break;
+                case CHOICE:
+                    if (btTop == btPc.length) {
+                        btPc = Arrays.copyOf(btPc, btTop * 2);
+                        btIdx = Arrays.copyOf(btIdx, btTop * 2);
+                        btNodes = Arrays.copyOf(btNodes, btTop * 2);
+                        btFrames = Arrays.copyOf(btFrames, btTop * 2);
+                        btCalls = Arrays.copyOf(btCalls, btTop * 2);
+                        btArena = Arrays.copyOf(btArena, btTop * 2);
+                        btLog = Arrays.copyOf(btLog, btTop * 2);
+                    }
+                    btPc[btTop] = code[pc + 1];
+                    btIdx[btTop] = idx;
+                    btNodes[btTop] = nodeTop;
+                    btFrames[btTop] = frameTop;
+                    btCalls[btTop] = callTop;
+                    btArena[btTop] = arena != null ? arena.size() : 0;
+                    btLog[btTop] = logSize;
+                    btTop++;
+                    pc += 2;
+                    break;
+                case COMMIT:
+                    btTop--;
+                    pc = code[pc + 1];
+                    break;
+                case QLOOP:
+                    pc = frCount[frameTop - 1] >= code[pc + 1] ? code[pc + 2] : pc + 3;
+                    break;
+                case QCOMMIT:
+                    btTop--;
+                    if (code[pc + 2] != 0 && btIdx[btTop] == idx) {
+                        throw new IllegalStateException("infinite loop after infinite epsilon match");
+                    }
+                    frCount[frameTop - 1]++;
+                    pc = code[pc + 1];
+                    break;
+                case QFAIL:
+                    if (frCount[frameTop - 1] < code[pc + 1]) {
+                        fail = true;
+                    } else {
+                        failure = null;
+                        pc += 2;
+                    }
+                    break;
+                case ALT_MERGE:
+                    frFailure[frameTop - 1] = ParserResult.Failure.merge(frFailure[frameTop - 1], failure);
+                    failure = null;
+                    pc += 1;
+                    break;
+                case ALT_FAIL:
+                    failure = frFailure[frameTop - 1];
+                    fail = true;
+                    break;
+                case NEG_FAIL:
+                    btTop--;
+                    idx = btIdx[btTop];
+                    nodeTop = btNodes[btTop];
+                    if (arena != null) {
+                        arena.truncate(btArena[btTop]);
+                    }
+                    logSize = btLog[btTop];
+                    frameTop = btFrames[btTop];
+                    while (callTop > btCalls[btTop]) {
+                        callTop--;
+                        positions[clRule[callTop]] = clSaved[callTop];
+                    }
+                    failure = new ParserResult.Failure(idx, "<negative lookahead>");
+                    fail = true;
+                    break;
+                case EMPTY:
+                    if (arena != null) {
+                        nodes = ensure(nodes, nodeTop);
+                        nodes[nodeTop++] = arena.add(idx, 0);
+                    }
+                    pc += 1;
+                    break;
+                case CALL: {
+                    int rule = code[pc + 1];
+                    if (positions[rule] == idx) {
+                        throw new IllegalStateException("Left recursion detected.");
+                    }
+                    if (callTop == clReturn.length) {
+                        clReturn = Arrays.copyOf(clReturn, callTop * 2);
+                        clRule = Arrays.copyOf(clRule, callTop * 2);
+                        clSaved = Arrays.copyOf(clSaved, callTop * 2);
+                    }
+                    clReturn[callTop] = pc + 2;
+                    clRule[callTop] = rule;
+                    clSaved[callTop] = positions[rule];
+                    callTop++;
+                    positions[rule] = idx;
+                    pc = ruleEntries[rule];
+                    event = EVENT_ENTER;
+                    eventRule = rule;
+                    eventIdx = idx;
+                    break;
+                }
+                case RET: {
+                    callTop--;
+                    int rule = clRule[callTop];
+                    event = EVENT_EXIT;
+                    eventRule = rule;
+                    eventIdx = positions[rule];
+                    eventLength = idx - positions[rule];
+                    positions[rule] = clSaved[callTop];
+                    pc = clReturn[callTop];
+                    break;
+                }
+                case END:
+                    if (arena != null) {
+                        arena.setRoot(nodes[0]);
+                        return null;
+                    }
+                    flush(listener, log, logSize);
+                    return new ParserResult.AstNode(start, idx - start);
+                default:
+                    throw new IllegalStateException("invalid instruction " + code[pc] + " at " + pc);
+            }
+            if (leaf >= 0) {
+                if (arena != null) {
+                    nodes = ensure(nodes, nodeTop);
+                    nodes[nodeTop++] = arena.add(idx, leaf);
+                } else {
+                    event = EVENT_TOKEN;
+                    eventIdx = idx;
+                    eventLength = leaf;
+                }
+                idx += leaf;
+            }
+            if (event >= 0 && listener != null) {
+                if (logSize + 4 > log.length) {
+                    log = Arrays.copyOf(log, log.length * 2);
+                }
+                log[logSize++] = event;
+                log[logSize++] = eventRule;
+                log[logSize++] = eventIdx;
+                log[logSize++] = eventLength;
+            }
+            // once a COMMIT or QCOMMIT dropped the last backtrack entry (e.g. after every repetition of a top level
+            // loop), nothing is left that could undo them:
+            if (logSize > 0 && btTop == 0 && (frameTop == 0 || frLookaheads[frameTop - 1] == 0)) {
+                flush(listener, log, logSize);
+                logSize = 0;
+            }
+            if (fail) {
+                if (btTop == 0) {
+                    return failure;
+                }
+                btTop--;
+                pc = btPc[btTop];
+                idx = btIdx[btTop];
+                nodeTop = btNodes[btTop];
+                if (arena != null) {
+                    arena.truncate(btArena[btTop]);
+                }
+                logSize = btLog[btTop];
+                frameTop = btFrames[btTop];
+                while (callTop > btCalls[btTop]) {
+                    callTop--;
+                    positions[clRule[callTop]] = clSaved[callTop];
+                }
+            }
+        }
+    }
+
+    private void flush(Listener listener, int[] log, int logSize) {
+        for (int i = 0; i < logSize; i += 4) {
+            switch (log[i]) {
+                case EVENT_TOKEN:
+                    listener.token(log[i + 2], log[i + 3]);
+                    break;
+                case EVENT_ENTER:
+                    listener.enterRule(rules[log[i + 1]], log[i + 2]);
+                    break;
+                default:
+                    listener.exitRule(rules[log[i + 1]], log[i + 2], log[i + 3]);
+                    break;
+            }
+        }
+    }
+    private static int[] ensure(int[] nodes, int top) {
+        return top < nodes.length ? nodes : Arrays.copyOf(nodes, nodes.length * 2);
+    }
+
+    /**
+     * Instruction emitter handed to {@link Grammar#assemble(Assembler)}.
+     */
+    public static final class Assembler {
+
+        private int[] code = new int[64];
+        private int size = 0;
+        private final List<Object> constants = new ArrayList<>();
+        private final IdentityHashMap<Grammar, Integer> rules = new IdentityHashMap<>();
+        private final List<Grammar> pendingRules = new ArrayList<>();
+        private final List<Integer> ruleEntries = new ArrayList<>();
+
+        private Assembler() {
+        }
+
+        void assemble(Grammar<?> grammar) {
+            grammar.assemble(this);
+        }
+
+        /**
+         * Emits an instruction, returning its address.
+         */
+        int emit(int op, int... operands) {
+            if (size + operands.length + 1 > code.length) {
+                code = Arrays.copyOf(code, Math.max(code.length * 2, size + operands.length + 1));
+            }
+            int address = size;
+            code[size++] = op;
+            for (int operand: operands) {
+                code[size++] = operand;
+            }
+            return address;
+        }
+
+        /**
+         * Address of the next instruction to be emitted.
+         */
+        int here() {
+            return size;
+        }
+
+        /**
+         * Sets the operand-th operand of the instruction at address.
+         */
+        void patch(int address, int operand, int value) {
+            code[address + 1 + operand] = value;
+        }
+
+        int constant(Object value) {
+            constants.add(value);
+            return constants.size() - 1;
+        }
+
+        /**
+         * Emits a call to the rule whose body is the given grammar, assembling the body once per distinct rule.
+         */
+        void call(Grammar<?> rule, Grammar<?> body) {
+            if (body == null) {
+                throw new IllegalStateException("undefined reference grammar");
+            }
+            Integer index = rules.get(rule);
+            if (index == null) {
+                index = pendingRules.size();
+                rules.put(rule, index);
+                pendingRules.add(body);
+            }
+            emit(CALL, index);
+        }
+    }
+}
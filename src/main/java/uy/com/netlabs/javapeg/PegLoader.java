@@ -0,0 +1,709 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package uy.com.netlabs.javapeg;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import uy.com.netlabs.javapeg.util.Pair;
+
+/**
+ * Builds grammars from their description in PEG syntax, and saves grammars as compact binary images that load without
+ * parsing or analysing anything again.
+ *
+ * The syntax is the usual one:
+ * <pre>
+ * # comments run until the end of the line
+ * Sum     &lt;- Product (('+' / '-') Product)*
+ * Product &lt;- Value (('*' / '/') Value)*
+ * Value   &lt;- [0-9]+ / '(' Sum ')'
+ * </pre>
+ * Literals go between single or double quotes, char classes between brackets (negated when they start with
+ * {@code ^}), and {@code .} matches any char. Expressions are grouped with parentheses, prefixed by {@code &} or
+ * {@code !} and followed by {@code ?}, {@code *} or {@code +}. Literals and classes understand the escapes {@code \n},
+ * {@code \r}, {@code \t}, octal ones, {@code \}{@code uXXXX}, and a backslash before any other punctuation for the
+ * punctuation itself.
+ *
+ * Every rule becomes a {@link Grammar.MutableReferenceGrammar}, to which reduce functions may be attached. Images
+ * only hold grammars without reduce functions, since those are code: they are meant for grammars used to obtain the
+ * AST, see {@link #load(CharSequence, String, File)}.
+ *
+ * @author fran
+ */
+public final class PegLoader {
+
+    private static final int MAGIC = 0x6a504547;    // "jPEG"
+    private static final int VERSION = 2;
+    private static final int TEXT = 0, DOT = 1, RANGE = 2, CLASS = 3, TEXTS = 4, CAT = 5, FUSED_CAT = 6, ALT = 7,
+            QUANT = 8, SPAN = 9, POSITIVE = 10, NEGATIVE = 11, REFERENCE = 12;
+    private static final int LEFT_RECURSIVE = 0x80, NULLABLE = 0x40;
+
+    /**
+     * References to the rules of the grammar being parsed, by name.
+     */
+    private final Map<String, Grammar.MutableReferenceGrammar<Object>> references = new HashMap<>();
+    private final Grammar<Object> syntax;
+
+    private PegLoader() {
+        syntax = syntax();
+    }
+
+    //======================================================================
+    // PEG SYNTAX SECTION:
+    //======================================================================
+    /**
+     * Parses a PEG grammar.
+     *
+     * @return its rules by name, in the order they are defined
+     * @throws IllegalArgumentException if the text is not valid PEG, a rule is defined twice or one that is used is
+     * never defined
+     */
+    public static <T> Map<String, Grammar<T>> parse(CharSequence peg) {
+        PegLoader loader = new PegLoader();
+        Grammar.Options opts = new Grammar.Options();
+        Pair<ParserResult, List<Object>> res = loader.syntax.prepare().matchProcessing(peg, 0, opts);
+        if (!res.getLeft().isMatched()) {
+            // repetitions hide the failures that stopped them, so the farthest one tells better what went wrong:
+            ParserResult.Failure failure = (ParserResult.Failure) res.getLeft();
+            int idx = Math.max(failure.getIdx(), opts.farthestFailure);
+            throw new IllegalArgumentException("Invalid PEG at " + position(peg, idx)
+                    + (idx == failure.getIdx() ? ", expected one of " + failure.getExpectedTokens() : ""));
+        }
+        // the tags are the name and expression of every definition:
+        List<Object> tags = res.getRight();
+        Map<String, Grammar<T>> rules = new LinkedHashMap<>();
+        for (int i = 0; i < tags.size(); i += 2) {
+            String name = (String) tags.get(i);
+            Grammar.MutableReferenceGrammar rule = loader.reference(name);
+            if (rules.put(name, rule) != null) {
+                throw new IllegalArgumentException("Rule " + name + " is defined twice.");
+            }
+            rule.setGrammar((Grammar) tags.get(i + 1));
+        }
+        for (String name: loader.references.keySet()) {
+            if (!rules.containsKey(name)) {
+                throw new IllegalArgumentException("Rule " + name + " is used but never defined.");
+            }
+        }
+        return Collections.unmodifiableMap(rules);
+    }
+
+    private Grammar.MutableReferenceGrammar<Object> reference(String name) {
+        Grammar.MutableReferenceGrammar<Object> rule = references.get(name);
+        if (rule == null) {
+            references.put(name, rule = new Grammar.MutableReferenceGrammar<>());
+        }
+        return rule;
+    }
+
+    private static String position(CharSequence text, int idx) {
+        int line = 1, lineStart = 0;
+        for (int i = 0; i < idx; i++) {
+            if (text.charAt(i) == '\n') {
+                line++;
+                lineStart = i + 1;
+            }
+        }
+        return "line " + line + ", column " + (idx - lineStart + 1);
+    }
+
+    /**
+     * The grammar of PEG itself, whose tags are the name and expression of every definition.
+     */
+    private Grammar<Object> syntax() {
+        Grammar<Object> spacing = new Grammar.QuantGrammar<>(0, Integer.MAX_VALUE, new Grammar.AltGrammar<>(
+            chars(" \t\r\n"),
+            new Grammar.CatGrammar<>(text("#"), new Grammar.QuantGrammar<>(0, Integer.MAX_VALUE,
+                    chars("\r\n").negation()))
+        ));
+        Grammar<Object> identifier = new Grammar.CatGrammar<>(
+            new Grammar.CatGrammar<>(
+                chars("_").union(range('a', 'z')).union(range('A', 'Z')),
+                new Grammar.QuantGrammar<>(0, Integer.MAX_VALUE,
+                        chars("_").union(range('a', 'z')).union(range('A', 'Z')).union(range('0', '9')))
+            ).with(new ReduceFunction<Object>() {
+                @Override
+                public List<Object> reduce(CharSequence text, ParserResult.AstNode node, List<Object> tags) {
+                    return Collections.<Object>singletonList(node.substring(text));
+                }
+            }),
+            spacing
+        );
+        Grammar<Object> leftArrow = token("<-", spacing);
+        Grammar.MutableReferenceGrammar<Object> expression = new Grammar.MutableReferenceGrammar<>();
+
+        // a code point, as an Integer tag:
+        Grammar<Object> character = new Grammar.AltGrammar<>(
+            new Grammar.CatGrammar<>(text("\\u"), hex(), hex(), hex(), hex()).with(new ReduceFunction<Object>() {
+                @Override
+                public List<Object> reduce(CharSequence text, ParserResult.AstNode node, List<Object> tags) {
+                    return Collections.<Object>singletonList(Integer.parseInt(
+                            text.subSequence(node.getIdx() + 2, node.getIdx() + 6).toString(), 16));
+                }
+            }),
+            new Grammar.CatGrammar<>(text("\\"), new Grammar.QuantGrammar<>(1, 3, range('0', '7')))
+                    .with(new ReduceFunction<Object>() {
+                @Override
+                public List<Object> reduce(CharSequence text, ParserResult.AstNode node, List<Object> tags) {
+                    return Collections.<Object>singletonList(Integer.parseInt(
+                            text.subSequence(node.getIdx() + 1, node.getIdx() + node.getLength()).toString(), 8));
+                }
+            }),
+            new Grammar.CatGrammar<>(text("\\"), chars("nrt")).with(new ReduceFunction<Object>() {
+                @Override
+                public List<Object> reduce(CharSequence text, ParserResult.AstNode node, List<Object> tags) {
+                    char c = text.charAt(node.getIdx() + 1);
+                    return Collections.<Object>singletonList((int) (c == 'n' ? '\n' : c == 'r' ? '\r' : '\t'));
+                }
+            }),
+            new Grammar.CatGrammar<>(text("\\"), range('!', '~').intersection(range('0', '9').union(range('a', 'z'))
+                    .union(range('A', 'Z')).negation())).with(new ReduceFunction<Object>() {
+                @Override
+                public List<Object> reduce(CharSequence text, ParserResult.AstNode node, List<Object> tags) {
+                    return Collections.<Object>singletonList((int) text.charAt(node.getIdx() + 1));
+                }
+            }),
+            new Grammar.CatGrammar<>(new Grammar.NegativeLookAhead<>(text("\\")),
+                    new Grammar.CharClassGrammar<>(0, Character.MAX_CODE_POINT)).with(new ReduceFunction<Object>() {
+                @Override
+                public List<Object> reduce(CharSequence text, ParserResult.AstNode node, List<Object> tags) {
+                    return Collections.<Object>singletonList(Character.codePointAt(text, node.getIdx()));
+                }
+            })
+        );
+        Grammar<Object> literal = new Grammar.CatGrammar<>(
+            new Grammar.AltGrammar<>(quoted("'", character), quoted("\"", character)),
+            spacing
+        ).with(new ReduceFunction<Object>() {
+            @Override
+            public List<Object> reduce(CharSequence text, ParserResult.AstNode node, List<Object> tags) {
+                StringBuilder sb = new StringBuilder();
+                for (Object c: tags) {
+                    sb.appendCodePoint((Integer) c);
+                }
+                return Collections.<Object>singletonList(new Grammar.TextGrammar<>(sb.toString()));
+            }
+        });
+        // a range, as a CharClassGrammar tag:
+        Grammar<Object> range = new Grammar.AltGrammar<>(
+            new Grammar.CatGrammar<>(character, text("-"), new Grammar.NegativeLookAhead<>(text("]")), character),
+            character
+        ).with(new ReduceFunction<Object>() {
+            @Override
+            public List<Object> reduce(CharSequence text, ParserResult.AstNode node, List<Object> tags) {
+                int from = (Integer) tags.get(0), to = (Integer) tags.get(tags.size() - 1);
+                if (to < from) {
+                    throw new IllegalArgumentException("Invalid PEG at " + position(text, node.getIdx())
+                            + ", empty range");
+                }
+                return Collections.<Object>singletonList(new Grammar.CharClassGrammar<>(from, to));
+            }
+        });
+        Grammar<Object> charClass = new Grammar.CatGrammar<>(
+            text("["),
+            new Grammar.QuantGrammar<>(0, 1, text("^")),
+            new Grammar.QuantGrammar<>(0, Integer.MAX_VALUE,
+                    new Grammar.CatGrammar<>(new Grammar.NegativeLookAhead<>(text("]")), range)),
+            text("]"),
+            spacing
+        ).with(new ReduceFunction<Object>() {
+            @Override
+            public List<Object> reduce(CharSequence text, ParserResult.AstNode node, List<Object> tags) {
+                Grammar.CharClassGrammar<Object> res = new Grammar.CharClassGrammar<>(0, Character.MAX_CODE_POINT)
+                        .negation();
+                for (Object r: tags) {
+                    res = res.union((Grammar.CharClassGrammar<?>) r);
+                }
+                return Collections.<Object>singletonList(text.charAt(node.getIdx() + 1) == '^' ? res.negation() : res);
+            }
+        });
+        Grammar<Object> primary = new Grammar.AltGrammar<>(
+            new Grammar.CatGrammar<>(identifier, new Grammar.NegativeLookAhead<>(leftArrow))
+                    .with(new ReduceFunction<Object>() {
+                @Override
+                public List<Object> reduce(CharSequence text, ParserResult.AstNode node, List<Object> tags) {
+                    return Collections.<Object>singletonList(reference((String) tags.get(0)));
+                }
+            }),
+            new Grammar.CatGrammar<>(token("(", spacing), expression, token(")", spacing)),
+            literal,
+            charClass,
+            token(".", spacing).with(new ReduceFunction<Object>() {
+                @Override
+                public List<Object> reduce(CharSequence text, ParserResult.AstNode node, List<Object> tags) {
+                    return Collections.<Object>singletonList(new Grammar.DotGrammar<>());
+                }
+            })
+        );
+        Grammar<Object> suffix = new Grammar.CatGrammar<>(
+            primary,
+            new Grammar.QuantGrammar<>(0, 1, new Grammar.AltGrammar<>(
+                token("?", spacing).with(ReduceFunction.<Object>replace("?")),
+                token("*", spacing).with(ReduceFunction.<Object>replace("*")),
+                token("+", spacing).with(ReduceFunction.<Object>replace("+"))
+            ))
+        ).with(new ReduceFunction<Object>() {
+            @Override
+            public List<Object> reduce(CharSequence text, ParserResult.AstNode node, List<Object> tags) {
+                if (tags.size() == 1) {
+                    return tags;
+                }
+                Grammar<Object> g = (Grammar<Object>) tags.get(0);
+                Object op = tags.get(1);
+                return Collections.<Object>singletonList(new Grammar.QuantGrammar<>(op.equals("+") ? 1 : 0,
+                        op.equals("?") ? 1 : Integer.MAX_VALUE, g));
+            }
+        });
+        Grammar<Object> prefix = new Grammar.CatGrammar<>(
+            new Grammar.QuantGrammar<>(0, 1, new Grammar.AltGrammar<>(
+                token("&", spacing).with(ReduceFunction.<Object>replace("&")),
+                token("!", spacing).with(ReduceFunction.<Object>replace("!"))
+            )),
+            suffix
+        ).with(new ReduceFunction<Object>() {
+            @Override
+            public List<Object> reduce(CharSequence text, ParserResult.AstNode node, List<Object> tags) {
+                if (tags.size() == 1) {
+                    return tags;
+                }
+                Grammar<Object> g = (Grammar<Object>) tags.get(1);
+                return Collections.<Object>singletonList(tags.get(0).equals("&")
+                        ? new Grammar.PositiveLookAhead<>(g) : new Grammar.NegativeLookAhead<>(g));
+            }
+        });
+        Grammar<Object> sequence = new Grammar.QuantGrammar<>(0, Integer.MAX_VALUE, prefix)
+                .with(new ReduceFunction<Object>() {
+            @Override
+            public List<Object> reduce(CharSequence text, ParserResult.AstNode node, List<Object> tags) {
+                if (tags.isEmpty()) {
+                    return Collections.<Object>singletonList(new Grammar.TextGrammar<>(""));
+                }
+                return tags.size() == 1 ? tags : Collections.<Object>singletonList(
+                        new Grammar.CatGrammar<>(tags.toArray(new Grammar[tags.size()])));
+            }
+        });
+        expression.setGrammar(new Grammar.CatGrammar<>(
+            sequence,
+            new Grammar.QuantGrammar<>(0, Integer.MAX_VALUE, new Grammar.CatGrammar<>(token("/", spacing), sequence))
+        ).with(new ReduceFunction<Object>() {
+            @Override
+            public List<Object> reduce(CharSequence text, ParserResult.AstNode node, List<Object> tags) {
+                return tags.size() == 1 ? tags : Collections.<Object>singletonList(
+                        new Grammar.AltGrammar<>(tags.toArray(new Grammar[tags.size()])));
+            }
+        }));
+        return new Grammar.CatGrammar<>(
+            spacing,
+            new Grammar.QuantGrammar<>(1, Integer.MAX_VALUE, new Grammar.CatGrammar<>(identifier, leftArrow, expression)),
+            new Grammar.NegativeLookAhead<>(new Grammar.DotGrammar<>())
+        );
+    }
+
+    private static Grammar<Object> text(String text) {
+        return new Grammar.TextGrammar<>(text);
+    }
+
+    private static Grammar<Object> token(String text, Grammar<Object> spacing) {
+        return new Grammar.CatGrammar<>(text(text), spacing);
+    }
+
+    private static Grammar<Object> quoted(String quote, Grammar<Object> character) {
+        return new Grammar.CatGrammar<>(text(quote), new Grammar.QuantGrammar<>(0, Integer.MAX_VALUE,
+                new Grammar.CatGrammar<>(new Grammar.NegativeLookAhead<>(text(quote)), character)), text(quote));
+    }
+
+    private static Grammar.CharClassGrammar<Object> range(char from, char to) {
+        return new Grammar.CharClassGrammar<>(from, to);
+    }
+
+    private static Grammar.CharClassGrammar<Object> chars(String chars) {
+        Grammar.CharClassGrammar<Object> res = range(chars.charAt(0), chars.charAt(0));
+        for (int i = 1; i < chars.length(); i++) {
+            res = res.union(range(chars.charAt(i), chars.charAt(i)));
+        }
+        return res;
+    }
+
+    private static Grammar<Object> hex() {
+        return range('0', '9').union(range('a', 'f')).union(range('A', 'F'));
+    }
+
+    //======================================================================
+    // IMAGE SECTION:
+    //======================================================================
+    /**
+     * Builds a rule of a PEG grammar and optimizes it (see {@link Grammar#optimize()}), keeping its image in a cache
+     * file: when the file was written for the same grammar text and rule, the grammar is read from it instead, and
+     * otherwise the file is written again.
+     *
+     * @throws IllegalArgumentException as {@link #parse(CharSequence)}, or if there is no such rule
+     */
+    public static <T> Grammar<T> load(CharSequence peg, String start, File cache) throws IOException {
+        byte[] digest = digest(peg, start);
+        if (cache.isFile()) {
+            try (InputStream in = new BufferedInputStream(new FileInputStream(cache))) {
+                byte[] saved = new byte[digest.length];
+                new DataInputStream(in).readFully(saved);
+                if (Arrays.equals(saved, digest)) {
+                    return read(in);
+                }
+            } catch (IOException e) {
+                // unreadable, or written by another version: build it again
+            }
+        }
+        Grammar<T> rule = PegLoader.<T>parse(peg).get(start);
+        if (rule == null) {
+            throw new IllegalArgumentException("There is no rule named " + start + ".");
+        }
+        Grammar<T> grammar = rule.optimize();
+        // written aside and then moved, so that no one reads it half written:
+        File written = new File(cache.getPath() + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(written))) {
+            out.write(digest);
+            write(grammar, out);
+        }
+        Files.move(written.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return grammar;
+    }
+
+    private static byte[] digest(CharSequence peg, String start) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update((start + '\n').getBytes(StandardCharsets.UTF_8));
+            md.update(peg.toString().getBytes(StandardCharsets.UTF_8));
+            return md.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);   // every JVM has it
+        }
+    }
+
+    /**
+     * Saves the image of a grammar, along with what {@link Grammar#prepare()} finds about it. The stream is flushed
+     * but not closed.
+     *
+     * @throws IllegalArgumentException if some grammar reachable from the given one has a reduce function, is an
+     * undefined reference, or is not one of the classes in {@link Grammar} (adapters hold code too)
+     */
+    public static void write(Grammar<?> grammar, OutputStream out) throws IOException {
+        grammar.prepare();
+        List<Grammar<?>> nodes = grammar.reachable();
+        IdentityHashMap<Grammar<?>, Integer> index = new IdentityHashMap<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            index.put(nodes.get(i), i);
+        }
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        writeInt(data, nodes.size());
+        for (Grammar<?> g: nodes) {
+            if (g.reduceFunction != null) {
+                throw new IllegalArgumentException("Cannot save grammars with reduce functions.");
+            }
+            int kind = kind(g);
+            data.writeByte(kind | (g.mayRecurseInPlace() ? LEFT_RECURSIVE : 0) | (g.hasEpsilon() ? NULLABLE : 0));
+            switch (kind) {
+                case TEXT:
+                    writeString(data, ((Grammar.TextGrammar) g).text);
+                    break;
+                case DOT:
+                    break;
+                case RANGE:
+                    writeInt(data, ((Grammar.RangeGrammar) g).from);
+                    writeInt(data, ((Grammar.RangeGrammar) g).to);
+                    break;
+                case CLASS: {
+                    int[] ranges = ((Grammar.CharClassGrammar) g).ranges;
+                    writeInt(data, ranges.length);
+                    for (int r: ranges) {
+                        writeInt(data, r);
+                    }
+                    List<String> tokens = ((Grammar.CharClassGrammar) g).getExpectedTokens();
+                    writeInt(data, tokens.size());
+                    for (String token: tokens) {
+                        writeString(data, token);
+                    }
+                    break;
+                }
+                case TEXTS: {
+                    String[] strings = ((Grammar.AltTextsGrammar) g).strings;
+                    writeInt(data, strings.length);
+                    for (String s: strings) {
+                        writeString(data, s);
+                    }
+                    break;
+                }
+                case QUANT:
+                case SPAN:
+                    writeInt(data, ((Grammar.QuantGrammar) g).min);
+                    writeInt(data, ((Grammar.QuantGrammar) g).max);
+                    writeInt(data, index.get(((Grammar.QuantGrammar) g).child));
+                    break;
+                default: {
+                    List<Grammar<?>> children = g.children();
+                    if (children.contains(null)) {
+                        throw new IllegalArgumentException("Cannot save a grammar with undefined references.");
+                    }
+                    if (kind == CAT || kind == FUSED_CAT || kind == ALT) {
+                        writeInt(data, children.size());
+                    }
+                    for (Grammar<?> child: children) {
+                        writeInt(data, index.get(child));
+                    }
+                    break;
+                }
+            }
+        }
+        data.flush();
+    }
+
+    private static int kind(Grammar<?> g) {
+        Class<?> c = g.getClass();
+        if (c == Grammar.TextGrammar.class) {
+            return TEXT;
+        } else if (c == Grammar.DotGrammar.class) {
+            return DOT;
+        } else if (c == Grammar.RangeGrammar.class) {
+            return RANGE;
+        } else if (c == Grammar.CharClassGrammar.class) {
+            return CLASS;
+        } else if (c == Grammar.AltTextsGrammar.class) {
+            return TEXTS;
+        } else if (c == Grammar.CatGrammar.class) {
+            return CAT;
+        } else if (c == Grammar.FusedCatGrammar.class) {
+            return FUSED_CAT;
+        } else if (c == Grammar.AltGrammar.class) {
+            return ALT;
+        } else if (c == Grammar.QuantGrammar.class) {
+            return QUANT;
+        } else if (c == Grammar.SpanGrammar.class) {
+            return SPAN;
+        } else if (c == Grammar.PositiveLookAhead.class) {
+            return POSITIVE;
+        } else if (c == Grammar.NegativeLookAhead.class) {
+            return NEGATIVE;
+        } else if (c == Grammar.MutableReferenceGrammar.class) {
+            return REFERENCE;
+        }
+        throw new IllegalArgumentException("Cannot save grammars of " + c.getName() + ".");
+    }
+
+    /**
+     * Reads the image of a grammar, as saved by {@link #write(Grammar, OutputStream)}. Exactly the bytes of the image
+     * are read, so it may be followed by anything else in the stream.
+     */
+    public static <T> Grammar<T> read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC || data.readInt() != VERSION) {
+            throw new IOException("Not a grammar image of version " + VERSION + ".");
+        }
+        int n = readInt(data);
+        int[] kinds = new int[n];
+        boolean[] leftRecursive = new boolean[n], nullable = new boolean[n];
+        // integer fields and children of every node, and its strings:
+        int[][] fields = new int[n][];
+        String[][] strings = new String[n][];
+        for (int i = 0; i < n; i++) {
+            int kind = data.readUnsignedByte();
+            leftRecursive[i] = (kind & LEFT_RECURSIVE) != 0;
+            nullable[i] = (kind & NULLABLE) != 0;
+            kinds[i] = kind & ~(LEFT_RECURSIVE | NULLABLE);
+            switch (kinds[i]) {
+                case TEXT:
+                    strings[i] = new String[]{readString(data)};
+                    break;
+                case DOT:
+                    break;
+                case RANGE:
+                    fields[i] = new int[]{readInt(data), readInt(data)};
+                    break;
+                case CLASS:
+                    fields[i] = readInts(data, readInt(data));
+                    strings[i] = readStrings(data, readInt(data));
+                    break;
+                case TEXTS:
+                    strings[i] = readStrings(data, readInt(data));
+                    break;
+                case CAT:
+                case FUSED_CAT:
+                case ALT:
+                    fields[i] = readInts(data, readInt(data));
+                    break;
+                case QUANT:
+                case SPAN:
+                    fields[i] = readInts(data, 3);
+                    break;
+                case POSITIVE:
+                case NEGATIVE:
+                case REFERENCE:
+                    fields[i] = readInts(data, 1);
+                    break;
+                default:
+                    throw new IOException("Corrupt grammar image, unknown node kind " + kinds[i] + ".");
+            }
+        }
+        Decoder decoder = new Decoder(kinds, fields, strings);
+        Grammar<T> root = (Grammar<T>) decoder.node(0);
+        // after every reference was set, as that invalidates what prepare() found:
+        Grammar.Shape shape = new Grammar.Shape();
+        for (int i = 0; i < n; i++) {
+            if (decoder.nodes[i] != null) {
+                decoder.nodes[i].prepared(leftRecursive[i], nullable[i], i, shape);
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Builds the nodes of an image on demand, children first, except for references, which are built before what
+     * they refer to (that may lead back to them).
+     */
+    private static class Decoder {
+
+        final int[] kinds;
+        final int[][] fields;
+        final String[][] strings;
+        final Grammar[] nodes;
+
+        Decoder(int[] kinds, int[][] fields, String[][] strings) {
+            this.kinds = kinds;
+            this.fields = fields;
+            this.strings = strings;
+            this.nodes = new Grammar[kinds.length];
+        }
+
+        Grammar node(int i) throws IOException {
+            if (i < 0 || i >= nodes.length) {
+                throw new IOException("Corrupt grammar image, no node " + i + ".");
+            }
+            if (nodes[i] == null) {
+                nodes[i] = build(i);
+            }
+            return nodes[i];
+        }
+
+        private Grammar[] children(int i) throws IOException {
+            Grammar[] children = new Grammar[fields[i].length];
+            for (int j = 0; j < children.length; j++) {
+                children[j] = node(fields[i][j]);
+            }
+            return children;
+        }
+
+        private Grammar build(int i) throws IOException {
+            int[] f = fields[i];
+            switch (kinds[i]) {
+                case TEXT:
+                    return new Grammar.TextGrammar(strings[i][0]);
+                case DOT:
+                    return new Grammar.DotGrammar();
+                case RANGE:
+                    return new Grammar.RangeGrammar((char) f[0], (char) f[1]);
+                case CLASS:
+                    return new Grammar.CharClassGrammar(f, Collections.unmodifiableList(Arrays.asList(strings[i])));
+                case TEXTS:
+                    return new Grammar.AltTextsGrammar(strings[i]);
+                case CAT:
+                    return new Grammar.CatGrammar(children(i));
+                case FUSED_CAT:
+                    return new Grammar.FusedCatGrammar(children(i));
+                case ALT:
+                    return new Grammar.AltGrammar(children(i));
+                case QUANT:
+                    return new Grammar.QuantGrammar(f[0], f[1], node(f[2]));
+                case SPAN:
+                    if (!(node(f[2]) instanceof Grammar.CharClassGrammar)) {
+                        throw new IOException("Corrupt grammar image, span of a " + node(f[2]).getClass().getName());
+                    }
+                    return new Grammar.SpanGrammar(f[0], f[1], (Grammar.CharClassGrammar) node(f[2]));
+                case POSITIVE:
+                    return new Grammar.PositiveLookAhead(node(f[0]));
+                case NEGATIVE:
+                    return new Grammar.NegativeLookAhead(node(f[0]));
+                default:
+                    Grammar.MutableReferenceGrammar reference = new Grammar.MutableReferenceGrammar();
+                    nodes[i] = reference;
+                    reference.setGrammar(node(f[0]));
+                    return reference;
+            }
+        }
+    }
+
+    /**
+     * Writes a non negative int in as few bytes as possible, 7 bits per byte.
+     */
+    private static void writeInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte(value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt grammar image, int too long.");
+    }
+
+    private static int[] readInts(DataInput in, int n) throws IOException {
+        int[] res = new int[n];
+        for (int i = 0; i < n; i++) {
+            res[i] = readInt(in);
+        }
+        return res;
+    }
+
+    private static void writeString(DataOutput out, String s) throws IOException {
+        writeInt(out, s.length());
+        for (int i = 0; i < s.length(); i++) {
+            writeInt(out, s.charAt(i));
+        }
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        char[] chars = new char[readInt(in)];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) readInt(in);
+        }
+        return new String(chars);
+    }
+
+    private static String[] readStrings(DataInput in, int n) throws IOException {
+        String[] res = new String[n];
+        for (int i = 0; i < n; i++) {
+            res[i] = readString(in);
+        }
+        return res;
+    }
+}
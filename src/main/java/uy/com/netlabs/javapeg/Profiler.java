@@ -0,0 +1,258 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package uy.com.netlabs.javapeg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import uy.com.netlabs.javapeg.util.Pair;
+
+/**
+ * Per grammar statistics of the parses run with it as {@link Grammar.Options#profiler}: how many times every grammar
+ * was matched, how many of those matches succeeded, the chars they consumed, the work thrown away by the ones that
+ * failed, and the time spent in them.
+ *
+ * Usage:
+ * <pre>
+ *     Grammar.Options opts = new Grammar.Options();
+ *     opts.profiler = new Profiler().name(PegLoader.parse(peg));
+ *     start.matchProcessing(text, 0, opts);
+ *     System.out.println(opts.profiler.report(20));
+ * </pre>
+ *
+ * Statistics accumulate over every parse run with the same profiler, which must not be shared by parses running at
+ * the same time. Timing every match costs a couple of {@link System#nanoTime()} calls, so absolute times are inflated
+ * for grammars doing little work per match; compare them with each other rather than with unprofiled runs.
+ *
+ * @author fran
+ */
+public final class Profiler {
+
+    /**
+     * Statistics of a single grammar.
+     */
+    public static final class RuleStats {
+
+        private final Grammar<?> grammar;
+        private String name;
+        private long invocations, successes, consumed, backtracked, selfNanos, totalNanos;
+        /**
+         * Matches of the grammar in progress, so that recursive ones are not added twice to totalNanos.
+         */
+        private int active = 0;
+
+        RuleStats(Grammar<?> grammar) {
+            this.grammar = grammar;
+            this.name = grammar.getClass().getSimpleName() + "@"
+                    + Integer.toHexString(System.identityHashCode(grammar));
+        }
+
+        public Grammar<?> getGrammar() {
+            return grammar;
+        }
+
+        /**
+         * @return the name given with {@link Profiler#name(Map)}, or the class and identity hash code of the
+         * grammar
+         */
+        public String getName() {
+            return name;
+        }
+
+        public long getInvocations() {
+            return invocations;
+        }
+
+        public long getSuccesses() {
+            return successes;
+        }
+
+        public long getFailures() {
+            return invocations - successes;
+        }
+
+        /**
+         * @return the fraction of invocations that succeeded
+         */
+        public double getHitRate() {
+            return invocations == 0 ? 0 : (double) successes / invocations;
+        }
+
+        /**
+         * @return the chars matched by the successful invocations
+         */
+        public long getConsumed() {
+            return consumed;
+        }
+
+        /**
+         * @return the chars examined by the failed invocations, whose work was thrown away
+         */
+        public long getBacktracked() {
+            return backtracked;
+        }
+
+        /**
+         * @return the time spent in the grammar itself, excluding its children
+         */
+        public long getSelfNanos() {
+            return selfNanos;
+        }
+
+        /**
+         * @return the time spent in the grammar and its children, counting recursive invocations once
+         */
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+    }
+
+    private final Map<Grammar<?>, RuleStats> byGrammar = new IdentityHashMap<>();
+    private final List<RuleStats> rules = new ArrayList<>();
+    private final Map<Grammar<?>, String> names = new IdentityHashMap<>();
+    /**
+     * For every match in progress, the time spent so far in the matches it started.
+     */
+    private long[] childNanos = new long[64];
+    private int depth = 0;
+
+    /**
+     * Names grammars for the report, e.g. the rules returned by {@link PegLoader#parse(CharSequence)}.
+     *
+     * @return this
+     */
+    public Profiler name(Map<String, ? extends Grammar<?>> rules) {
+        for (Map.Entry<String, ? extends Grammar<?>> e: rules.entrySet()) {
+            names.put(e.getValue(), e.getKey());
+            RuleStats stats = byGrammar.get(e.getValue());
+            if (stats != null) {
+                stats.name = e.getKey();
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @return the statistics of every grammar matched so far, from the one with most self time to the one with least
+     */
+    public List<RuleStats> getStats() {
+        List<RuleStats> res = new ArrayList<>(rules);
+        Collections.sort(res, new Comparator<RuleStats>() {
+            @Override
+            public int compare(RuleStats a, RuleStats b) {
+                return a.selfNanos != b.selfNanos ? Long.compare(b.selfNanos, a.selfNanos)
+                        : Long.compare(b.invocations, a.invocations);
+            }
+        });
+        return res;
+    }
+
+    /**
+     * @return a table with the statistics of at most limit grammars, hottest first, one per line
+     */
+    public String report(int limit) {
+        StringBuilder sb = new StringBuilder(String.format("%-24s %12s %7s %12s %12s %10s %10s%n",
+                "rule", "invocations", "hit", "consumed", "backtracked", "self ms", "total ms"));
+        for (RuleStats stats: getStats()) {
+            if (limit-- <= 0) {
+                break;
+            }
+            sb.append(String.format("%-24s %12d %6.1f%% %12d %12d %10.3f %10.3f%n", stats.name, stats.invocations,
+                    100 * stats.getHitRate(), stats.consumed, stats.backtracked, stats.selfNanos / 1e6,
+                    stats.totalNanos / 1e6));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Drops every statistic gathered so far, keeping the names.
+     */
+    public void clear() {
+        byGrammar.clear();
+        rules.clear();
+    }
+
+    private RuleStats stats(Grammar<?> grammar) {
+        RuleStats stats = byGrammar.get(grammar);
+        if (stats == null) {
+            byGrammar.put(grammar, stats = new RuleStats(grammar));
+            String name = names.get(grammar);
+            if (name != null) {
+                stats.name = name;
+            }
+            rules.add(stats);
+        }
+        return stats;
+    }
+
+    private void enter(RuleStats stats) {
+        stats.invocations++;
+        stats.active++;
+        if (++depth == childNanos.length) {
+            childNanos = Arrays.copyOf(childNanos, 2 * depth);
+        }
+        childNanos[depth] = 0;
+    }
+
+    private void exit(RuleStats stats, long start) {
+        long elapsed = System.nanoTime() - start;
+        stats.selfNanos += elapsed - childNanos[depth];
+        if (--stats.active == 0) {
+            stats.totalNanos += elapsed;
+        }
+        childNanos[--depth] += elapsed;
+    }
+
+    <T> Pair<ParserResult, List<T>> matchProcessing(Grammar<T> grammar, CharSequence text, int idx,
+            Grammar.Options opts) {
+        RuleStats stats = stats(grammar);
+        // measure what this match alone examines, as memo tables do:
+        int outerExaminedEnd = opts.examinedEnd;
+        opts.examinedEnd = idx;
+        enter(stats);
+        long start = System.nanoTime();
+        Pair<ParserResult, List<T>> res = null;
+        try {
+            res = grammar.matchProcessingUnprofiled(text, idx, opts);
+            return res;
+        } finally {
+            exit(stats, start);
+            if (res != null && res.getLeft() instanceof ParserResult.AstNode) {
+                stats.successes++;
+                stats.consumed += ((ParserResult.AstNode) res.getLeft()).getLength();
+            } else {
+                stats.backtracked += Math.max(0, opts.examinedEnd - idx);
+            }
+            opts.examined(outerExaminedEnd);
+        }
+    }
+
+    int recognize(Grammar<?> grammar, CharSequence text, int idx, Grammar.Options opts) {
+        RuleStats stats = stats(grammar);
+        int outerExaminedEnd = opts.examinedEnd;
+        opts.examinedEnd = idx;
+        enter(stats);
+        long start = System.nanoTime();
+        int res = -1;
+        try {
+            res = grammar.recognizeUnprofiled(text, idx, opts);
+            return res;
+        } finally {
+            exit(stats, start);
+            if (res >= 0) {
+                stats.successes++;
+                stats.consumed += res - idx;
+            } else {
+                stats.backtracked += Math.max(0, opts.examinedEnd - idx);
+            }
+            opts.examined(outerExaminedEnd);
+        }
+    }
+}
@@ -18,7 +18,12 @@ import uy.com.netlabs.javapeg.util.Function2;
  * @param <T> generic "tag" type, mainly used for bottom-up processing of grammars.
  */
 public abstract class ReduceFunction<T> {
-    public abstract List<T> reduce(String text, ParserResult.AstNode node, List<T> immutableProcessedTags);
+
+    /**
+     * Called by the grammar for every successful match. The text is the whole input, which may be large or not a
+     * String: look only at the part the node spans, e.g. with {@link ParserResult.AstNode#view(CharSequence)}.
+     */
+    public abstract List<T> reduce(CharSequence text, ParserResult.AstNode node, List<T> immutableProcessedTags);
 
     public static <T> ReduceFunction<T> identity() {
         return null; // yes, yes... the null ReduceFunction does nothing.
@@ -27,7 +32,7 @@ public abstract class ReduceFunction<T> {
     public static <T> ReduceFunction<T> append(final T... ts) {
         return new ReduceFunction<T>() {
             @Override
-            public List<T> reduce(String text, ParserResult.AstNode node, List<T> immutableProcessedTags) {
+            public List<T> reduce(CharSequence text, ParserResult.AstNode node, List<T> immutableProcessedTags) {
                 List<T> res = immutableProcessedTags;
                 for (T t: ts) {
                     res = FastSnocList.snoc(res, t);
@@ -40,7 +45,7 @@ public abstract class ReduceFunction<T> {
     public static <T> ReduceFunction<T> replace(final T... ts) {
         return new ReduceFunction<T>() {
             @Override
-            public List<T> reduce(String text, ParserResult.AstNode node, List<T> immutableProcessedTags) {
+            public List<T> reduce(CharSequence text, ParserResult.AstNode node, List<T> immutableProcessedTags) {
                 return Arrays.asList(ts);
             }
         };
@@ -49,7 +54,7 @@ public abstract class ReduceFunction<T> {
     public static <T> ReduceFunction<T> foldl(final T t0, final Function2<T, T, T> f) {
         return new ReduceFunction<T>() {
             @Override
-            public List<T> reduce(String text, ParserResult.AstNode node, List<T> immutableProcessedTags) {
+            public List<T> reduce(CharSequence text, ParserResult.AstNode node, List<T> immutableProcessedTags) {
                 T tcur = t0;
                 for (T t: immutableProcessedTags) {
                     tcur = f.apply(tcur, t);
@@ -0,0 +1,139 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package uy.com.netlabs.javapeg;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import uy.com.netlabs.javapeg.util.Pair;
+
+/**
+ * Parses an unbounded input as a repetition of records ({@code record*}) while it is being read, handing every record
+ * to a callback as soon as it is complete.
+ *
+ * Only the current record is kept in memory: after every record the consumed input is released (a commit point), so
+ * memory is bounded by about twice the size of the largest record plus one read. A record is attempted on the input
+ * buffered so far, and the attempt is trusted only if no terminal needed to look past the buffered input (see
+ * {@link Grammar.Options#examinedEnd}); otherwise more input is read and the record is parsed again from its start.
+ * Custom grammar subclasses that read the input themselves must report what they examined through the options, or
+ * they may be cut short at a buffer boundary.
+ *
+ * @author fran
+ * @param <T> tag's generic type
+ */
+public class StreamParser<T> {
+
+    public interface RecordHandler<T> {
+
+        /**
+         * Called once for every record, in input order.
+         *
+         * @param offset position in the stream of the first char of window
+         * @param window buffered input, only valid during the call (copy what must be kept)
+         * @param node the record's AST, with positions relative to window
+         * @param tags the record's processed tags
+         */
+        void record(long offset, CharSequence window, ParserResult.AstNode node, List<T> tags);
+    }
+
+    private static final int INITIAL_CAPACITY = 8192;
+
+    private final Grammar<T> record;
+    private final Reader reader;
+    private char[] buffer = new char[INITIAL_CAPACITY];
+    private int start = 0, end = 0;
+    private long bufferOffset = 0;
+    private boolean eof = false;
+
+    public StreamParser(Grammar<T> record, Reader reader) {
+        if (record.hasEpsilon()) {
+            throw new IllegalStateException("Record grammar matches the empty string.");
+        }
+        this.record = record.prepare();
+        this.reader = reader;
+    }
+
+    /**
+     * Reads UTF-8 from the channel.
+     */
+    public StreamParser(Grammar<T> record, ReadableByteChannel channel) {
+        this(record, Channels.newReader(channel, StandardCharsets.UTF_8.newDecoder(), -1));
+    }
+
+    /**
+     * Parses records until the end of the input.
+     *
+     * @return null if the whole input was consumed as records, or the failure of the record that could not be
+     * parsed, with its index relative to {@link #getCommittedOffset()}
+     */
+    public ParserResult.Failure parse(RecordHandler<T> handler) throws IOException {
+        while (true) {
+            if (start == end && !fill()) {
+                return null;
+            }
+            Grammar.Options opts = new Grammar.Options();
+            CharBuffer window = CharBuffer.wrap(buffer, 0, end);
+            Pair<ParserResult, List<T>> res = record.matchProcessing(window, start, opts);
+            if (opts.examinedEnd > end && !eof) {
+                fill();     // the record may continue in the input not yet read, retry it from its start
+                continue;
+            }
+            if (!res.getLeft().isMatched()) {
+                ParserResult.Failure failure = (ParserResult.Failure) res.getLeft();
+                return new ParserResult.Failure(failure.getIdx() - start, failure.getExpectedTokens());
+            }
+            ParserResult.AstNode node = (ParserResult.AstNode) res.getLeft();
+            handler.record(bufferOffset, window, node, res.getRight());
+            start = node.getIdx() + node.getLength();
+        }
+    }
+
+    /**
+     * Position in the stream where the last record ended, which is where the next record starts.
+     */
+    public long getCommittedOffset() {
+        return bufferOffset + start;
+    }
+
+    /**
+     * Reads more input after the buffered one, first dropping the committed part of the buffer and growing it when
+     * the current record fills it. Reading goes on until the buffered part of the current record at least doubled, or
+     * the reader has nothing more at hand: as the record is parsed again from its start after every fill, reading
+     * one small chunk at a time would make parsing it quadratic in its size.
+     *
+     * @return false at the end of the input
+     */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            bufferOffset += start;
+            end -= start;
+            start = 0;
+        }
+        int before = end, target = Math.max(2 * end, end + 1);
+        do {
+            if (end == buffer.length) {
+                char[] grown = new char[buffer.length * 2];
+                System.arraycopy(buffer, 0, grown, 0, end);
+                buffer = grown;
+            }
+            int read = reader.read(buffer, end, buffer.length - end);
+            if (read < 0) {
+                eof = true;
+                return end > before;
+            }
+            end += read;
+        } while (end < target && reader.ready());
+        return true;
+    }
+}
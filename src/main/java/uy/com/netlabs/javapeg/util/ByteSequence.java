@@ -0,0 +1,100 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package uy.com.netlabs.javapeg.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Exposes UTF-8 encoded bytes as a CharSequence without decoding them: every byte is one char in the range 0-255,
+ * so positions reported by the parser are byte offsets. Grammars matching non ASCII text must spell their literals
+ * and ranges in that byte form, which is what {@link #utf8(String)} produces.
+ *
+ * Only {@link #toString()} decodes; slices returned by {@link #subSequence(int, int)} share the underlying buffer.
+ * Since parser positions are ints, a single sequence is limited to 2GB.
+ *
+ * @author fran
+ */
+public final class ByteSequence implements CharSequence {
+
+    private final ByteBuffer buffer;
+    private final int offset, length;
+
+    public ByteSequence(ByteBuffer buffer) {
+        this(buffer, buffer.position(), buffer.remaining());
+    }
+
+    public ByteSequence(byte[] bytes) {
+        this(ByteBuffer.wrap(bytes));
+    }
+
+    private ByteSequence(ByteBuffer buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Maps a whole file read only, so the parser reads straight from the page cache.
+     */
+    public static ByteSequence map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("file too large to be parsed as a single sequence: " + file);
+            }
+            return new ByteSequence(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Converts a literal to the one-char-per-byte form used by ByteSequence, for use in TextGrammar and friends.
+     */
+    public static String utf8(String literal) {
+        byte[] bytes = literal.getBytes(StandardCharsets.UTF_8);
+        char[] chars = new char[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i] = (char) (bytes[i] & 0xff);
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index=" + index + ", length=" + length);
+        }
+        return (char) (buffer.get(offset + index) & 0xff);
+    }
+
+    @Override
+    public ByteSequence subSequence(int start, int end) {
+        if (start < 0 || end < start || end > length) {
+            throw new IndexOutOfBoundsException("start=" + start + ", end=" + end + ", length=" + length);
+        }
+        return new ByteSequence(buffer, offset + start, end - start);
+    }
+
+    /**
+     * Decodes the bytes as UTF-8.
+     */
+    @Override
+    public String toString() {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
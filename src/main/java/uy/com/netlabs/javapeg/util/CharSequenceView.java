@@ -0,0 +1,52 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package uy.com.netlabs.javapeg.util;
+
+/**
+ * A read only window over a region of another CharSequence, sharing its storage.
+ *
+ * @author fran
+ */
+public final class CharSequenceView implements CharSequence {
+
+    private final CharSequence base;
+    private final int start, end;
+
+    public CharSequenceView(CharSequence base, int start, int end) {
+        if (start < 0 || end < start || end > base.length()) {
+            throw new IndexOutOfBoundsException("start=" + start + ", end=" + end + ", length=" + base.length());
+        }
+        this.base = base;
+        this.start = start;
+        this.end = end;
+    }
+
+    @Override
+    public int length() {
+        return end - start;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= end - start) {
+            throw new IndexOutOfBoundsException("index=" + index + ", length=" + (end - start));
+        }
+        return base.charAt(start + index);
+    }
+
+    @Override
+    public CharSequence subSequence(int from, int to) {
+        if (from < 0 || to < from || to > end - start) {
+            throw new IndexOutOfBoundsException("from=" + from + ", to=" + to + ", length=" + (end - start));
+        }
+        return new CharSequenceView(base, start + from, start + to);
+    }
+
+    @Override
+    public String toString() {
+        return base.subSequence(start, end).toString();
+    }
+}
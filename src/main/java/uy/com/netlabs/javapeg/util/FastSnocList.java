@@ -48,7 +48,7 @@ public class FastSnocList<V> implements List<V> {
         if (flattenedList != null) {
             return flattenedList.isEmpty();
         }
-        return len != 0;
+        return len == 0;
     }
 
     private void flattenList() {
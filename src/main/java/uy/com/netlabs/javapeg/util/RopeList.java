@@ -0,0 +1,122 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package uy.com.netlabs.javapeg.util;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable list made of two other lists, one after the other, built in O(1) by {@link #concat(List, List)}.
+ *
+ * Concatenating the tags of every child of every node this way costs one object per node, whatever the number of
+ * tags. Iterating walks the tree of concatenations directly (without recursion, as a long repetition makes a deep
+ * tree), and only random access copies the elements, in a single pass, into an array kept for later calls.
+ *
+ * @author fran
+ * @param <V>
+ */
+public final class RopeList<V> extends AbstractList<V> {
+
+    private final List<V> init, tail;
+    private final int size;
+    private Object[] flattened = null;
+
+    private RopeList(List<V> init, List<V> tail) {
+        this.init = init;
+        this.tail = tail;
+        this.size = init.size() + tail.size();
+    }
+
+    /**
+     * @return a list with the elements of init followed by the ones of tail, which must not change afterwards
+     */
+    public static <V> List<V> concat(List<V> init, List<V> tail) {
+        if (tail.size() == 0) {
+            return init;
+        } else if (init.size() == 0) {
+            return tail;
+        }
+        return new RopeList<>(init, tail);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public V get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index=" + index + ", size=" + size);
+        }
+        if (flattened == null) {
+            Object[] array = new Object[size];
+            int i = 0;
+            for (V v: this) {
+                array[i++] = v;
+            }
+            flattened = array;
+        }
+        return (V) flattened[index];
+    }
+
+    @Override
+    public Iterator<V> iterator() {
+        return new Walker<>(this);
+    }
+
+    /**
+     * Iterates the leaves of a rope from left to right, keeping the ropes still to visit in a stack.
+     */
+    private static final class Walker<V> implements Iterator<V> {
+
+        private List<V>[] pending = new List[16];
+        private int top = 0;
+        private Iterator<V> leaf = Collections.emptyIterator();
+
+        Walker(RopeList<V> root) {
+            pending[top++] = root;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!leaf.hasNext()) {
+                if (top == 0) {
+                    return false;
+                }
+                List<V> next = pending[--top];
+                pending[top] = null;
+                if (next instanceof RopeList) {
+                    if (top + 2 > pending.length) {
+                        pending = Arrays.copyOf(pending, pending.length * 2);
+                    }
+                    pending[top++] = ((RopeList<V>) next).tail;
+                    pending[top++] = ((RopeList<V>) next).init;
+                } else {
+                    leaf = next.iterator();
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public V next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return leaf.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
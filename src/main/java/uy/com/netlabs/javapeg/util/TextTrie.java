@@ -0,0 +1,130 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package uy.com.netlabs.javapeg.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An array based trie over a list of strings, finding in a single pass over the input the first string of the list (in
+ * list order, not the longest one) that is a prefix of the input at a given position.
+ *
+ * Nodes are numbered in breadth first order and their outgoing edges are stored sorted by char in shared arrays, so
+ * looking up an edge is a binary search over a contiguous slice.
+ *
+ * @author fran
+ */
+public class TextTrie {
+
+    private final int[] edgeStart;      // edges of node n are [edgeStart[n], edgeStart[n + 1])
+    private final char[] edgeChars;
+    private final int[] edgeTargets;
+    private final int[] terminal;       // smallest index of a string ending at the node, or MAX_VALUE
+    private final int[] belowMin;       // smallest index of a string ending strictly below the node, or MAX_VALUE
+    private final int maxLength;
+
+    public TextTrie(String... strings) {
+        // build a pointer based trie first, then flatten it breadth first:
+        List<TreeMap<Character, Integer>> children = new ArrayList<>();
+        List<Integer> terminals = new ArrayList<>();
+        children.add(new TreeMap<Character, Integer>());
+        terminals.add(Integer.MAX_VALUE);
+        int max = 0;
+        for (int i = 0; i < strings.length; i++) {
+            max = Math.max(max, strings[i].length());
+            int node = 0;
+            for (int j = 0; j < strings[i].length(); j++) {
+                Integer next = children.get(node).get(strings[i].charAt(j));
+                if (next == null) {
+                    next = children.size();
+                    children.get(node).put(strings[i].charAt(j), next);
+                    children.add(new TreeMap<Character, Integer>());
+                    terminals.add(Integer.MAX_VALUE);
+                }
+                node = next;
+            }
+            terminals.set(node, Math.min(terminals.get(node), i));
+        }
+        int size = children.size();
+        int[] order = new int[size];    // breadth first position -> builder node
+        int[] position = new int[size]; // builder node -> breadth first position
+        int head = 0, tail = 1;
+        while (head < tail) {
+            for (int child: children.get(order[head++]).values()) {
+                position[child] = tail;
+                order[tail++] = child;
+            }
+        }
+        maxLength = max;
+        edgeStart = new int[size + 1];
+        edgeChars = new char[size - 1];
+        edgeTargets = new int[size - 1];
+        terminal = new int[size];
+        belowMin = new int[size];
+        int edge = 0;
+        for (int n = 0; n < size; n++) {
+            edgeStart[n] = edge;
+            terminal[n] = terminals.get(order[n]);
+            for (Map.Entry<Character, Integer> e: children.get(order[n]).entrySet()) {
+                edgeChars[edge] = e.getKey();
+                edgeTargets[edge++] = position[e.getValue()];
+            }
+        }
+        edgeStart[size] = edge;
+        // children always come after their parents, so a backwards sweep sees them first:
+        Arrays.fill(belowMin, Integer.MAX_VALUE);
+        for (int n = size - 1; n >= 0; n--) {
+            for (int e = edgeStart[n]; e < edgeStart[n + 1]; e++) {
+                int child = edgeTargets[e];
+                belowMin[n] = Math.min(belowMin[n], Math.min(terminal[child], belowMin[child]));
+            }
+        }
+    }
+
+    /**
+     * Finds the first string (in the order given to the constructor) starting at idx.
+     *
+     * @return the index of the string, or -1 if none matches
+     */
+    public int match(CharSequence text, int idx) {
+        int node = 0;
+        int best = terminal[0];
+        int length = text.length();
+        for (int pos = idx; best > belowMin[node] && pos < length; pos++) {
+            node = child(node, text.charAt(pos));
+            if (node < 0) {
+                break;
+            }
+            best = Math.min(best, terminal[node]);
+        }
+        return best == Integer.MAX_VALUE ? -1 : best;
+    }
+
+    /**
+     * The length of the longest string, which bounds how far {@link #match(CharSequence, int)} may look ahead.
+     */
+    public int maxLength() {
+        return maxLength;
+    }
+
+    private int child(int node, char c) {
+        int lo = edgeStart[node], hi = edgeStart[node + 1] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (edgeChars[mid] < c) {
+                lo = mid + 1;
+            } else if (edgeChars[mid] > c) {
+                hi = mid - 1;
+            } else {
+                return edgeTargets[mid];
+            }
+        }
+        return -1;
+    }
+}
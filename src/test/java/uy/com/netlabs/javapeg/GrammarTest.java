@@ -3,10 +3,18 @@ package uy.com.netlabs.javapeg;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
+import java.nio.charset.StandardCharsets;
+import uy.com.netlabs.javapeg.util.ByteSequence;
+import uy.com.netlabs.javapeg.util.FastSnocList;
+import uy.com.netlabs.javapeg.util.Function2;
 import uy.com.netlabs.javapeg.util.Pair;
+import uy.com.netlabs.javapeg.util.RopeList;
 
 /**
  * Unit test for simple library.
@@ -101,7 +109,7 @@ public class GrammarTest extends TestCase {
         final List<String> reducedTexts = new ArrayList<>(2);
         ReduceFunction<Integer> parseNumber = new ReduceFunction<Integer>() {
             @Override
-            public List<Integer> reduce(String text, ParserResult.AstNode node, List<Integer> immutableProcessedTags) {
+            public List<Integer> reduce(CharSequence text, ParserResult.AstNode node, List<Integer> tags) {
                 List<Integer> res = new ArrayList<>();
                 res.add(Integer.parseInt(node.substring(text)));
                 reducedTexts.add(node.substring(text));
@@ -153,15 +161,681 @@ public class GrammarTest extends TestCase {
     }
 
     public void testLeftRecursion() {
+        Grammar.MutableReferenceGrammar g = new Grammar.MutableReferenceGrammar();
+        g.setGrammar(new Grammar.CatGrammar(g, new Grammar.TextGrammar("never reached")));
+        assertFalse(g.match("never reached").isMatched());
+        // expr <- expr "-" num / num
+        Grammar.MutableReferenceGrammar<Integer> expr = new Grammar.MutableReferenceGrammar<>();
+        Grammar<Integer> num = new Grammar.QuantGrammar<>(1, Integer.MAX_VALUE, new Grammar.RangeGrammar<Integer>('0', '9'))
+                .with(new ReduceFunction<Integer>() {
+                    @Override
+                    public List<Integer> reduce(CharSequence text, ParserResult.AstNode node, List<Integer> tags) {
+                        return Arrays.asList(Integer.parseInt(node.substring(text)));
+                    }
+                });
+        expr.setGrammar(new Grammar.AltGrammar<>(
+            new Grammar.CatGrammar<>(expr, new Grammar.TextGrammar<Integer>("-"), num)
+                .with(new ReduceFunction<Integer>() {
+                    @Override
+                    public List<Integer> reduce(CharSequence text, ParserResult.AstNode node, List<Integer> tags) {
+                        return Arrays.asList(tags.get(0) - tags.get(1));
+                    }
+                }),
+            num
+        ));
+        for (Grammar.Options opts: new Grammar.Options[]{new Grammar.Options(), new Grammar.Options().withPackrat(8)}) {
+            Pair<ParserResult, List<Integer>> res = expr.matchProcessing("10-2-3-x", 0, opts);
+            ParserResult.AstNode node = (ParserResult.AstNode) res.getLeft();
+            assertEquals(6, node.getLength());
+            assertEquals(Arrays.asList(5), new ArrayList<>(res.getRight()));
+            // left associative: ((10-2)-3)
+            assertEquals(4, node.getChildren()[0].getLength());
+            assertEquals(2, node.getChildren()[0].getChildren()[0].getLength());
+        }
+        // indirect: a <- b "x" / "a";  b <- a "y"
+        Grammar.MutableReferenceGrammar a = new Grammar.MutableReferenceGrammar();
+        Grammar.MutableReferenceGrammar b = new Grammar.MutableReferenceGrammar();
+        a.setGrammar(new Grammar.AltGrammar(new Grammar.CatGrammar(b, new Grammar.TextGrammar("x")),
+                new Grammar.TextGrammar("a")));
+        b.setGrammar(new Grammar.CatGrammar(a, new Grammar.TextGrammar("y")));
+        assertEquals(5, ((ParserResult.AstNode) a.match("ayxyxy")).getLength());
+        assertEquals(6, ((ParserResult.AstNode) b.match("ayxyxy")).getLength());
+        // linear: a long chain grows one step at a time
+        StringBuilder sb = new StringBuilder("1");
+        for (int i = 0; i < 5000; i++) {
+            sb.append("-1");
+        }
+        Pair<ParserResult, List<Integer>> res = expr.matchProcessing(sb.toString());
+        assertEquals(Arrays.asList(-4999), new ArrayList<>(res.getRight()));
+    }
+
+    public void testPackratMemoization() {
+        final int[] calls = new int[1];
+        Grammar x = new Grammar.TextGrammar("x") {
+            @Override
+            public Pair<ParserResult, List> matchProcessingImpl(CharSequence text, int idx, Grammar.Options opts) {
+                calls[0]++;
+                return super.matchProcessingImpl(text, idx, opts);
+            }
+        };
+        // r <- "x" r "!" / "x" r / "" backtracks exponentially without memoization
+        Grammar.MutableReferenceGrammar r = new Grammar.MutableReferenceGrammar();
+        r.setGrammar(new Grammar.AltGrammar(
+            new Grammar.CatGrammar(x, r, new Grammar.TextGrammar("!")),
+            new Grammar.CatGrammar(x, r),
+            new Grammar.TextGrammar("")
+        ));
+        String text = "xxxxxxxxxxxx";
+        Pair<ParserResult, List> plain = r.matchProcessing(text, 0, new Grammar.Options());
+        int plainCalls = calls[0];
+        calls[0] = 0;
+        Pair<ParserResult, List> memoized = r.matchProcessing(text, 0, new Grammar.Options().withPackrat(4));
+        assertEquals(plain.getLeft().toString(), memoized.getLeft().toString());
+        assertTrue(plainCalls > 1000);
+        assertTrue(calls[0] < 4 * text.length());
+
+        // a failing parse is matched twice, the second time to find out why, both memoized:
+        Grammar g = new Grammar.CatGrammar(r, new Grammar.NegativeLookAhead(new Grammar.DotGrammar()));
+        calls[0] = 0;
+        ParserResult failure = g.match(text + "?", new Grammar.Options().withPackrat(4));
+        assertFalse(failure.isMatched());
+        assertEquals(text.length(), failure.getIdx());
+        assertTrue("calls=" + calls[0], calls[0] < 8 * text.length());
+    }
+
+    public void testCompile() {
+        final List<String> reducedTexts = new ArrayList<>(2);
+        ReduceFunction<Integer> parseNumber = new ReduceFunction<Integer>() {
+            @Override
+            public List<Integer> reduce(CharSequence text, ParserResult.AstNode node, List<Integer> tags) {
+                List<Integer> res = new ArrayList<>();
+                res.add(Integer.parseInt(node.substring(text)));
+                reducedTexts.add(node.substring(text));
+                return res;
+            }
+        };
+        Grammar<Integer> number = new Grammar.QuantGrammar<>(1, Integer.MAX_VALUE,
+            new Grammar.RangeGrammar<Integer>('0', '9')
+        ).with(parseNumber);
+        Grammar<Integer> list = new Grammar.CatGrammar<>(
+            number,
+            new Grammar.QuantGrammar<>(0, Integer.MAX_VALUE,
+                new Grammar.CatGrammar<>(new Grammar.TextGrammar<Integer>(","), number)
+            ),
+            new Grammar.NegativeLookAhead<>(new Grammar.DotGrammar<Integer>())
+        ).with(ReduceFunction.foldl(0, new Function2<Integer, Integer, Integer>() {
+            @Override
+            public Integer apply(Integer a, Integer b) {
+                return a + b;
+            }
+        }));
+        Grammar<Integer> compiled = list.compile();
+        String[] texts = new String[]{"1,20,300", "1,20,", "", "7x"};
+        List<Pair<ParserResult, List<Integer>>> expected = new ArrayList<>();
+        for (String text: texts) {
+            expected.add(list.matchProcessing(text));
+        }
+        List<String> expectedReducedTexts = new ArrayList<>(reducedTexts);
+        reducedTexts.clear();
+        for (int i = 0; i < texts.length; i++) {
+            Pair<ParserResult, List<Integer>> actual = compiled.matchProcessing(texts[i]);
+            assertEquals(expected.get(i).getLeft().toString(), actual.getLeft().toString());
+            assertEquals(expected.get(i).getRight(), actual.getRight());
+        }
+        assertEquals(expectedReducedTexts, reducedTexts);
+        assertEquals(Integer.valueOf(321), compiled.matchProcessing("1,20,300").getRight().get(0));
+    }
+
+    public void testCompileRules() {
+        Grammar.MutableReferenceGrammar abThunk = new Grammar.MutableReferenceGrammar<>();
+        Grammar ab = new Grammar.QuantGrammar(0, 1,
+            new Grammar.CatGrammar(
+                new Grammar.TextGrammar("a"),
+                abThunk,
+                new Grammar.TextGrammar("b")
+            )
+        );
+        abThunk.setGrammar(ab);
+        Grammar g = new Grammar.CatGrammar(ab, new Grammar.NegativeLookAhead(new Grammar.DotGrammar())).compile();
+        assertTrue(g.match("aaabbb").isMatched());
+        assertFalse(g.match("aaabb").isMatched());
         Exception ex = null;
         try {
-            Grammar.MutableReferenceGrammar g = new Grammar.MutableReferenceGrammar();
-            g.setGrammar(new Grammar.CatGrammar(g, new Grammar.TextGrammar("never reached")));
-            g.match("never reached");
+            Grammar.MutableReferenceGrammar lr = new Grammar.MutableReferenceGrammar();
+            lr.setGrammar(new Grammar.CatGrammar(lr, new Grammar.TextGrammar("never reached")));
+            lr.compile().match("never reached");
         } catch (IllegalStateException e) {
             ex = e;
         }
         assertNotNull(ex);
         assertEquals("Left recursion detected.", ex.getMessage());
+        // what the compiled grammar tells about itself is a snapshot too:
+        Grammar.MutableReferenceGrammar a = new Grammar.MutableReferenceGrammar();
+        a.setGrammar(new Grammar.TextGrammar("a"));
+        Grammar compiled = new Grammar.QuantGrammar(1, 2, a).compile();
+        a.setGrammar(new Grammar.TextGrammar(""));
+        assertFalse(compiled.hasEpsilon());
+        assertFalse(compiled.firstSet().isNullable());
+        assertTrue(compiled.firstSet().mayStartWith('a'));
+        assertFalse(compiled.match("b").isMatched());
+        assertEquals(2, ((ParserResult.AstNode) ParsingMachine.compile(compiled).match("aaa")).getLength());
+        assertTrue(compiled.reachable().contains(a));
+        assertFalse(new Grammar.CatGrammar(compiled, new Grammar.TextGrammar("b")).hasEpsilon());
+    }
+
+    public void testAltDispatch() {
+        final int[] calls = new int[1];
+        Grammar counted = new Grammar.TextGrammar("x") {
+            @Override
+            public Pair<ParserResult, List> matchProcessingImpl(CharSequence text, int idx, Grammar.Options opts) {
+                calls[0]++;
+                return super.matchProcessingImpl(text, idx, opts);
+            }
+        };
+        Grammar g = new Grammar.AltGrammar(
+            new Grammar.TextGrammar("if"),
+            new Grammar.CatGrammar(new Grammar.NegativeLookAhead(new Grammar.TextGrammar("w")), counted),
+            new Grammar.TextGrammar("while"),
+            new Grammar.RangeGrammar('0', '9')
+        );
+        assertTrue(g.match("while").isMatched());
+        assertTrue(g.match("7").isMatched());
+        assertEquals(0, calls[0]);
+        assertTrue(g.match("x").isMatched());
+        assertEquals(1, calls[0]);
+        ParserResult.Failure failure = (ParserResult.Failure) g.match("z");
+        assertEquals(0, failure.getIdx());
+        assertEquals(Arrays.asList("if", "x", "while", "char from '0' to '9'"), failure.getExpectedTokens());
+        failure = (ParserResult.Failure) g.match("");
+        assertEquals(Arrays.asList("if", "x", "while", "char from '0' to '9'"), failure.getExpectedTokens());
+        failure = (ParserResult.Failure) g.match("wh");
+        assertEquals(Arrays.asList("if", "<negative lookahead>", "while", "char from '0' to '9'"),
+                failure.getExpectedTokens());
+        assertFalse(g.firstSet().isNullable());
+        assertTrue(g.firstSet().mayStartWith('w'));
+        assertFalse(g.firstSet().mayStartWith('e'));
+    }
+
+    public void testAltTextsGrammar() {
+        String[] keywords = new String[]{"in", "int", "interface", "", "i"};
+        Grammar g = new Grammar.CatGrammar(
+            new Grammar.AltTextsGrammar("interface", "int", "in", "if"),
+            new Grammar.TextGrammar(";")
+        );
+        assertTrue(g.match("int;").isMatched());
+        assertTrue(g.match("interface;").isMatched());
+        ParserResult.Failure failure = (ParserResult.Failure) g.match("inte;");
+        assertEquals(3, failure.getIdx());
+        failure = (ParserResult.Failure) g.match("for;");
+        assertEquals(0, failure.getIdx());
+        assertEquals(Arrays.asList("interface", "int", "in", "if"), failure.getExpectedTokens());
+        // PEG order wins over length:
+        Grammar texts = new Grammar.AltTextsGrammar(keywords);
+        Grammar alt = new Grammar.AltGrammar(new Grammar.AltGrammar(new Grammar[]{
+            new Grammar.TextGrammar("in"), new Grammar.TextGrammar("int"), new Grammar.TextGrammar("interface"),
+            new Grammar.TextGrammar(""), new Grammar.TextGrammar("i")
+        }));
+        for (String text: new String[]{"interface", "int", "i", "", "x"}) {
+            assertEquals(alt.match(text).toString(), texts.match(text).toString());
+            assertEquals(alt.match(text).toString(), ParsingMachine.compile(texts).match(text).toString());
+            assertEquals(alt.match(text).toString(), texts.compile().match(text).toString());
+        }
+    }
+
+    public void testByteSequenceInput() {
+        final List<String> words = new ArrayList<>();
+        ReduceFunction<String> word = new ReduceFunction<String>() {
+            @Override
+            public List<String> reduce(CharSequence text, ParserResult.AstNode node, List<String> tags) {
+                words.add(node.view(text).toString());
+                return tags;
+            }
+        };
+        Grammar<String> g = new Grammar.QuantGrammar<>(0, Integer.MAX_VALUE,
+            new Grammar.CatGrammar<>(
+                new Grammar.AltGrammar<String>(
+                    new Grammar.TextGrammar<String>(ByteSequence.utf8("año")),
+                    new Grammar.TextGrammar<String>(ByteSequence.utf8("niño"))
+                ).with(word),
+                new Grammar.TextGrammar<String>(" ")
+            )
+        );
+        ByteSequence input = new ByteSequence("niño año ".getBytes(StandardCharsets.UTF_8));
+        ParserResult res = g.matchProcessing(input).getLeft();
+        assertEquals(input.length(), ((ParserResult.AstNode) res).getLength());
+        assertEquals(Arrays.asList("niño", "año"), words);
+        // positions are byte offsets: "niño" takes 5 bytes
+        assertEquals(6, ((ParserResult.AstNode) res).getChildren()[1].getIdx());
+        assertEquals(res.toString(), ParsingMachine.compile(g).match(input).toString());
+        assertEquals(res.toString(), g.compile().match(input).toString());
+        assertEquals("ño", input.subSequence(2, 5).toString());
+    }
+
+    public void testFreeze() throws InterruptedException {
+        // expr <- expr "+" "1" / "1" is left recursive, which a naive hasEpsilon would never finish analyzing
+        Grammar.MutableReferenceGrammar expr = new Grammar.MutableReferenceGrammar();
+        expr.setGrammar(new Grammar.AltGrammar(
+            new Grammar.CatGrammar(expr, new Grammar.TextGrammar("+"), new Grammar.TextGrammar("1")),
+            new Grammar.TextGrammar("1")
+        ));
+        assertFalse(expr.freeze().hasEpsilon());
+        // value <- "[" value? "]" / [0-9]+ ("," value)?
+        Grammar.MutableReferenceGrammar value = new Grammar.MutableReferenceGrammar();
+        value.setGrammar(new Grammar.AltGrammar(
+            new Grammar.CatGrammar(
+                new Grammar.TextGrammar("["),
+                new Grammar.QuantGrammar(0, 1, value),
+                new Grammar.TextGrammar("]")
+            ),
+            new Grammar.CatGrammar(
+                new Grammar.QuantGrammar(1, Integer.MAX_VALUE, new Grammar.RangeGrammar('0', '9')),
+                new Grammar.QuantGrammar(0, 1, new Grammar.CatGrammar(new Grammar.TextGrammar(","), value))
+            )
+        ));
+        List<String> texts = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            texts.add(i % 3 == 0 ? "[" + i + ",[" + i + "]]" : i % 3 == 1 ? "[]" : i + ",x");
+        }
+        FrozenGrammar frozen = value.freeze();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Pair<ParserResult, List>> results = frozen.parseAll(texts, executor);
+            for (int i = 0; i < texts.size(); i++) {
+                assertEquals(value.match(texts.get(i)).toString(), results.get(i).getLeft().toString());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(value.match(texts.get(3)).toString(), frozen.parse(texts.get(3)).getLeft().toString());
+        try {
+            value.setGrammar(new Grammar.TextGrammar("x"));
+            fail("a frozen reference was rebound");
+        } catch (IllegalStateException e) {
+            assertEquals("Grammar is frozen.", e.getMessage());
+        }
+        try {
+            value.with(ReduceFunction.append(1));
+            fail("a frozen grammar changed its reduce function");
+        } catch (IllegalStateException e) {
+            assertEquals("Grammar is frozen.", e.getMessage());
+        }
+        try {
+            new Grammar.QuantGrammar(0, 1, new Grammar.MutableReferenceGrammar()).freeze();
+            fail("a grammar with an undefined reference was frozen");
+        } catch (IllegalStateException e) {
+            assertEquals("Cannot freeze a grammar with undefined references.", e.getMessage());
+        }
+    }
+
+    public void testPrepare() {
+        // value <- "[" value "]" / "0" recurses, but never at the same position
+        Grammar.MutableReferenceGrammar value = new Grammar.MutableReferenceGrammar();
+        Grammar bracketed = new Grammar.CatGrammar(new Grammar.TextGrammar("["), value, new Grammar.TextGrammar("]"));
+        value.setGrammar(new Grammar.AltGrammar(bracketed, new Grammar.TextGrammar("0")));
+        assertTrue(value.mayRecurseInPlace());
+        assertTrue(value.match("[[0]]").isMatched());
+        assertFalse(value.mayRecurseInPlace());
+        assertFalse(bracketed.mayRecurseInPlace());
+        // "[" becomes nullable: value <- "["? value "]" / "0" is left recursive
+        value.setGrammar(new Grammar.AltGrammar(
+            new Grammar.CatGrammar(new Grammar.QuantGrammar(0, 1, new Grammar.TextGrammar("[")), value,
+                new Grammar.TextGrammar("]")),
+            new Grammar.TextGrammar("0")
+        ));
+        assertTrue(value.mayRecurseInPlace());
+        assertEquals(3, ((ParserResult.AstNode) value.match("0]]")).getLength());
+        assertTrue(value.mayRecurseInPlace());
+        assertFalse(bracketed.prepare().mayRecurseInPlace());
+    }
+
+    public void testSlots() {
+        // expr <- expr "+" term / term;  term <- term "*" "x" / "x"
+        Grammar.MutableReferenceGrammar expr = new Grammar.MutableReferenceGrammar();
+        Grammar.MutableReferenceGrammar term = new Grammar.MutableReferenceGrammar();
+        expr.setGrammar(new Grammar.AltGrammar(new Grammar.CatGrammar(expr, new Grammar.TextGrammar("+"), term), term));
+        term.setGrammar(new Grammar.AltGrammar(
+                new Grammar.CatGrammar(term, new Grammar.TextGrammar("*"), new Grammar.TextGrammar("x")),
+                new Grammar.TextGrammar("x")));
+        assertEquals(7, ((ParserResult.AstNode) expr.match("x*x+x*x")).getLength());
+        // numbered again on its own, term takes the slot of expr, which matching both has to sort out:
+        term.analyze();
+        assertEquals(expr.slot, term.slot);
+        Grammar.Options opts = new Grammar.Options();
+        assertEquals(7, ((ParserResult.AstNode) expr.matchProcessing("x*x+x*x", 0, opts).getLeft()).getLength());
+        assertNull(opts.lent);
+        assertEquals(Arrays.asList(new Object[opts.owners.length]), Arrays.asList(opts.owners));
+        // slots are numbered per graph, however many grammars there are elsewhere:
+        List<Grammar> others = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            others.add(new Grammar.TextGrammar("x"));
+        }
+        opts = new Grammar.Options();
+        assertEquals(7, ((ParserResult.AstNode) expr.match("x*x+x*x", opts)).getLength());
+        assertEquals(new Grammar.Options().positions.length, opts.positions.length);
+    }
+
+    private static void assertSameRecognition(Grammar g, String... texts) {
+        for (String text: texts) {
+            ParserResult expected = g.match(text), actual = g.recognize(text);
+            assertEquals(text, expected.isMatched(), actual.isMatched());
+            assertEquals(text, expected.getIdx(), actual.getIdx());
+            if (expected.isMatched()) {
+                assertEquals(text, ((ParserResult.AstNode) expected).getLength(),
+                        ((ParserResult.AstNode) actual).getLength());
+            } else {
+                assertEquals(text, ((ParserResult.Failure) expected).getExpectedTokens(),
+                        new ArrayList<>(((ParserResult.Failure) actual).getExpectedTokens()));
+            }
+        }
+    }
+
+    public void testRecognize() {
+        Grammar number = new Grammar.CatGrammar(
+            new Grammar.QuantGrammar(1, 3, new Grammar.RangeGrammar('0', '9')),
+            new Grammar.PositiveLookAhead(new Grammar.TextGrammar(";")),
+            new Grammar.NegativeLookAhead(new Grammar.TextGrammar(";;"))
+        );
+        assertSameRecognition(number, "4;", "421;", "4213;", ";", "42;;", "42", "");
+        Grammar keywords = new Grammar.AltGrammar(
+            new Grammar.AltTextsGrammar("if", "in", "int"),
+            new Grammar.CatGrammar(new Grammar.TextGrammar("x"), new Grammar.DotGrammar()),
+            new Grammar.CatGrammar(new Grammar.TextGrammar("x"), new Grammar.TextGrammar("y"))
+        );
+        assertSameRecognition(keywords, "int", "if", "x", "xy", "z", "\u00e9", "");
+        // expr <- expr "-" num / num
+        Grammar.MutableReferenceGrammar expr = new Grammar.MutableReferenceGrammar();
+        Grammar num = new Grammar.QuantGrammar(1, Integer.MAX_VALUE, new Grammar.RangeGrammar('0', '9'));
+        expr.setGrammar(new Grammar.AltGrammar(new Grammar.CatGrammar(expr, new Grammar.TextGrammar("-"), num), num));
+        assertSameRecognition(expr, "10-2-3-x", "1", "-1", "");
+        assertSameRecognition(expr.freeze(), "10-2-3-x", "-1");
+        Grammar.MutableReferenceGrammar value = new Grammar.MutableReferenceGrammar();
+        value.setGrammar(new Grammar.AltGrammar(
+            new Grammar.CatGrammar(new Grammar.TextGrammar("["), value, new Grammar.TextGrammar("]")),
+            new Grammar.TextGrammar("0")
+        ));
+        assertSameRecognition(value, "[[0]]", "[[0]", "[x]");
+        // grammars without a recognizer of their own are matched as usual:
+        assertSameRecognition(new Grammar.CatGrammar(value.compile(), new Grammar.TextGrammar(";")), "[0];", "[0]");
+    }
+
+    public void testFastFailures() {
+        final int[] reduced = new int[1];
+        Grammar item = new Grammar.QuantGrammar(1, Integer.MAX_VALUE, new Grammar.RangeGrammar('a', 'z'))
+                .with(new ReduceFunction() {
+                    @Override
+                    public List reduce(CharSequence text, ParserResult.AstNode node, List tags) {
+                        reduced[0]++;
+                        return tags;
+                    }
+                });
+        Grammar g = new Grammar.CatGrammar(
+            item,
+            new Grammar.QuantGrammar(0, Integer.MAX_VALUE, new Grammar.CatGrammar(new Grammar.TextGrammar(","), item)),
+            new Grammar.AltGrammar(new Grammar.TextGrammar(";"), new Grammar.TextGrammar("."))
+        );
+        Grammar.Options opts = new Grammar.Options();
+        opts.fastFailures = true;
+        ParserResult res = (ParserResult) g.matchProcessing("ab,cd,!", 0, opts).getLeft();
+        assertFalse(res.isMatched());
+        assertSame(res, g.matchProcessing("x", 0, opts).getLeft());
+        assertEquals(6, opts.farthestFailure);
+        // the detailed failure is found again, without running reduce functions twice:
+        reduced[0] = 0;
+        ParserResult.Failure failure = (ParserResult.Failure) g.matchProcessing("ab,cd,!").getLeft();
+        assertEquals(2, reduced[0]);
+        assertEquals(5, failure.getIdx());
+        assertEquals(Arrays.asList(";", "."), failure.getExpectedTokens());
+        assertEquals(failure.toString(), g.compile().match("ab,cd,!").toString());
+        assertTrue(((ParserResult) g.freeze().parse("ab,cd.").getLeft()).isMatched());
+    }
+
+    public void testCharClassGrammar() {
+        Grammar.CharClassGrammar lower = new Grammar.CharClassGrammar('a', 'z');
+        Grammar.CharClassGrammar word = lower.union(new Grammar.CharClassGrammar('0', '9'))
+                .union(new Grammar.CharClassGrammar('_', '_'));
+        assertTrue(word.contains('q') && word.contains('_') && !word.contains('-'));
+        assertEquals(Arrays.asList("char in [0-9_a-z]"), ((ParserResult.Failure) word.match("-")).getExpectedTokens());
+        Grammar.CharClassGrammar notNewline = new Grammar.CharClassGrammar('\n', '\n').negation();
+        assertEquals(Arrays.asList("char in [^\\u000a]"),
+                ((ParserResult.Failure) notNewline.match("\n")).getExpectedTokens());
+        Grammar.CharClassGrammar vowels = lower.intersection(new Grammar.CharClassGrammar('e', 'e')
+                .union(new Grammar.CharClassGrammar('A', 'i')));
+        assertTrue(vowels.contains('e') && vowels.contains('a') && !vowels.contains('A') && !vowels.contains('j'));
+        // supplementary code points are matched as a whole:
+        String smiley = new String(Character.toChars(0x1F600));
+        Grammar.CharClassGrammar emoji = new Grammar.CharClassGrammar(0x1F600, 0x1F64F);
+        assertEquals(2, ((ParserResult.AstNode) emoji.match(smiley)).getLength());
+        assertEquals(2, ((ParserResult.AstNode) notNewline.match(smiley)).getLength());
+        assertFalse(emoji.match(smiley.substring(0, 1)).isMatched());
+        assertFalse(new Grammar.CharClassGrammar(0xD800, 0xDBFF).match(smiley).isMatched());
+        assertFalse(new Grammar.CharClassGrammar(0x1F600, 0x1F600).negation().match(smiley).isMatched());
+        assertEquals(1, ((ParserResult.AstNode) new Grammar.CharClassGrammar(0xD800, 0xDBFF)
+                .match(smiley.substring(0, 1))).getLength());
+        assertTrue(emoji.firstSet().mayStartWith(smiley.charAt(0)));
+        assertEquals(2, ((ParserResult.AstNode) ParsingMachine.compile(emoji).match(smiley)).getLength());
+        // alternatives of single chars are folded, keeping their results:
+        Grammar alt = new Grammar.AltGrammar(new Grammar.RangeGrammar('a', 'z'), new Grammar.TextGrammar("_"),
+                new Grammar.RangeGrammar('0', '9'));
+        assertNotNull(Grammar.CharClassGrammar.fromAlternatives(new Grammar.RangeGrammar('a', 'z'),
+                new Grammar.TextGrammar("_"), emoji));
+        assertNull(Grammar.CharClassGrammar.fromAlternatives(new Grammar.RangeGrammar('a', 'z'),
+                new Grammar.TextGrammar("__")));
+        // unlike char classes, ranges match the high surrogate of a pair alone:
+        Grammar surrogates = new Grammar.AltGrammar(new Grammar.RangeGrammar('\uD800', '\uDBFF'),
+                new Grammar.TextGrammar(smiley));
+        assertNull(Grammar.CharClassGrammar.fromAlternatives(new Grammar.RangeGrammar('\uD800', '\uDBFF'),
+                new Grammar.TextGrammar(smiley)));
+        assertNull(Grammar.CharClassGrammar.fromAlternatives(new Grammar.TextGrammar(smiley.substring(0, 1))));
+        assertEquals(1, ((ParserResult.AstNode) surrogates.match(smiley)).getLength());
+        assertEquals(1, ((ParserResult.AstNode) surrogates.optimize().match(smiley)).getLength());
+        assertEquals(1, ((ParserResult.AstNode) ParsingMachine.compile(surrogates).match(smiley)).getLength());
+        assertEquals(1, ((ParserResult.AstNode) alt.match("_")).getLength());
+        ParserResult.Failure failure = (ParserResult.Failure) alt.match("!");
+        assertEquals(Arrays.asList("char from 'a' to 'z'", "_", "char from '0' to '9'"), failure.getExpectedTokens());
+        assertEquals(failure.toString(), ParsingMachine.compile(alt).match("!").toString());
+        assertEquals(~0, alt.recognize("!", 0, new Grammar.Options()));
+    }
+
+    public void testTagConcatenation() {
+        Grammar<Integer> digit = new Grammar.RangeGrammar<Integer>('0', '9').with(new ReduceFunction<Integer>() {
+            @Override
+            public List<Integer> reduce(CharSequence text, ParserResult.AstNode node, List<Integer> tags) {
+                return Arrays.asList(text.charAt(node.getIdx()) - '0');
+            }
+        });
+        Grammar<Integer> pair = new Grammar.CatGrammar<>(digit, digit, new Grammar.TextGrammar<Integer>(";"));
+        Grammar<Integer> g = new Grammar.QuantGrammar<>(0, Integer.MAX_VALUE, pair);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 50000; i++) {
+            sb.append(i % 10).append(9 - i % 10).append(';');
+        }
+        List<Integer> tags = g.matchProcessing(sb.toString()).getRight();
+        assertEquals(100000, tags.size());
+        int i = 0;
+        for (int tag: tags) {
+            assertEquals(i % 2 == 0 ? i / 2 % 10 : 9 - i / 2 % 10, tag);
+            i++;
+        }
+        assertEquals(Integer.valueOf(0), tags.get(99999));
+        List<Integer> sum = g.with(ReduceFunction.foldl(0, new Function2<Integer, Integer, Integer>() {
+            @Override
+            public Integer apply(Integer a, Integer b) {
+                return a + b;
+            }
+        })).matchProcessing("12;34;").getRight();
+        assertEquals(Arrays.asList(10), sum);
+        List<Integer> rope = RopeList.concat(
+                RopeList.concat(Arrays.asList(1), FastSnocList.snoc(Arrays.<Integer>asList(), 2)), Arrays.asList(3, 4));
+        assertEquals(Arrays.asList(1, 2, 3, 4), rope);
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5), new ArrayList<>(ReduceFunction.append(5).reduce((CharSequence) "", null, rope)));
+    }
+
+    private static void assertSameOptimized(Grammar g, String... texts) {
+        Grammar optimized = g.optimize();
+        for (String text: texts) {
+            assertEquals(text, g.matchProcessing(text).toString(), optimized.matchProcessing(text).toString());
+            assertEquals(text, g.match(text).toString(), optimized.match(text).toString());
+            assertEquals(text, g.recognize(text).toString(), optimized.recognize(text).toString());
+            assertEquals(text, g.match(text).toString(), ParsingMachine.compile(optimized).match(text).toString());
+        }
+    }
+
+    public void testOptimize() {
+        Grammar.MutableReferenceGrammar ws = new Grammar.MutableReferenceGrammar();
+        ws.setGrammar(new Grammar.QuantGrammar(0, Integer.MAX_VALUE, new Grammar.AltGrammar(
+                new Grammar.TextGrammar(" "), new Grammar.TextGrammar("\n"))));
+        Grammar.MutableReferenceGrammar number = new Grammar.MutableReferenceGrammar();
+        number.setGrammar(new Grammar.QuantGrammar(1, Integer.MAX_VALUE, new Grammar.RangeGrammar('0', '9')));
+        number.with(new ReduceFunction() {
+            @Override
+            public List reduce(CharSequence text, ParserResult.AstNode node, List tags) {
+                return Arrays.asList(Integer.parseInt(node.substring(text)));
+            }
+        });
+        // value <- "<" "<" value ">" ">" / (number / ("true" / "false")) / "nil"
+        Grammar.MutableReferenceGrammar value = new Grammar.MutableReferenceGrammar();
+        value.setGrammar(new Grammar.AltGrammar(
+            new Grammar.CatGrammar(new Grammar.TextGrammar("<"), new Grammar.TextGrammar("<"), value,
+                    new Grammar.TextGrammar(">"), new Grammar.TextGrammar(">")),
+            new Grammar.AltGrammar(number,
+                    new Grammar.AltGrammar(new Grammar.TextGrammar("true"), new Grammar.TextGrammar("false"))),
+            new Grammar.TextGrammar("nil")
+        ));
+        Grammar g = new Grammar.CatGrammar(ws, value, ws, new Grammar.NegativeLookAhead(new Grammar.DotGrammar()));
+        assertSameOptimized(g, "<<12>>", " <<<<true>>>> ", "<<1>", "nil", "<<x>>", "", "12a", "truex", "<< 3>>",
+                "fals", "<<<<<<", "<>", "007");
+
+        Grammar optimized = g.optimize();
+        int references = 0, alternations = 0, fused = 0, spans = 0;
+        for (Object node: optimized.reachable()) {
+            references += node instanceof Grammar.MutableReferenceGrammar ? 1 : 0;
+            fused += node instanceof Grammar.FusedCatGrammar ? 1 : 0;
+            spans += node instanceof Grammar.SpanGrammar ? 1 : 0;
+            if (node.getClass() == Grammar.AltGrammar.class) {
+                alternations++;
+                for (Grammar<?> child: ((Grammar<?>) node).children()) {
+                    assertFalse(child.getClass() == Grammar.AltGrammar.class);
+                }
+            }
+        }
+        // the recursive value and the number with its reduce function are kept:
+        assertEquals(2, references);
+        assertEquals(1, alternations);
+        assertEquals(1, fused);
+        assertEquals(2, spans);
+        assertTrue(g.reachable().contains(ws));
+        assertEquals(Arrays.asList(42), optimized.matchProcessing("<<42>>").getRight());
+
+        Exception ex = null;
+        try {
+            new Grammar.CatGrammar(new Grammar.MutableReferenceGrammar()).optimize();
+        } catch (IllegalStateException e) {
+            ex = e;
+        }
+        assertNotNull(ex);
+    }
+
+    public void testLimits() {
+        // p <- "a" p "b" / "a" p "c" / "", which backtracks exponentially over a run of a's
+        Grammar.MutableReferenceGrammar p = new Grammar.MutableReferenceGrammar();
+        p.setGrammar(new Grammar.AltGrammar(
+            new Grammar.CatGrammar(new Grammar.TextGrammar("a"), p, new Grammar.TextGrammar("b")),
+            new Grammar.CatGrammar(new Grammar.TextGrammar("a"), p, new Grammar.TextGrammar("c")),
+            new Grammar.TextGrammar("")
+        ));
+        Grammar g = new Grammar.CatGrammar(p, new Grammar.NegativeLookAhead(new Grammar.DotGrammar()));
+        assertEquals(g.match("aabc").toString(), g.match("aabc", new Grammar.Options().withStepBudget(1000)).toString());
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 60; i++) {
+            sb.append('a');
+        }
+        String text = sb.toString();
+        ParserResult res = g.match(text, new Grammar.Options().withStepBudget(10000));
+        assertFalse(res.isMatched());
+        ParserResult.Aborted aborted = (ParserResult.Aborted) res;
+        assertEquals(ParserResult.Aborted.Reason.STEP_BUDGET, aborted.getReason());
+        assertEquals(10001, aborted.getSteps());
+        assertEquals(text.length(), aborted.getIdx());
+        assertTrue(aborted.getExpectedTokens().isEmpty());
+
+        res = (ParserResult) g.matchProcessing(text, new Grammar.Options().withStepBudget(5)).getLeft();
+        assertEquals(6, ((ParserResult.Aborted) res).getSteps());
+        res = g.recognize(text, new Grammar.Options().withStepBudget(5000));
+        assertEquals(5001, ((ParserResult.Aborted) res).getSteps());
+
+        long start = System.nanoTime();
+        res = g.match(text, new Grammar.Options().withTimeout(50, TimeUnit.MILLISECONDS));
+        assertEquals(ParserResult.Aborted.Reason.DEADLINE, ((ParserResult.Aborted) res).getReason());
+        assertTrue(System.nanoTime() - start < 5000000000L);
+
+        Grammar.Options opts = new Grammar.Options().withStepBudget(100);
+        Exception ex = null;
+        try {
+            g.matchProcessing(text, 0, opts);
+        } catch (Grammar.Options.AbortedException e) {
+            ex = e;
+            assertEquals(101, e.getResult().getSteps());
+        }
+        assertNotNull(ex);
+    }
+
+    public void testAnalyze() {
+        // list <- list "," "x" / "" is both nullable and left recursive
+        Grammar.MutableReferenceGrammar list = new Grammar.MutableReferenceGrammar();
+        list.setGrammar(new Grammar.AltGrammar(
+            new Grammar.CatGrammar(list, new Grammar.TextGrammar(","), new Grammar.TextGrammar("x")),
+            new Grammar.TextGrammar("")
+        ));
+        assertTrue(list.hasEpsilon());
+        Grammar.Analysis analysis = list.analyze();
+        assertEquals(Grammar.WARNING_LEFT_RECURSION, analysis.getWarnings());
+        assertEquals(Arrays.asList(list), analysis.getLeftRecursive());
+        assertEquals(4, ((ParserResult.AstNode) list.match(",x,x")).getLength());
+
+        // nested <- "(" nested ")" / "y" recurses, but never at the same position
+        Grammar.MutableReferenceGrammar nested = new Grammar.MutableReferenceGrammar();
+        nested.setGrammar(new Grammar.AltGrammar(
+            new Grammar.CatGrammar(new Grammar.TextGrammar("("), nested, new Grammar.TextGrammar(")")),
+            new Grammar.TextGrammar("y")
+        ));
+        assertFalse(nested.hasEpsilon());
+        assertEquals(0, nested.analyze().getWarnings());
+        assertFalse(nested.mayRecurseInPlace());
+
+        // results follow later changes of the references:
+        Grammar.MutableReferenceGrammar undefined = new Grammar.MutableReferenceGrammar();
+        Grammar loop = new Grammar.QuantGrammar(0, Integer.MAX_VALUE, undefined);
+        analysis = new Grammar.CatGrammar(loop, nested).analyze();
+        assertEquals(Grammar.WARNING_UNDEFINED_THUNK, analysis.getWarnings());
+        assertEquals(Arrays.asList(undefined), analysis.getUndefinedReferences());
+        undefined.setGrammar(new Grammar.QuantGrammar(0, 1, new Grammar.TextGrammar("a")));
+        assertTrue(undefined.hasEpsilon());
+        analysis = new Grammar.CatGrammar(loop, nested).analyze();
+        assertEquals(Grammar.WARNING_EPSILON_QUANTIFICATION, analysis.getWarnings());
+        assertEquals(Arrays.asList(loop), analysis.getEpsilonQuantifications());
+        undefined.setGrammar(new Grammar.TextGrammar("a"));
+        assertFalse(undefined.hasEpsilon());
+        assertEquals(0, new Grammar.CatGrammar(loop, nested).analyze().getWarnings());
+
+        // rebinding a reference invalidates the graphs it was found in, and only those:
+        Grammar outer = new Grammar.CatGrammar(loop, new Grammar.TextGrammar("b"));
+        outer.prepare();
+        undefined.analyze();
+        assertFalse(outer.isStale());
+        undefined.setGrammar(new Grammar.TextGrammar(""));
+        assertTrue(outer.isStale());
+        assertTrue(undefined.isStale());
+        assertFalse(list.isStale());
+        assertFalse(outer.hasEpsilon());
+        assertFalse(outer.isStale());
+        assertTrue(undefined.hasEpsilon());
+        // even for alternatives matched without being prepared:
+        Grammar.MutableReferenceGrammar word = new Grammar.MutableReferenceGrammar();
+        word.setGrammar(new Grammar.TextGrammar("a"));
+        Grammar choice = new Grammar.AltGrammar(word, new Grammar.TextGrammar("b"));
+        assertFalse(((ParserResult) choice.matchProcessing("c", 0, new Grammar.Options()).getLeft()).isMatched());
+        word.setGrammar(new Grammar.TextGrammar("c"));
+        assertTrue(((ParserResult) choice.matchProcessing("c", 0, new Grammar.Options()).getLeft()).isMatched());
     }
 }
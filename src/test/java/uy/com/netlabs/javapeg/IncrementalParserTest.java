@@ -0,0 +1,92 @@
+package uy.com.netlabs.javapeg;
+
+import java.util.List;
+import java.util.Random;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import uy.com.netlabs.javapeg.util.Pair;
+
+/**
+ * Checks that reparsing after edits gives the same results as parsing the edited text from scratch.
+ */
+public class IncrementalParserTest extends TestCase {
+
+    public IncrementalParserTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(IncrementalParserTest.class);
+    }
+
+    private static int calls;
+
+    // list <- (value ";")* !.    value <- "[" value* "]" / [0-9]+
+    private static Grammar list() {
+        Grammar.MutableReferenceGrammar value = new Grammar.MutableReferenceGrammar();
+        value.setGrammar(new Grammar.AltGrammar(
+            new Grammar.CatGrammar(
+                new Grammar.TextGrammar("["),
+                new Grammar.QuantGrammar(0, Integer.MAX_VALUE, value),
+                new Grammar.TextGrammar("]")
+            ),
+            new Grammar.QuantGrammar(1, Integer.MAX_VALUE, new Grammar.RangeGrammar('0', '9'))
+        ) {
+            @Override
+            protected Pair<ParserResult, List> matchProcessingImpl(CharSequence text, int idx, Grammar.Options opts) {
+                calls++;
+                return super.matchProcessingImpl(text, idx, opts);
+            }
+        });
+        return new Grammar.CatGrammar(
+            new Grammar.QuantGrammar(0, Integer.MAX_VALUE, new Grammar.CatGrammar(value, new Grammar.TextGrammar(";"))),
+            new Grammar.NegativeLookAhead(new Grammar.DotGrammar())
+        );
+    }
+
+    public void testEditsMatchFullParse() {
+        Grammar g = list();
+        Random random = new Random(42);
+        String alphabet = "[];0123456789";
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            sb.append(i % 3 == 0 ? "[1[2]3]" : String.valueOf(i)).append(';');
+        }
+        IncrementalParser parser = new IncrementalParser(g, sb.toString());
+        for (int i = 0; i < 300; i++) {
+            String text = parser.getText();
+            int offset = random.nextInt(text.length() + 1);
+            int removed = random.nextInt(Math.min(3, text.length() - offset) + 1);
+            StringBuilder inserted = new StringBuilder();
+            for (int j = random.nextInt(3); j > 0; j--) {
+                inserted.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            if (i == 150) {
+                // more than the gap can take:
+                inserted.append(text);
+            }
+            Pair<ParserResult, List> res = parser.edit(offset, removed, inserted.toString());
+            sb.replace(offset, offset + removed, inserted.toString());
+            assertEquals(sb.toString(), parser.getText());
+            Pair<ParserResult, List> expected = g.matchProcessing(sb.toString());
+            assertEquals(expected.getLeft().toString(), res.getLeft().toString());
+        }
+    }
+
+    public void testReuse() {
+        Grammar g = list();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append("[1[2]3];");
+        }
+        IncrementalParser parser = new IncrementalParser(g, sb.toString());
+        calls = 0;
+        ParserResult res = (ParserResult) parser.edit(4000, 0, "[4];").getLeft();
+        assertTrue(res.isMatched());
+        assertEquals(sb.length() + 4, ((ParserResult.AstNode) res).getLength());
+        // only the inserted value and its neighbours are matched again:
+        assertTrue("calls: " + calls, calls < 20);
+        assertEquals(g.matchProcessing(parser.getText()).getLeft().toString(), res.toString());
+    }
+}
@@ -0,0 +1,95 @@
+package uy.com.netlabs.javapeg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import uy.com.netlabs.javapeg.util.Function2;
+import uy.com.netlabs.javapeg.util.Pair;
+
+/**
+ * Checks that parallel parsing gives the same results as the sequential one, even when sync points are misguessed.
+ */
+public class ParallelParserTest extends TestCase {
+
+    private ForkJoinPool pool;
+
+    public ParallelParserTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(ParallelParserTest.class);
+    }
+
+    @Override
+    protected void setUp() {
+        pool = new ForkJoinPool(4);
+    }
+
+    @Override
+    protected void tearDown() {
+        pool.shutdown();
+    }
+
+    // record <- [0-9]+ ("\n" / "{" [^}]* "}\n")   (braces may span several lines)
+    private static Grammar.QuantGrammar<String> records(int min, int max) {
+        Grammar<String> record = new Grammar.CatGrammar<>(
+            new Grammar.QuantGrammar<>(1, Integer.MAX_VALUE, new Grammar.RangeGrammar<String>('0', '9'))
+                    .with(ReduceFunction.append("number")),
+            new Grammar.AltGrammar<>(
+                new Grammar.TextGrammar<String>("\n"),
+                new Grammar.CatGrammar<>(
+                    new Grammar.TextGrammar<String>("{"),
+                    new Grammar.QuantGrammar<>(0, Integer.MAX_VALUE, new Grammar.CatGrammar<>(
+                        new Grammar.NegativeLookAhead<>(new Grammar.TextGrammar<String>("}")),
+                        new Grammar.DotGrammar<String>()
+                    )),
+                    new Grammar.TextGrammar<String>("}\n")
+                ).with(ReduceFunction.append("block"))
+            )
+        );
+        return new Grammar.QuantGrammar<>(min, max, record);
+    }
+
+    private void assertSameResults(Grammar.QuantGrammar<String> g, String text) {
+        Pair<ParserResult, List<String>> expected = g.matchProcessing(text);
+        for (int chunkSize: new int[]{1, 3, 16, 1000}) {
+            Pair<ParserResult, List<String>> res = new ParallelParser<>(g, pool).withChunkSize(chunkSize)
+                    .matchProcessing(text);
+            assertEquals(expected.getLeft().toString(), res.getLeft().toString());
+            assertEquals(new ArrayList<>(expected.getRight()), new ArrayList<>(res.getRight()));
+        }
+    }
+
+    public void testRecords() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            sb.append(i).append(i % 7 == 0 ? "{\n1\n2\n}\n" : "\n");
+        }
+        String text = sb.toString();
+        assertSameResults(records(0, Integer.MAX_VALUE), text);
+        assertSameResults(records(0, 100), text);
+        assertSameResults(records(600, Integer.MAX_VALUE), text);
+        // stops at the first bad record:
+        assertSameResults(records(0, Integer.MAX_VALUE), text.replace("\n250\n", "\n25x\n"));
+        assertSameResults(records(0, Integer.MAX_VALUE), "");
+    }
+
+    public void testCustomSyncPoints() {
+        Pair<ParserResult, List<String>> res = new ParallelParser<>(records(0, Integer.MAX_VALUE), pool)
+                .withChunkSize(2)
+                .withSyncPoints(new Function2<CharSequence, Integer, Integer>() {
+                    @Override
+                    public Integer apply(CharSequence text, Integer idx) {
+                        return idx; // every position, mostly wrong
+                    }
+                })
+                .matchProcessing("1\n22{x}\n333\n");
+        assertEquals(12, ((ParserResult.AstNode) res.getLeft()).getLength());
+        assertEquals(Arrays.asList("number", "number", "block", "number"), new ArrayList<>(res.getRight()));
+    }
+}
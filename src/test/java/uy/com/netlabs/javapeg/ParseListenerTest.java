@@ -0,0 +1,104 @@
+package uy.com.netlabs.javapeg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks the parse listeners, and that the top level entry points report to them.
+ */
+public class ParseListenerTest extends TestCase {
+
+    public ParseListenerTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(ParseListenerTest.class);
+    }
+
+    // "a"+ "b"
+    private final Grammar g = new Grammar.CatGrammar(
+            new Grammar.QuantGrammar(1, Integer.MAX_VALUE, new Grammar.TextGrammar("a")),
+            new Grammar.TextGrammar("b"));
+
+    @Override
+    protected void tearDown() {
+        Grammar.setParseListener(null);
+    }
+
+    public void testHistogram() {
+        HistogramParseListener.Histogram histogram = new HistogramParseListener.Histogram();
+        for (long v = 0; v < 100000; v++) {
+            int bucket = HistogramParseListener.Histogram.bucket(v);
+            assertTrue(HistogramParseListener.Histogram.lowerBound(bucket) <= v);
+            assertTrue(HistogramParseListener.Histogram.lowerBound(bucket + 1) > v);
+        }
+        assertEquals(0, histogram.getQuantile(0.5));
+        for (int v = 1; v <= 1000; v++) {
+            histogram.record(v);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500.5, histogram.getMean(), 1e-9);
+        assertEquals(1, histogram.getQuantile(0));
+        long median = histogram.getQuantile(0.5), p99 = histogram.getQuantile(0.99);
+        assertTrue("median=" + median, median >= 500 && median <= 500 * 1.125);
+        assertTrue("p99=" + p99, p99 >= 990 && p99 <= 990 * 1.125);
+        assertTrue(histogram.getQuantile(1) >= 1000);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.getQuantile(1));
+        histogram.clear();
+        assertEquals(0, histogram.getCount());
+    }
+
+    public void testEntryPoints() {
+        HistogramParseListener listener = new HistogramParseListener();
+        Grammar.setParseListener(listener);
+        assertTrue(g.match("aab").isMatched());
+        assertFalse(((ParserResult) g.matchProcessing("aaac").getLeft()).isMatched());
+        assertTrue(g.recognize("ab!").isMatched());
+        Grammar.setParseListener(null);
+        g.match("ab");
+
+        assertEquals(3, listener.getParses());
+        assertEquals(2, listener.getMatches());
+        assertEquals(1, listener.getFailures());
+        assertEquals(3 + 4 + 3, listener.getChars().getSum());
+        assertEquals(3, listener.getFailureOffsets().getSum());
+        assertTrue(listener.getNanos().getSum() > 0);
+
+        // frozen grammars report their parses too:
+        listener = new HistogramParseListener();
+        Grammar.setParseListener(listener);
+        FrozenGrammar frozen = g.freeze();
+        assertTrue(((ParserResult) frozen.parse("ab").getLeft()).isMatched());
+        frozen.parseAll(Arrays.asList("aab", "b"));
+        assertEquals(3, listener.getParses());
+        assertEquals(1, listener.getFailures());
+        assertEquals(0, listener.getFailureOffsets().getSum());
+    }
+
+    public void testContext() {
+        final List<String> calls = new ArrayList<>();
+        Grammar.setParseListener(new ParseListener() {
+            @Override
+            public Object parsing(Grammar<?> grammar, CharSequence text) {
+                calls.add("parsing " + text);
+                return text.length();
+            }
+
+            @Override
+            public void parsed(Object context, Grammar<?> grammar, CharSequence text, ParserResult result,
+                    int farthestFailure, long nanos) {
+                assertSame(g, grammar);
+                calls.add("parsed " + context + " " + result.isMatched() + " " + farthestFailure);
+            }
+        });
+        g.match("aab");
+        g.match("aa");
+        assertEquals("[parsing aab, parsed 3 true 2, parsing aa, parsed 2 false 2]", calls.toString());
+    }
+}
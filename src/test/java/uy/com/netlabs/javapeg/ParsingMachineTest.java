@@ -0,0 +1,259 @@
+package uy.com.netlabs.javapeg;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that the parsing machine answers exactly as the tree walker.
+ */
+public class ParsingMachineTest extends TestCase {
+
+    public ParsingMachineTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(ParsingMachineTest.class);
+    }
+
+    private static void assertSameResults(Grammar g, String... texts) {
+        ParsingMachine machine = ParsingMachine.compile(g);
+        for (String text: texts) {
+            assertEquals(text, g.match(text).toString(), machine.match(text).toString());
+        }
+    }
+
+    public void testTerminals() {
+        assertSameResults(new Grammar.TextGrammar("foo"), "foo", "fooo", "fo", "");
+        assertSameResults(new Grammar.DotGrammar(), "a", "");
+        assertSameResults(new Grammar.RangeGrammar('a', 'z'), "q", "Q", "");
+    }
+
+    public void testCombinators() {
+        Grammar g = new Grammar.AltGrammar(
+            new Grammar.TextGrammar("a"),
+            new Grammar.CatGrammar(
+                new Grammar.TextGrammar("b"),
+                new Grammar.TextGrammar("c")
+            ),
+            new Grammar.CatGrammar(
+                new Grammar.TextGrammar("b"),
+                new Grammar.TextGrammar("d")
+            ),
+            new Grammar.TextGrammar("d")
+        );
+        assertSameResults(g, "a", "bc", "bd", "do", "e", "be", "");
+        Grammar number = new Grammar.CatGrammar(
+            new Grammar.QuantGrammar(1, 3, new Grammar.RangeGrammar('0', '9')),
+            new Grammar.PositiveLookAhead(new Grammar.TextGrammar(";")),
+            new Grammar.NegativeLookAhead(new Grammar.TextGrammar(";;"))
+        );
+        assertSameResults(number, "4;", "42;", "421;", "4213;", ";", "42;;", "42");
+    }
+
+    public void testRules() {
+        Grammar.MutableReferenceGrammar abThunk = new Grammar.MutableReferenceGrammar<>();
+        Grammar ab = new Grammar.QuantGrammar(0, 1,
+            new Grammar.CatGrammar(
+                new Grammar.TextGrammar("a"),
+                abThunk,
+                new Grammar.TextGrammar("b")
+            )
+        );
+        abThunk.setGrammar(ab);
+        Grammar g = new Grammar.CatGrammar(ab, new Grammar.NegativeLookAhead(new Grammar.DotGrammar()));
+        assertSameResults(g, "", "ab", "aabb", "aaabbb", "aaabb", "aabbb", "aaabbbc", "aaacbbb");
+    }
+
+    public void testDeepNesting() {
+        Grammar.MutableReferenceGrammar value = new Grammar.MutableReferenceGrammar();
+        value.setGrammar(new Grammar.AltGrammar(
+            new Grammar.CatGrammar(new Grammar.TextGrammar("["), value, new Grammar.TextGrammar("]")),
+            new Grammar.TextGrammar("0")
+        ));
+        int depth = 20000;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            sb.append('[');
+        }
+        sb.append('0');
+        for (int i = 0; i < depth; i++) {
+            sb.append(']');
+        }
+        ParserResult res = ParsingMachine.compile(value).match(sb.toString());
+        assertTrue(res.isMatched());
+        assertEquals(2 * depth + 1, ((ParserResult.AstNode) res).getLength());
+        sb.setLength(sb.length() - 1);
+        res = ParsingMachine.compile(value).match(sb.toString());
+        assertFalse(res.isMatched());
+        assertEquals(2 * depth, res.getIdx());
+
+        // every level also closes an empty repetition:
+        value.setGrammar(new Grammar.AltGrammar(
+            new Grammar.CatGrammar(new Grammar.TextGrammar("["), value,
+                    new Grammar.QuantGrammar(0, Integer.MAX_VALUE, new Grammar.TextGrammar(" ")),
+                    new Grammar.TextGrammar("]")),
+            new Grammar.TextGrammar("0")
+        ));
+        sb.append(']');
+        AstArena arena = new AstArena();
+        assertNull(ParsingMachine.compile(value).match(sb.toString(), 0, arena));
+        assertEquals(2 * depth + 1, arena.getLength(arena.getRoot()));
+
+        // trees built by the tree walker are copied into arenas without recursing either:
+        int levels = 200000;
+        ParserResult.AstNode deep = new ParserResult.AstNode(levels, 1);
+        for (int i = levels - 1; i >= 0; i--) {
+            deep = new ParserResult.AstNode(i, 2 * (levels - i) + 1, new ParserResult.AstNode[]{
+                new ParserResult.AstNode(i, 1), deep, new ParserResult.AstNode(2 * levels - i, 1)});
+        }
+        arena = new AstArena();
+        int root = arena.add(deep);
+        assertEquals(3 * levels, root);
+        AstArena.Cursor cursor = arena.cursor(root);
+        for (int i = 0; i < levels; i++) {
+            assertEquals(2 * (levels - i) + 1, arena.getLength(cursor.getNode()));
+            assertTrue(cursor.firstChild());
+            assertTrue(cursor.nextSibling());
+        }
+        assertEquals(1, arena.getLength(cursor.getNode()));
+        assertFalse(cursor.firstChild());
+    }
+
+    public void testArena() {
+        Grammar digits = new Grammar.QuantGrammar(1, Integer.MAX_VALUE, new Grammar.RangeGrammar('0', '9'));
+        Grammar g = new Grammar.CatGrammar(
+            digits,
+            new Grammar.QuantGrammar(0, Integer.MAX_VALUE, new Grammar.AltGrammar(
+                new Grammar.CatGrammar(new Grammar.TextGrammar("+"), new Grammar.TextGrammar("+")),
+                new Grammar.CatGrammar(new Grammar.TextGrammar("+"), digits)
+            ))
+        );
+        ParsingMachine machine = ParsingMachine.compile(g);
+        AstArena arena = new AstArena(1);
+        assertNull(machine.match("12+3++", 0, arena));
+        int root = arena.getRoot();
+        assertEquals(g.match("12+3++").toString(), arena.toAstNode(root).toString());
+        // nodes discarded by backtracking are gone, children come before their parents:
+        assertEquals(12, arena.size());
+        assertEquals(arena.size() - 1, root);
+
+        AstArena.Cursor cursor = arena.cursor(root);
+        assertTrue(cursor.firstChild());
+        assertEquals("12", cursor.view("12+3++").toString());
+        assertEquals(2, arena.getChildCount(cursor.getNode()));
+        assertTrue(cursor.nextSibling());
+        assertTrue(cursor.firstChild());
+        assertEquals("+3", cursor.view("12+3++").toString());
+        assertTrue(cursor.nextSibling());
+        assertEquals("++", cursor.view("12+3++").toString());
+        assertFalse(cursor.nextSibling());
+        assertTrue(cursor.parent());
+        assertTrue(cursor.parent());
+        assertEquals(root, cursor.getNode());
+        assertFalse(cursor.parent());
+
+        ParserResult.Failure failure = machine.match("x", 0, arena);
+        assertEquals(g.match("x").toString(), failure.toString());
+        assertEquals(-1, arena.getRoot());
+        assertNull(machine.match("7", 0, arena));
+        assertEquals("7", arena.cursor(arena.getRoot()).view("7").toString());
+    }
+
+    public void testListener() {
+        final Grammar.MutableReferenceGrammar num = new Grammar.MutableReferenceGrammar();
+        num.setGrammar(new Grammar.AltGrammar(
+            new Grammar.CatGrammar(new Grammar.TextGrammar("1"), new Grammar.TextGrammar("x")),
+            new Grammar.TextGrammar("1")
+        ));
+        Grammar g = new Grammar.CatGrammar(
+            num,
+            new Grammar.TextGrammar("+"),
+            new Grammar.PositiveLookAhead(new Grammar.TextGrammar("1")),
+            num
+        );
+        final StringBuilder events = new StringBuilder();
+        ParsingMachine.Listener listener = new ParsingMachine.Listener() {
+            @Override
+            public void enterRule(Grammar<?> rule, int idx) {
+                assertSame(num, rule);
+                events.append("(").append(idx);
+            }
+
+            @Override
+            public void exitRule(Grammar<?> rule, int idx, int length) {
+                assertSame(num, rule);
+                events.append(" ").append(idx).append(":").append(length).append(")");
+            }
+
+            @Override
+            public void token(int idx, int length) {
+                events.append(" t").append(idx).append(":").append(length);
+            }
+        };
+        ParsingMachine machine = ParsingMachine.compile(g);
+        ParserResult res = machine.match("1+1", 0, listener);
+        assertTrue(res.isMatched());
+        assertEquals(3, ((ParserResult.AstNode) res).getLength());
+        // neither the backtracked "1" of the first alternative nor the lookahead's "1" are reported:
+        assertEquals("(0 t0:1 0:1) t1:1(2 t2:1 2:1)", events.toString());
+
+        events.setLength(0);
+        res = machine.match("1+2", 0, listener);
+        assertEquals(g.match("1+2").toString(), res.toString());
+        assertEquals("(0 t0:1 0:1) t1:1", events.toString());
+
+        // the items of a long repetition are reported as soon as they are committed, not at its end:
+        final int[] read = {0};
+        final String items = new String(new char[100000]).replace("\0", "1x");
+        CharSequence text = new CharSequence() {
+            @Override
+            public int length() {
+                return items.length();
+            }
+
+            @Override
+            public char charAt(int index) {
+                read[0] = Math.max(read[0], index);
+                return items.charAt(index);
+            }
+
+            @Override
+            public CharSequence subSequence(int start, int end) {
+                return items.subSequence(start, end);
+            }
+        };
+        final int[] lag = {0};
+        res = ParsingMachine.compile(new Grammar.QuantGrammar(0, Integer.MAX_VALUE, num)).match(text, 0,
+                new ParsingMachine.Listener() {
+                    @Override
+                    public void enterRule(Grammar<?> rule, int idx) {
+                    }
+
+                    @Override
+                    public void exitRule(Grammar<?> rule, int idx, int length) {
+                    }
+
+                    @Override
+                    public void token(int idx, int length) {
+                        lag[0] = Math.max(lag[0], read[0] - idx);
+                    }
+                });
+        assertEquals(items.length(), ((ParserResult.AstNode) res).getLength());
+        assertTrue("lag=" + lag[0], lag[0] < 4);
+    }
+
+    public void testLeftRecursion() {
+        Exception ex = null;
+        try {
+            Grammar.MutableReferenceGrammar g = new Grammar.MutableReferenceGrammar();
+            g.setGrammar(new Grammar.CatGrammar(g, new Grammar.TextGrammar("never reached")));
+            ParsingMachine.compile(g).match("never reached");
+        } catch (IllegalStateException e) {
+            ex = e;
+        }
+        assertNotNull(ex);
+        assertEquals("Left recursion detected.", ex.getMessage());
+    }
+}
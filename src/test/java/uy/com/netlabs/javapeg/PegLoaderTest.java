@@ -0,0 +1,120 @@
+package uy.com.netlabs.javapeg;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks grammars built from PEG text, and their images.
+ */
+public class PegLoaderTest extends TestCase {
+
+    private static final String ARITHMETIC = ""
+            + "# left recursive, for left associative trees\n"
+            + "Sum     <- Sum ('+' / '-') Product / Product\n"
+            + "Product <- Product [*/] Value / Value\n"
+            + "Value   <- [0-9]+ / '(' Sum ')'   # no spaces\n";
+
+    public PegLoaderTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(PegLoaderTest.class);
+    }
+
+    public void testParse() {
+        Map<String, Grammar<Object>> rules = PegLoader.parse(ARITHMETIC);
+        assertEquals(Arrays.asList("Sum", "Product", "Value"), Arrays.asList(rules.keySet().toArray()));
+        Grammar<Object> sum = rules.get("Sum");
+        assertEquals(12, ((ParserResult.AstNode) sum.match("1+2*(30-4)/5")).getLength());
+        assertEquals(3, ((ParserResult.AstNode) sum.match("1+2)")).getLength());
+        ParserResult.Failure failure = (ParserResult.Failure) rules.get("Value").match("x");
+        assertEquals(0, failure.getIdx());
+        assertEquals(Arrays.asList("char in [0-9]", "("), failure.getExpectedTokens());
+
+        Map<String, Grammar<Object>> escapes = PegLoader.parse(
+                "S <- \"\\t\\\"\" '\\101\\u00e9' [^\\]\\n] !. \n"
+                + "Empty <- ('' / \"x\")? &'a'? [a-]");
+        assertTrue(escapes.get("S").match("\t\"Aéb").isMatched());
+        assertFalse(escapes.get("S").match("\t\"Aé]").isMatched());
+        assertFalse(escapes.get("S").match("\t\"Aé\n").isMatched());
+        assertTrue(escapes.get("Empty").match("-").isMatched());
+    }
+
+    public void testErrors() {
+        String[] invalid = {"A <- 'a'\nB <- ('b'", "A <- B", "A <- 'a' A <- 'b'", "A <- [z-a]", "<- 'a'"};
+        String[] messages = {"line 2, column 10", "Rule B is used", "Rule A is defined twice", "empty range",
+            "line 1, column 1"};
+        for (int i = 0; i < invalid.length; i++) {
+            try {
+                PegLoader.parse(invalid[i]);
+                fail(invalid[i]);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains(messages[i]));
+            }
+        }
+    }
+
+    public void testImage() throws IOException {
+        Grammar<Object> sum = PegLoader.<Object>parse(ARITHMETIC).get("Sum");
+        Grammar<Object> optimized = sum.optimize();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PegLoader.write(optimized, out);
+        out.write(42);
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        Grammar<Object> read = PegLoader.read(in);
+        assertEquals(42, in.read());
+        // what prepare() found is restored, so nothing is analyzed again:
+        Grammar.Shape shape = read.shape;
+        assertFalse(read.isStale());
+        for (int i = 0; i < optimized.reachable().size(); i++) {
+            assertEquals(optimized.reachable().get(i).hasEpsilon(), read.reachable().get(i).hasEpsilon());
+        }
+        assertSame(shape, read.shape);
+        assertFalse(read.isStale());
+        for (String text: new String[]{"1+2*(30-4)/5", "1+", "(((7)))", "((", ""}) {
+            assertEquals(text, sum.match(text).toString(), read.match(text).toString());
+        }
+        assertEquals(optimized.reachable().size(), read.reachable().size());
+
+        try {
+            PegLoader.write(new Grammar.TextGrammar<String>("a").with(ReduceFunction.replace("a")), out);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Cannot save grammars with reduce functions.", e.getMessage());
+        }
+        try {
+            PegLoader.read(new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}));
+            fail();
+        } catch (IOException e) {
+        }
+    }
+
+    public void testLoad() throws IOException {
+        File cache = File.createTempFile("grammar", ".bin");
+        try {
+            assertTrue(cache.delete());
+            Grammar<Object> sum = PegLoader.load(ARITHMETIC, "Sum", cache);
+            assertTrue(sum.match("1+2").isMatched());
+            byte[] image = Files.readAllBytes(cache.toPath());
+            assertTrue(PegLoader.load(ARITHMETIC, "Sum", cache).match("1+2").isMatched());
+            assertTrue(Arrays.equals(image, Files.readAllBytes(cache.toPath())));
+            // another rule, or another grammar, gets a new image:
+            assertFalse(PegLoader.load(ARITHMETIC, "Value", cache).match("1+2").toString().contains("length=3"));
+            assertFalse(Arrays.equals(image, Files.readAllBytes(cache.toPath())));
+            Files.write(cache.toPath(), new byte[]{1, 2, 3});
+            assertTrue(PegLoader.load(ARITHMETIC, "Sum", cache).match("1+2").isMatched());
+            assertTrue(Arrays.equals(image, Files.readAllBytes(cache.toPath())));
+        } finally {
+            cache.delete();
+        }
+    }
+}
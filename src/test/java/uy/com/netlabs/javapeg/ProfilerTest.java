@@ -0,0 +1,101 @@
+package uy.com.netlabs.javapeg;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks the statistics gathered by the profiler, and that profiling leaves results unchanged.
+ */
+public class ProfilerTest extends TestCase {
+
+    public ProfilerTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(ProfilerTest.class);
+    }
+
+    private Grammar.CatGrammar abc;
+    private Grammar.TextGrammar c;
+    private Grammar g;
+
+    @Override
+    protected void setUp() {
+        c = new Grammar.TextGrammar("c");
+        abc = new Grammar.CatGrammar(new Grammar.TextGrammar("ab"), c);
+        // ("ab" "c" / "abd")*
+        g = new Grammar.QuantGrammar(0, Integer.MAX_VALUE,
+                new Grammar.AltGrammar(abc, new Grammar.TextGrammar("abd"))).prepare();
+    }
+
+    private Profiler.RuleStats find(Profiler profiler, Grammar grammar) {
+        for (Profiler.RuleStats stats: profiler.getStats()) {
+            if (stats.getGrammar() == grammar) {
+                return stats;
+            }
+        }
+        throw new AssertionError("no statistics for " + grammar);
+    }
+
+    public void testMatchProcessing() {
+        Grammar.Options opts = new Grammar.Options();
+        opts.profiler = new Profiler();
+        assertEquals(g.match("abdabc").toString(), g.matchProcessing("abdabc", 0, opts).getLeft().toString());
+
+        Profiler.RuleStats stats = find(opts.profiler, g);
+        assertEquals(1, stats.getInvocations());
+        assertEquals(1, stats.getSuccesses());
+        assertEquals(6, stats.getConsumed());
+        assertTrue(stats.getTotalNanos() >= stats.getSelfNanos());
+
+        // tried at 0, failing after "ab", and at 3 (but not at the end, which the alternation rules out first):
+        stats = find(opts.profiler, abc);
+        assertEquals(2, stats.getInvocations());
+        assertEquals(1, stats.getSuccesses());
+        assertEquals(1, stats.getFailures());
+        assertEquals(3, stats.getConsumed());
+        assertEquals(3, stats.getBacktracked());
+        assertEquals(0.5, stats.getHitRate(), 1e-9);
+
+        stats = find(opts.profiler, c);
+        assertEquals(2, stats.getInvocations());
+        assertEquals(1, stats.getBacktracked());
+
+        Grammar.Options unprofiled = new Grammar.Options();
+        g.matchProcessing("abdabc", 0, unprofiled);
+        assertEquals(unprofiled.examinedEnd, opts.examinedEnd);
+        assertEquals(unprofiled.farthestFailure, opts.farthestFailure);
+    }
+
+    public void testRecognize() {
+        Grammar.Options opts = new Grammar.Options();
+        opts.skipProcessing = true;
+        opts.profiler = new Profiler();
+        assertEquals(6, g.recognize("abdabc", 0, opts));
+        Profiler.RuleStats stats = find(opts.profiler, abc);
+        assertEquals(2, stats.getInvocations());
+        assertEquals(1, stats.getSuccesses());
+        assertEquals(3, stats.getConsumed());
+    }
+
+    public void testReport() {
+        Map<String, Grammar<?>> names = new LinkedHashMap<>();
+        names.put("abc", abc);
+        Grammar.Options opts = new Grammar.Options();
+        opts.profiler = new Profiler().name(names);
+        g.matchProcessing("abcabd", 0, opts);
+        String report = opts.profiler.report(100);
+        assertTrue(report, report.contains("\nabc "));
+        assertEquals(1 + opts.profiler.getStats().size(), report.split("\n").length);
+        assertEquals(1 + 2, opts.profiler.report(2).split("\n").length);
+
+        opts.profiler.clear();
+        assertTrue(opts.profiler.getStats().isEmpty());
+        g.matchProcessing("abc", 0, opts);
+        assertEquals("abc", find(opts.profiler, abc).getName());
+    }
+}
@@ -0,0 +1,123 @@
+package uy.com.netlabs.javapeg;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import uy.com.netlabs.javapeg.util.Pair;
+
+/**
+ * Checks that records are found regardless of how the input is split into reads.
+ */
+public class StreamParserTest extends TestCase {
+
+    public StreamParserTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(StreamParserTest.class);
+    }
+
+    /**
+     * Hands out at most {@code chunk} chars per read, like a slow socket would.
+     */
+    private static Reader trickle(final String text, final int chunk) {
+        return new StringReader(text) {
+            @Override
+            public int read(char[] cbuf, int off, int len) throws IOException {
+                return super.read(cbuf, off, Math.min(len, chunk));
+            }
+        };
+    }
+
+    // record <- [0-9]+ (";" / "\n") !";"
+    private static Grammar<String> record() {
+        return new Grammar.CatGrammar<>(
+            new Grammar.QuantGrammar<>(1, Integer.MAX_VALUE, new Grammar.RangeGrammar<String>('0', '9')),
+            new Grammar.AltGrammar<>(new Grammar.TextGrammar<String>(";"), new Grammar.TextGrammar<String>("\n")),
+            new Grammar.NegativeLookAhead<>(new Grammar.TextGrammar<String>(";"))
+        );
+    }
+
+    private static List<String> parseAll(String text, int chunk, final List<Long> offsets) throws IOException {
+        final List<String> records = new ArrayList<>();
+        StreamParser<String> parser = new StreamParser<>(record(), trickle(text, chunk));
+        assertNull(parser.parse(new StreamParser.RecordHandler<String>() {
+            @Override
+            public void record(long offset, CharSequence window, ParserResult.AstNode node, List<String> tags) {
+                records.add(node.substring(window));
+                offsets.add(offset + node.getIdx());
+            }
+        }));
+        return records;
+    }
+
+    public void testRecords() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            String record = i + (i % 2 == 0 ? ";" : "\n");
+            sb.append(record);
+            expected.add(record);
+        }
+        for (int chunk: new int[]{1, 2, 3, 7, 100000}) {
+            List<Long> offsets = new ArrayList<>();
+            assertEquals(expected, parseAll(sb.toString(), chunk, offsets));
+            assertEquals(Long.valueOf(sb.length() - expected.get(expected.size() - 1).length()),
+                    offsets.get(offsets.size() - 1));
+        }
+    }
+
+    public void testLargeRecord() throws IOException {
+        // a record read one char at a time is parsed again only after its buffered part doubled:
+        final int[] attempts = {0};
+        Grammar<String> record = new Grammar.CatGrammar<String>(
+            new Grammar.QuantGrammar<>(1, Integer.MAX_VALUE, new Grammar.RangeGrammar<String>('0', '9')),
+            new Grammar.TextGrammar<String>(";")
+        ) {
+            @Override
+            protected Pair<ParserResult, List<String>> matchProcessingImpl(CharSequence text, int idx,
+                    Grammar.Options opts) {
+                attempts[0]++;
+                return super.matchProcessingImpl(text, idx, opts);
+            }
+        };
+        String digits = new String(new char[200000]).replace('\0', '7');
+        final List<Integer> lengths = new ArrayList<>();
+        assertNull(new StreamParser<>(record, trickle(digits + ";1;", 1)).parse(new StreamParser.RecordHandler<String>() {
+            @Override
+            public void record(long offset, CharSequence window, ParserResult.AstNode node, List<String> tags) {
+                lengths.add(node.getLength());
+            }
+        }));
+        assertEquals(Arrays.asList(digits.length() + 1, 2), lengths);
+        assertTrue("attempts=" + attempts[0], attempts[0] < 40);
+    }
+
+    public void testFailure() throws IOException {
+        StreamParser<String> parser = new StreamParser<>(record(), trickle("12;34;;56;", 2));
+        final List<String> records = new ArrayList<>();
+        ParserResult.Failure failure = parser.parse(new StreamParser.RecordHandler<String>() {
+            @Override
+            public void record(long offset, CharSequence window, ParserResult.AstNode node, List<String> tags) {
+                records.add(node.substring(window));
+            }
+        });
+        assertEquals(1, records.size());
+        assertEquals(3, parser.getCommittedOffset());
+        assertEquals(3, failure.getIdx());
+        // a record cut by the end of the input fails instead of waiting for more
+        failure = new StreamParser<>(record(), trickle("12;34", 2)).parse(new StreamParser.RecordHandler<String>() {
+            @Override
+            public void record(long offset, CharSequence window, ParserResult.AstNode node, List<String> tags) {
+            }
+        });
+        assertEquals(2, failure.getIdx());
+    }
+}